@@ -18,17 +18,12 @@
  */
 package bricksnspace.ldpovray;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
 
 import bricksnspace.ldrawlib.LDrawColor;
 
@@ -105,141 +100,207 @@ public class LDMaterials {
 		// unused constructor
 	}
 	
-	static public void generateMaterials(File path) {
+	/**
+	 * writes a single material declare
+	 * @param bw output
+	 * @param name material name
+	 * @param r red component
+	 * @param g green component
+	 * @param b blue component
+	 * @param f filter component, written only if filter is true 
+	 * @param filter true if pigment is rgbf
+	 * @param finish text following "finish {", up to end of declare
+	 * @throws IOException
+	 */
+	private static void writeMaterial(LDPovWriter bw, String name, float r, float g, float b, 
+			float f, boolean filter, String finish) throws IOException {
+		
+		bw.write("#declare ");
+		bw.write(name);
+		bw.write(filter ? "=material{texture {pigment { rgbf <" : "=material{texture {pigment { rgb <");
+		bw.writeFixed(r, 6);
+		bw.write(',');
+		bw.writeFixed(g, 6);
+		bw.write(',');
+		bw.writeFixed(b, 6);
+		if (filter) {
+			bw.write(',');
+			bw.writeFixed(f, 6);
+		}
+		bw.write(">} finish {");
+		bw.write(finish);
+	}
+	
+	
+	
+	/**
+	 * Writes materials include file
+	 * @param path directory for include file
+	 * @throws IOException if file can't be written
+	 */
+	static public void generateMaterials(File path) throws IOException {
 
+		LDPovWriter bw = new LDPovWriter(new LDPovByteWriter(
+				new FileOutputStream(new File(path,MATERIALSFILE))));
 		try {
-			BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
-					new FileOutputStream(new File(path,MATERIALSFILE)),"UTF-8"));
-			bw.write(VERSION);
-			//bw.write(FINISH);
-			List<Integer> l = new ArrayList<Integer>(LDrawColor.getAllColors());
-			Collections.sort(l);
-			for (int i:l) {
-				LDrawColor c = LDrawColor.getById(i);
-				bw.write(String.format(Locale.US,"// LDraw %s color ID %d\n",c.getType().toString(),i));
-				switch (c.getType()) {
-				case GLITTER:
-					break;
-				case MILKY:
-					break;
-				case RUBBER:
-					if (c.getColor().getAlpha() == 255) {
-						bw.write(String.format(Locale.US,
-								"#declare %s=material{texture {pigment { rgb <%f,%f,%f>} finish {RUBBER} }}\n\n",
-						c.getName(), 
+			writeMaterials(bw);
+		}
+		finally {
+			bw.close();
+		}
+	}
+	
+	
+	
+	/**
+	 * Writes material for a single LDraw color, with a comment line
+	 * @param bw output
+	 * @param i LDraw color ID
+	 * @throws IOException
+	 */
+	static void writeMaterial(LDPovWriter bw, int i) throws IOException {
+
+		LDrawColor c = LDrawColor.getById(i);
+		bw.write("// LDraw ");
+		bw.write(c.getType().toString());
+		bw.write(" color ID ");
+		bw.writeInt(i);
+		bw.write('\n');
+		switch (c.getType()) {
+		case GLITTER:
+			break;
+		case MILKY:
+			break;
+		case RUBBER:
+			if (c.getColor().getAlpha() == 255) {
+				writeMaterial(bw, c.getName(), 
 						c.getColor().getRed()/255.0f,
 						c.getColor().getGreen()/255.0f,
-						c.getColor().getBlue()/255.0f
-						));
-					}
-					else {
-						bw.write(String.format(Locale.US,
-								"#declare %s=material{texture {pigment { rgbf <%f,%f,%f,%f>} finish {RUBBER}} }\n\n",
-						c.getName(), 
+						c.getColor().getBlue()/255.0f,
+						0, false, "RUBBER} }}\n\n");
+			}
+			else {
+				writeMaterial(bw, c.getName(), 
 						c.getColor().getRed()/255.0f,
 						c.getColor().getGreen()/255.0f,
 						c.getColor().getBlue()/255.0f,
-						1.0f-c.getColor().getAlpha()/255.0f
-						));
-					}
-					break;
-				case CHROME:
-				case METAL:
-				case PEARL:
-				case SOLID:
-					bw.write(String.format(Locale.US,
-							"#declare %s=material{texture {pigment { rgb <%f,%f,%f>} finish {%s} }}\n\n",
-					c.getName(), 
+						1.0f-c.getColor().getAlpha()/255.0f,
+						true, "RUBBER}} }\n\n");
+			}
+			break;
+		case CHROME:
+		case METAL:
+		case PEARL:
+		case SOLID:
+			writeMaterial(bw, c.getName(), 
 					c.getColor().getRed()/255.0f,
 					c.getColor().getGreen()/255.0f,
 					c.getColor().getBlue()/255.0f,
-					c.getType().name()
-					));
-					break;
-				case TRANSPARENT:
-					float f = 0.9f;
-					float delta = 1f; 
-					double lum = (c.getColor().getRed()*0.21+c.getColor().getGreen()*0.71+c.getColor().getBlue()*0.07)/255.0;
-					//double lum = Math.max(c.getColor().getRed()/255.0, Math.max(c.getColor().getGreen()/255.0,c.getColor().getBlue()/255.0));
-					//System.out.println("C:"+c.getName()+" lum:"+lum);
-					if (lum < 0.2) {
-						f = 1.0f;
-						delta = 1.4f;
-					}
-					else if (lum < 0.4) {
-						f = 1.0f;
-						delta = 1.2f;						
-					}
-					else if (lum > 0.8) {
-						f = 0.8f;
-						delta = 1f;
-					}
-					bw.write(String.format(Locale.US,
-							"#declare %s=material{texture {pigment { rgbf <%f,%f,%f,%f>} finish {TRANSPARENT} } interior {INTERIOR_TRANS}}\n\n",
-					c.getName(), 
+					0, false, c.getType().name()+"} }}\n\n");
+			break;
+		case TRANSPARENT:
+			float f = 0.9f;
+			float delta = 1f; 
+			double lum = (c.getColor().getRed()*0.21+c.getColor().getGreen()*0.71+c.getColor().getBlue()*0.07)/255.0;
+			//double lum = Math.max(c.getColor().getRed()/255.0, Math.max(c.getColor().getGreen()/255.0,c.getColor().getBlue()/255.0));
+			//System.out.println("C:"+c.getName()+" lum:"+lum);
+			if (lum < 0.2) {
+				f = 1.0f;
+				delta = 1.4f;
+			}
+			else if (lum < 0.4) {
+				f = 1.0f;
+				delta = 1.2f;						
+			}
+			else if (lum > 0.8) {
+				f = 0.8f;
+				delta = 1f;
+			}
+			writeMaterial(bw, c.getName(), 
 					c.getColor().getRed()/255.0f*delta,
 					c.getColor().getGreen()/255.0f*delta,
 					c.getColor().getBlue()/255.0f*delta,
-					f
-					));
-					break;
-				case INTERNAL:
-				case USERDEF:
-				default:
-					if (c.getColor().getAlpha() == 255) {
-						bw.write(String.format(Locale.US,
-								"#declare %s=material{texture {pigment { rgb <%f,%f,%f>} finish {SOLID} }}\n\n",
-						c.getName(), 
+					f, true, "TRANSPARENT} } interior {INTERIOR_TRANS}}\n\n");
+			break;
+		case INTERNAL:
+		case USERDEF:
+		default:
+			if (c.getColor().getAlpha() == 255) {
+				writeMaterial(bw, c.getName(), 
 						c.getColor().getRed()/255.0f,
 						c.getColor().getGreen()/255.0f,
-						c.getColor().getBlue()/255.0f
-						));
-					}
-					else {
-						bw.write(String.format(Locale.US,
-								"#declare %s=material{texture {pigment { rgbf <%f,%f,%f,%f>} finish {TRANSPARENT}} interior {INTERIOR_TRANS}}\n\n",
-						c.getName(), 
+						c.getColor().getBlue()/255.0f,
+						0, false, "SOLID} }}\n\n");
+			}
+			else {
+				writeMaterial(bw, c.getName(), 
 						c.getColor().getRed()/255.0f,
 						c.getColor().getGreen()/255.0f,
 						c.getColor().getBlue()/255.0f,
-						1.0f-c.getColor().getAlpha()/255.0f
-						));
-					}
-					break;
-				
-				}
-//				if (c.getColor().getAlpha() == 255) {
-//				    bw.write(String.format(Locale.US,
-//				    	"// LDraw color ID %d\n#declare %s=material{texture {pigment { rgb <%f,%f,%f>} finish {BrickPlastic} }}\n\n",
-//				    	i,
-//						c.getName(), 
-//						c.getColor().getRed()/255.0f,
-//						c.getColor().getGreen()/255.0f,
-//						c.getColor().getBlue()/255.0f
-//						));
-//				}
-//				else {
-//					bw.write(String.format(Locale.US,
-//				    	"// LDraw color ID %d\n#declare %s=material{texture {pigment { rgbf <%f,%f,%f,%f>} finish {BrickPlastic} }}\n\n",
-//						i,
-//				    	c.getName(), 
-//						c.getColor().getRed()/255.0f,
-//						c.getColor().getGreen()/255.0f,
-//						c.getColor().getBlue()/255.0f,
-//						1.0f-c.getColor().getAlpha()/255.0f
-//						));
-//				}
+						1.0f-c.getColor().getAlpha()/255.0f,
+						true, "TRANSPARENT}} interior {INTERIOR_TRANS}}\n\n");
 			}
-			bw.close();
-		} catch (UnsupportedEncodingException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		} catch (FileNotFoundException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		} catch (IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+			break;
+		
+		}
+	}
+	
+	
+	
+	/**
+	 * Returns a key of LDraw color table state: two keys are equal only
+	 * if materials written by {@link #writeMaterials(LDPovWriter)} are the same
+	 * @return colors with name, type and RGBA value
+	 */
+	static String getColorTableKey() {
+
+		List<Integer> l = new ArrayList<Integer>(LDrawColor.getAllColors());
+		Collections.sort(l);
+		StringBuilder sb = new StringBuilder(l.size()*32);
+		for (int i:l) {
+			LDrawColor c = LDrawColor.getById(i);
+			sb.append(i).append(' ').append(c.getName()).append(' ').append(c.getType().name())
+				.append(' ').append(Integer.toHexString(c.getColor().getRGB())).append('\n');
+		}
+		return sb.toString();
+	}
+	
+	
+	
+	/**
+	 * Writes materials for all LDraw colors, same content of materials include file
+	 * @param bw output
+	 * @throws IOException
+	 */
+	static void writeMaterials(LDPovWriter bw) throws IOException {
+
+		bw.write(VERSION);
+		//bw.write(FINISH);
+		List<Integer> l = new ArrayList<Integer>(LDrawColor.getAllColors());
+		Collections.sort(l);
+		for (int i:l) {
+			writeMaterial(bw, i);
+//			if (c.getColor().getAlpha() == 255) {
+//			    bw.write(String.format(Locale.US,
+//			    	"// LDraw color ID %d\n#declare %s=material{texture {pigment { rgb <%f,%f,%f>} finish {BrickPlastic} }}\n\n",
+//			    	i,
+//					c.getName(), 
+//					c.getColor().getRed()/255.0f,
+//					c.getColor().getGreen()/255.0f,
+//					c.getColor().getBlue()/255.0f
+//					));
+//			}
+//			else {
+//				bw.write(String.format(Locale.US,
+//			    	"// LDraw color ID %d\n#declare %s=material{texture {pigment { rgbf <%f,%f,%f,%f>} finish {BrickPlastic} }}\n\n",
+//					i,
+//			    	c.getName(), 
+//					c.getColor().getRed()/255.0f,
+//					c.getColor().getGreen()/255.0f,
+//					c.getColor().getBlue()/255.0f,
+//					1.0f-c.getColor().getAlpha()/255.0f
+//					));
+//			}
 		}
 	}
 }
@@ -26,17 +26,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
-import java.util.Collection;
-import java.util.Locale;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import bricksnspace.j3dgeom.Matrix3D;
 import bricksnspace.ldrawlib.LDPrimitive;
+import bricksnspace.ldrawlib.LDrawCommand;
 import bricksnspace.ldrawlib.LDrawColor;
 import bricksnspace.ldrawlib.LDrawPart;
 
@@ -63,69 +62,31 @@ import bricksnspace.ldrawlib.LDrawPart;
  */
 public class LDPOVRenderedPart {
 	
-	// Primitives in substitution file PRIMSUBST
-	private static Set<String> substPrimitives = new TreeSet<String>(); 
+	// substitution file, read from current directory
 	private static String PRIMSUBST = "jbbprimitives.inc";
 	
-	private static BufferedWriter povFile;
-	
-	// Special primitives, program generated when used 
-	private static Set<String> genPrimitives = new TreeSet<String>(); 
-	
-	private static Pattern ringConePattern = Pattern.compile(
-			"([0-9]+)"  // segment 
-			+ "-"
-			+ "([0-9]+)"  // total segments
-			+ "([a-z]+)" // type
-			+ "([0-9]+)"  // diameter/radius
-			+ "[.]dat",
-			Pattern.CASE_INSENSITIVE);
-	
-	private static Pattern cylPattern = Pattern.compile(
-			"([0-9]+)"  // segment 
-			+ "-"
-			+ "([0-9]+)"  // total segments
-			+ "(cyl[io])2?[.]dat",
-			Pattern.CASE_INSENSITIVE);
-	
-	private static Pattern discPattern = Pattern.compile(
-			"([0-9]+)"  // segment 
-			+ "-"
-			+ "([0-9]+)"  // total segments
-			+ "(disc)[.]dat",
-			Pattern.CASE_INSENSITIVE);
-	
-	private static Pattern torusPattern = Pattern.compile(
-			"t([0-9]{2})"  // fraction 1/n 
-			+ "([ioq])"			// inside, outside, complete
-			+ "([0-9]{4})"  // minor radius 0.xxxx
-			+ "[.]dat",
-			Pattern.CASE_INSENSITIVE);
-	
-	private static boolean singular;
-
+	// default bounds for primitives without LDraw geometry
+	private static final float[] UNITBOX = new float[] { -1, -1, -1, 1, 1, 1 };
+	private static final float[] IDENTITY = new float[] { 1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0 };
 	
-	static {
-		InputStream is;
-		try {
-			is = new FileInputStream(PRIMSUBST);
-			initPrimitives(is); 
-		} catch (IOException e) {
-			// ignored if no file
-		}
-	};
-
+	// level of detail of a placed part
+	private static final int LOD_FULL = 0;
+	private static final int LOD_SIMPLIFIED = 1;
+	private static final int LOD_BOX = 2;
+	
+	// color of objects that get material from enclosing object, only in part declares
+	private static final int ENCLOSING = -1;
 	
 	/**
 	 * Reads in primitives from external definition file
 	 * @param a file to read
+	 * @param substPrimitives set to fill with primitive names
 	 * @throws IOException
 	 */
-	private static void initPrimitives(InputStream a) throws IOException {
+	private static void initPrimitives(InputStream a, Set<String> substPrimitives) throws IOException {
 		
 		LineNumberReader lnr = new LineNumberReader(new InputStreamReader(a));
 		String s;
-		substPrimitives.clear();
 		while ((s = lnr.readLine()) != null) {
 			String[] l = s.trim().split("\\s+");
 			if (l.length < 3)
@@ -140,451 +101,547 @@ public class LDPOVRenderedPart {
 	
 	
 	
-	private static void addGeneratedCylinder(String p, int fraction, int total) throws IOException {
+	private LDPOVRenderedPart() {
 		
-		String declare = "LD"+p.substring(0, p.length()-4).toUpperCase().replace('-', '_');
-		if (total/fraction >= 2) {
-			double angle = (Math.PI * 2 * fraction / total) + (Math.PI / 2);
-			double vx = Math.cos(angle);
-			double vz = Math.sin(angle);
-			povFile.write(String.format(Locale.US,"#declare %s=object {\n",declare));
-			povFile.write("  cylinder { <0, 0, 0>, <0, 1, 0>, 1 open }\n");
-			povFile.write(String.format(Locale.US,"  clipped_by {\n    plane { -z, 0 }\n    plane { <%f,0,%f>, 0 }\n  }\n}\n\n",vx,vz));
-			genPrimitives.add(p);
-		}
-		else if (total == fraction) {
-			povFile.write(String.format(Locale.US,"#declare %s=object {\n",declare));
-			povFile.write("  cylinder { <0, 0, 0>, <0, 1, 0>, 1 open }\n}\n\n");
-			genPrimitives.add(p);
-		}
-		else if (total/fraction < 2) {
-			double angle = (Math.PI * 2 * fraction / total) + (Math.PI / 2);
-			double vx = Math.cos(angle);
-			double vz = Math.sin(angle);
-			povFile.write(String.format(Locale.US,"#declare %s=union{\n  object {\n",declare));
-			povFile.write("    cylinder { <0, 0, 0>, <0, 1, 0>, 1 open }\n");
-			povFile.write("    clipped_by {\n    plane { -z, 0 }\n    }\n  }\n");
-			povFile.write("  object {\n    cylinder { <0, 0, 0>, <0, 1, 0>, 1 open }\n");
-			povFile.write(String.format(Locale.US,"    clipped_by { plane { z, 0 } plane { <%f,0,%f>, 0 } }\n  }\n}\n\n",vx,vz));
-			genPrimitives.add(p);
-		}
-		else {
-			Logger.getGlobal().log(Level.WARNING, "Undefined primitive "+p);
-		}
-			
+//		pp = p;
+//		generatePartVBOs();
 	}
 	
 	
 	
-	private static void addGeneratedDisc(String p, int fraction, int total) throws IOException {
-		
-		String declare = "LD"+p.substring(0, p.length()-4).toUpperCase().replace('-', '_');
-		if (total/fraction >= 2) {
-			double angle = (Math.PI * 2 * fraction / total) + (Math.PI / 2);
-			double vx = Math.cos(angle);
-			double vz = Math.sin(angle);
-			povFile.write(String.format(Locale.US,"#declare %s=object {\n",declare));
-			povFile.write("  disc { <0, 0, 0>, <0, 1, 0>, 1 }\n");
-			povFile.write(String.format(Locale.US,"  clipped_by {\n    plane { -z, 0 }\n    plane { <%f,0,%f>, 0 }\n  }\n}\n\n",vx,vz));
-			genPrimitives.add(p);
-		}
-		else if (total == fraction) {
-			povFile.write(String.format(Locale.US,"#declare %s=object {\n",declare));
-			povFile.write("  disc { <0, 0, 0>, <0, 1, 0>, 1 }\n}\n\n");
-			genPrimitives.add(p);
-		}
-		else if (total/fraction < 2) {
-			double angle = (Math.PI * 2 * fraction / total) + (Math.PI / 2);
-			double vx = Math.cos(angle);
-			double vz = Math.sin(angle);
-			povFile.write(String.format(Locale.US,"#declare %s=union{\n  object {\n",declare));
-			povFile.write("    disc { <0, 0, 0>, <0, 1, 0>, 1 }\n");
-			povFile.write("    clipped_by {\n    plane { -z, 0 }\n    }\n  }\n");
-			povFile.write("  object {\n    disc { <0, 0, 0>, <0, 1, 0>, 1 }\n");
-			povFile.write(String.format(Locale.US,"    clipped_by { plane { z, 0 } plane { <%f,0,%f>, 0 } }\n  }\n}\n\n",vx,vz));
-			genPrimitives.add(p);
+	private static void addTriangle(LDPovExportContext ctx, float[] point1, float[] point2, float[] point3, int ldrcolor) throws IOException
+	{
+		if (ctx.mesh != null) {
+			ctx.mesh.addTriangle(point1, point2, point3, ldrcolor);
+			ctx.stats.triangles++;
+			return;
 		}
-		else {
-			Logger.getGlobal().log(Level.WARNING, "Undefined primitive "+p);
+		// write a triangle primitive with LDraw material
+		ctx.povFile.write("triangle {\n  ");
+		ctx.povFile.writeVector(point1[0], point1[1], point1[2]);
+		ctx.povFile.write(", ");
+		ctx.povFile.writeVector(point2[0], point2[1], point2[2]);
+		ctx.povFile.write(", ");
+		ctx.povFile.writeVector(point3[0], point3[1], point3[2]);
+		ctx.povFile.write('\n');
+		addMaterial(ctx, ldrcolor);
+		ctx.stats.triangles++;
+	}
+
+
+	
+	/**
+	 * Writes a flat polygon, closed as POV-Ray requires
+	 * @param ctx export context
+	 * @param uv point coordinates in polygon plane
+	 * @param start first point
+	 * @param n number of points
+	 * @param t transformation from polygon plane
+	 * @param ldrcolor LDraw color
+	 * @throws IOException
+	 */
+	private static void addPolygon(LDPovExportContext ctx, float[] uv, int start, int n, float[] t, int ldrcolor) throws IOException 
+	{
+		ctx.povFile.write("polygon {\n  ");
+		ctx.povFile.writeInt(n+1);
+		for (int i=0;i<=n;i++) {
+			int k = (start + i%n)*2;
+			ctx.povFile.write(", <");
+			ctx.povFile.writeFloat(uv[k]);
+			ctx.povFile.write(',');
+			ctx.povFile.writeFloat(uv[k+1]);
+			ctx.povFile.write('>');
 		}
-			
+		ctx.povFile.write('\n');
+		addMatrix(ctx, t, 0);
+		addMaterial(ctx, ldrcolor);
+	}
+	
+	
+	
+	private static void addPrimitive(LDPovExportContext ctx, String name, float[] t, int off, int ldrcolor) throws IOException 
+	{
+		ctx.povFile.write("object { ");
+		ctx.povFile.write(name);
+		ctx.povFile.write('\n');
+		addMatrix(ctx, t, off);
+		addMaterial(ctx, ldrcolor);
+	}
+	
+	
+	
+	/**
+	 * Writes a box, used in place of a part too small to show details
+	 * @param ctx export context
+	 * @param b box in part coordinates, min x,y,z and max x,y,z
+	 * @param t part transformation
+	 * @param ldrcolor LDraw color
+	 * @throws IOException
+	 */
+	private static void addBox(LDPovExportContext ctx, float[] b, float[] t, int ldrcolor) throws IOException 
+	{
+		ctx.povFile.write("box { ");
+		ctx.povFile.writeVector(b[0], b[1], b[2]);
+		ctx.povFile.write(',');
+		ctx.povFile.writeVector(b[3], b[4], b[5]);
+		ctx.povFile.write('\n');
+		addMatrix(ctx, t, 0);
+		addMaterial(ctx, ldrcolor);
+	}
+	
+	
+	
+	private static void addMatrix(LDPovExportContext ctx, float[] t, int off) throws IOException 
+	{
+		ctx.povFile.write("  matrix <");
+		ctx.povFile.writeFloat(t[off]);
+		ctx.povFile.write(',');
+		ctx.povFile.writeFloat(t[off+3]);
+		ctx.povFile.write(',');
+		ctx.povFile.writeFloat(t[off+6]);
+		ctx.povFile.write(", ");
+		ctx.povFile.writeFloat(t[off+1]);
+		ctx.povFile.write(',');
+		ctx.povFile.writeFloat(t[off+4]);
+		ctx.povFile.write(',');
+		ctx.povFile.writeFloat(t[off+7]);
+		ctx.povFile.write(", ");
+		ctx.povFile.writeFloat(t[off+2]);
+		ctx.povFile.write(',');
+		ctx.povFile.writeFloat(t[off+5]);
+		ctx.povFile.write(',');
+		ctx.povFile.writeFloat(t[off+8]);
+		ctx.povFile.write(", ");
+		ctx.povFile.writeFloat(t[off+9]);
+		ctx.povFile.write(',');
+		ctx.povFile.writeFloat(t[off+10]);
+		ctx.povFile.write(',');
+		ctx.povFile.writeFloat(t[off+11]);
+		ctx.povFile.write(">\n");
 	}
 	
 	
 	
-	private static void addGeneratedTorus(String p, String type, int fraction, float rMinor) throws IOException {
+	/**
+	 * writes triangles collected in mesh as mesh2 objects, one for every color
+	 * @throws IOException
+	 */
+	static void addMesh(LDPovExportContext ctx) throws IOException {
 		
-		String declare = "LD"+p.substring(0, p.length()-4).toUpperCase().replace('-', '_');
-		if (fraction >= 2) {
-			double angle = (Math.PI * 2 / fraction) + (Math.PI / 2);
-			double vx = Math.cos(angle);
-			double vz = Math.sin(angle);
-			povFile.write(String.format(Locale.US,"#declare %s=object {\n",declare));
-			povFile.write(String.format(Locale.US,"  torus { 1, %f hollow }\n",rMinor));
-			if (type.equalsIgnoreCase("i")) {
-				povFile.write(String.format(Locale.US, "  clipped_by { plane { -y,0 } plane { <%f,0,%f>,0 } plane { -z,0} cylinder { <0,-1,0>,<0,1,0>, 1 } }\n}\n\n", vx,vz ));
-			}
-			else if (type.equalsIgnoreCase("o")) {
-				povFile.write(String.format(Locale.US, "  clipped_by { plane { -y,0 } plane { <%f,0,%f>,0 } plane { -z,0} cylinder { <0,-1,0>,<0,1,0>, 1 inverse } }\n}\n\n", vx,vz ));
-			}
-			else if (type.equalsIgnoreCase("q")) {
-				povFile.write(String.format(Locale.US, "  clipped_by { plane { <%f,0,%f>,0 } plane { -z,0} }\n}\n\n", vx,vz ));
+		for (LDPovMesh.Group g : ctx.mesh.getGroups()) {
+			if (g.getFaceCount() == 0)
+				continue;
+			float[] v = g.getVertex();
+			int[] f = g.getFace();
+			ctx.povFile.write("mesh2 {\n  vertex_vectors {\n    ");
+			ctx.povFile.writeInt(g.getVertexCount());
+			for (int i=0;i<g.getVertexCount();i++) {
+				ctx.povFile.write(",\n    ");
+				ctx.povFile.writeVector(v[i*3], v[i*3+1], v[i*3+2]);
 			}
-			else {
-				Logger.getGlobal().log(Level.WARNING, "Undefined primitive "+p);
-				return;
+			ctx.povFile.write("\n  }\n  face_indices {\n    ");
+			ctx.povFile.writeInt(g.getFaceCount());
+			for (int i=0;i<g.getFaceCount();i++) {
+				ctx.povFile.write(",\n    <");
+				ctx.povFile.writeInt(f[i*3]);
+				ctx.povFile.write(',');
+				ctx.povFile.writeInt(f[i*3+1]);
+				ctx.povFile.write(',');
+				ctx.povFile.writeInt(f[i*3+2]);
+				ctx.povFile.write('>');
 			}
-			genPrimitives.add(p);
+			ctx.povFile.write("\n  }\n");
+			addMaterial(ctx, g.getColor());
 		}
-		else if (fraction == 1) {
-			povFile.write(String.format(Locale.US,"#declare %s=object {\n",declare));
-			povFile.write(String.format(Locale.US,"    torus { 1, %f hollow }\n",rMinor));
-			if (type.equalsIgnoreCase("i")) {
-				povFile.write("  clipped_by { plane { -y,0 } cylinder { <0,-1,0>,<0,1,0>, 1 } }\n}\n\n");
-			}
-			else if (type.equalsIgnoreCase("o")) {
-				povFile.write("  clipped_by { plane { -y,0 } cylinder { <0,-1,0>,<0,1,0>, 1 inverse } }\n}\n\n");
-			}
-			else if (type.equalsIgnoreCase("q")) {
-				povFile.write("}\n\n");
-			}
-			else {
-				Logger.getGlobal().log(Level.WARNING, "Undefined primitive "+p);
-				return;
-			}
-			genPrimitives.add(p);
+		ctx.mesh.clear();
+	}
+	
+	
+	
+	/**
+	 * closes an object with its LDraw material
+	 * 
+	 * Objects inside a part declare can leave material to the enclosing
+	 * instance, so the same geometry can be declared once and colored per 
+	 * instance. Any other object in CURRENT color gets main color material.
+	 * @param ldrcolor LDraw color index, or ENCLOSING for no material
+	 * @throws IOException
+	 */
+	private static void addMaterial(LDPovExportContext ctx, int ldrcolor) throws IOException {
+		
+		if (ldrcolor == ENCLOSING) {
+			ctx.povFile.write("}\n\n");
 		}
 		else {
-			Logger.getGlobal().log(Level.WARNING, "Undefined primitive "+p);
+			ctx.povFile.write(ctx.getMaterial(ldrcolor).reference);
 		}
-			
 	}
 	
 	
+//	private static void addLine(float[] point1, float[] point2, int ldrcolor) throws IOException 
+//	{
+//		// write a line primitive as a cylinder with LDraw material
+//		String material = LDrawColor.getById(ldrcolor).getName();
+//		ctx.povFile.write("cylinder {\n");
+//		ctx.povFile.write(String.format(Locale.US, "  <%s,%s,%s>, <%s,%s,%s>, 0.1\n", 
+//				fF(point1[0]),fF(point1[1]),fF(point1[2]),
+//				fF(point2[0]),fF(point2[1]),fF(point2[2])));
+//		ctx.povFile.write(String.format(Locale.US, "  material { %s }\n}\n\n", "Trans_Black"));		
+//	}
+
 	
-	private static void addGeneratedRing(String p, int internalRadius, int fraction, int total) throws IOException {
+	/**
+	 * Generates a POV-Ray declare for primitive, if a generator in context
+	 * primitive table writes it.
+	 * Declare isn't written in output, but saved in context, so every part 
+	 * rendered in parallel can use it.
+	 * @param ctx export context
+	 * @param p primitive name, lowercase and without "8\\" or "48\\" prefix
+	 * @return true if primitive was generated
+	 * @throws IOException
+	 */
+	private static boolean generatePrimitive(LDPovExportContext ctx, String p) throws IOException {
 		
-		String declare = "LD"+p.substring(0, p.length()-4).toUpperCase().replace('-', '_');
-		if (total/fraction >= 2) {
-			double angle = (Math.PI * 2 * fraction / total) + (Math.PI / 2);
-			double vx = Math.cos(angle);
-			double vz = Math.sin(angle);
-			povFile.write(String.format(Locale.US,"#declare %s=object {\n",declare));
-			povFile.write(String.format(Locale.US,"  disc { <0, 0, 0>, <0, 1, 0>, %d, %d }\n",internalRadius+1,internalRadius));
-			povFile.write(String.format(Locale.US,"  clipped_by {\n    plane { -z, 0 }\n    plane { <%f,0,%f>, 0 }\n  }\n}\n\n",vx,vz));
-			genPrimitives.add(p);
-		}
-		else if (total == fraction) {
-			povFile.write(String.format(Locale.US,"#declare %s=object {\n",declare));
-			povFile.write(String.format(Locale.US,"  disc { <0, 0, 0>, <0, 1, 0>, %d, %d }\n}\n\n",internalRadius+1,internalRadius));
-			genPrimitives.add(p);
-		}
-		else if (total/fraction < 2) {
-			double angle = (Math.PI * 2 * fraction / total) + (Math.PI / 2);
-			double vx = Math.cos(angle);
-			double vz = Math.sin(angle);
-			povFile.write(String.format(Locale.US,"#declare %s=union{\n  object {\n",declare));
-			povFile.write(String.format(Locale.US,"    disc { <0, 0, 0>, <0, 1, 0>, %d, %d }\n",internalRadius+1,internalRadius));
-			povFile.write("    clipped_by {\n    plane { -z, 0 }\n    }\n  }\n");
-			povFile.write(String.format(Locale.US,"  object {\n    disc { <0, 0, 0>, <0, 1, 0>, %d, %d }\n",internalRadius+1,internalRadius));
-			povFile.write(String.format(Locale.US,"    clipped_by { plane { z, 0 } plane { <%f,0,%f>, 0 } }\n  }\n}\n\n",vx,vz));
-			genPrimitives.add(p);
+		String declare = ctx.primitives.generate(getPrimitiveDeclare(ctx, p), p);
+		if (declare == null) {
+			return false;
 		}
-		else {
-			Logger.getGlobal().log(Level.WARNING, "Undefined primitive "+p);
+		ctx.genPrimitives.add(p);
+		if (ctx.genDeclares.putIfAbsent(p, declare) == null) {
+			ctx.generated(p);
 		}
-			
+		return true;
 	}
 	
 	
 	
-	private static void addGeneratedCone(String p, int topRadius, int fraction, int total) throws IOException {
+	/**
+	 * Returns primitive name used in substitution and generated primitives
+	 * @param ldrawId LDraw file name
+	 * @return lowercase name, without "8\\" or "48\\" prefix
+	 */
+	private static String getPrimitiveName(String ldrawId) {
 		
-		String declare = "LD"+p.substring(0, p.length()-4).toUpperCase().replace('-', '_');
-		if (total/fraction >= 2) {
-			double angle = (Math.PI * 2 * fraction / total) + (Math.PI / 2);
-			double vx = Math.cos(angle);
-			double vz = Math.sin(angle);
-			povFile.write(String.format(Locale.US,"#declare %s=object {\n",declare));
-			povFile.write(String.format(Locale.US,"  cone { <0, 0, 0>, %d, <0, 1, 0>, %d open }\n",topRadius+1,topRadius));
-			povFile.write(String.format(Locale.US,"  clipped_by {\n    plane { -z, 0 }\n    plane { <%f,0,%f>, 0 }\n  }\n}\n\n",vx,vz));
-			genPrimitives.add(p);
-		}
-		else if (total == fraction) {
-			povFile.write(String.format(Locale.US,"#declare %s=object {\n",declare));
-			povFile.write(String.format(Locale.US,"  cone { <0, 0, 0>, %d, <0, 1, 0>, %d open }\n}\n\n",topRadius+1,topRadius));
-			genPrimitives.add(p);
-		}
-		else if (total/fraction < 2) {
-			double angle = (Math.PI * 2 * fraction / total) + (Math.PI / 2);
-			double vx = Math.cos(angle);
-			double vz = Math.sin(angle);
-			povFile.write(String.format(Locale.US,"#declare %s=union{\n  object {\n",declare));
-			povFile.write(String.format(Locale.US,"    cone { <0, 0, 0>, %d, <0, 1, 0>, %d open }\n",topRadius+1,topRadius));
-			povFile.write("    clipped_by {\n    plane { -z, 0 }\n    }\n  }\n");
-			povFile.write(String.format(Locale.US,"  object {\n    cone { <0, 0, 0>, %d, <0, 1, 0>, %d open }\n",topRadius+1,topRadius));
-			povFile.write(String.format(Locale.US,"    clipped_by { plane { z, 0 } plane { <%f,0,%f>, 0 } }\n  }\n}\n\n",vx,vz));
-			genPrimitives.add(p);
+		String p = ldrawId.toLowerCase();
+		if (p.startsWith("8\\") || p.startsWith("48\\")) {
+			p = p.substring(p.indexOf('\\')+1);
 		}
-		else {
-			Logger.getGlobal().log(Level.WARNING, "Undefined primitive "+p);
+		return p;
+	}
+	
+	
+	
+	/**
+	 * POV-Ray identifier for a substituted or generated primitive
+	 * @param ctx export context
+	 * @param p primitive name
+	 * @return 'LD'+LDraw filename without extension, all uppercase, with '-' changed to '_'
+	 */
+	private static String getPrimitiveDeclare(LDPovExportContext ctx, String p) {
+		
+		String d = ctx.primitiveDeclares.get(p);
+		if (d == null) {
+			d = "LD"+p.substring(0, p.length()-4).toUpperCase().replace('-', '_');
+			ctx.primitiveDeclares.putIfAbsent(p, d);
 		}
-			
+		return d;
 	}
-
 	
 	
 	
-	private LDPOVRenderedPart() {
+	/**
+	 * Checks if a primitive is a detail hidden inside part, like tubes under
+	 * bricks and plates (stud3 and stud4 primitive families)
+	 * @param p primitive name, lowercase and without "8\\" or "48\\" prefix
+	 * @return true if primitive can be dropped in simplified geometry
+	 */
+	private static boolean isInternalDetail(String p) {
 		
-//		pp = p;
-//		generatePartVBOs();
+		return p.startsWith("stud3") || p.startsWith("stud4");
 	}
 	
 	
 	
 	/**
-	 * nicely formats a float for LDraw files standard
-	 * - no trailing decimal zeroes
-	 * - max 5 decimals 
-	 * @param n float to format
-	 * @return
+	 * Chooses level of detail for a placed part, from its size on image
+	 * @param ctx export context
+	 * @param g part geometry
+	 * @param m part placement in POV-Ray coordinates
+	 * @return LOD_FULL, LOD_SIMPLIFIED or LOD_BOX
 	 */
-	private static String fF(float n) {
+	private static int getDetail(LDPovExportContext ctx, LDPovGeometry g, float[] m) {
 		
-		String s = String.format(Locale.US, " %.5f", n);
-		if (s.equals(" -0.00000")) return " 0";
-		if (s.endsWith(".00000")) return s.substring(0, s.length()-6);
-		if (s.endsWith("0000")) return s.substring(0, s.length()-4);
-		if (s.endsWith("000")) return s.substring(0, s.length()-3);
-		if (s.endsWith("00")) return s.substring(0, s.length()-2);
-		if (s.endsWith("0")) return s.substring(0, s.length()-1);
-		return s;
+		if (ctx.camera == null || g.getBounds() == null) {
+			return LOD_FULL;
+		}
+		float[] box = ctx.tmpBox;
+		LDPovGeometry.transformBounds(m, g.getBounds(), box);
+		// nearest point, camera looks at -z
+		float d = ctx.camera.getDistance() - box[5];
+		if (d <= 0) {
+			return LOD_FULL;
+		}
+		float size = Math.max(box[3]-box[0], Math.max(box[4]-box[1], box[5]-box[2])) / d;
+		if (size < ctx.lodBox) {
+			return LOD_BOX;
+		}
+		if (size < ctx.lodSimplify) {
+			return LOD_SIMPLIFIED;
+		}
+		return LOD_FULL;
 	}
-
-
 	
 	
-	private static void addTriangle(float[] point1, float[] point2, float[] point3, int ldrcolor) throws IOException
-	{
-		// write a triangle primitive with LDraw material
-		String material = LDrawColor.getById(ldrcolor).getName();
-		povFile.write("triangle {\n");
-		povFile.write(String.format(Locale.US, "  <%s,%s,%s>, <%s,%s,%s>, <%s,%s,%s>\n", 
-				fF(point1[0]),fF(point1[1]),fF(point1[2]),
-				fF(point2[0]),fF(point2[1]),fF(point2[2]),
-				fF(point3[0]),fF(point3[1]),fF(point3[2])));
-		povFile.write(String.format(Locale.US, "  material { %s }\n}\n\n", material));
+	
+	/**
+	 * Returns flattened geometry of an LDraw file, from cache if available
+	 * @param ctx export context
+	 * @param ldrawId LDraw file name
+	 * @param invert true if file is inverted
+	 * @return geometry in file local coordinates
+	 * @throws IOException
+	 */
+	static LDPovGeometry getGeometry(LDPovExportContext ctx, String ldrawId, boolean invert) throws IOException {
+		
+		return getGeometry(ctx, ldrawId, invert, false);
 	}
-
-
 	
-	private static void addPrimitive(String name, Matrix3D t, int ldrcolor) throws IOException 
-	{
-		String material = LDrawColor.getById(ldrcolor).getName();
-		povFile.write(String.format("object { %s\n",name));
-		povFile.write(String.format(Locale.US, "  matrix <%s,%s,%s, %s,%s,%s, %s,%s,%s, %s,%s,%s>\n", 
-				fF(t.getA()),fF(t.getD()),fF(t.getG()),
-				fF(t.getB()),fF(t.getE()),fF(t.getH()),
-				fF(t.getC()),fF(t.getF()),fF(t.getI()),
-				fF(t.getX()),fF(t.getY()),fF(t.getZ())));
-		povFile.write(String.format(Locale.US, "  material { %s }\n}\n\n", material));
+	
+	
+	/**
+	 * Returns flattened geometry of an LDraw file, with or without internal details.
+	 * 
+	 * Sub-files not in cache are flattened with an explicit stack of files 
+	 * being built, not by recursion, so nesting depth is limited only by 
+	 * memory. A file that references itself, directly or through its 
+	 * sub-files, is reported and the circular reference is dropped.
+	 * @param ctx export context
+	 * @param ldrawId LDraw file name
+	 * @param invert true if file is inverted
+	 * @param simplified true to drop internal details, see {@link #isInternalDetail(String)}
+	 * @return geometry in file local coordinates
+	 * @throws IOException
+	 */
+	private static LDPovGeometry getGeometry(LDPovExportContext ctx, String ldrawId, boolean invert, 
+			boolean simplified) throws IOException {
+		
+		String key = LDPovGeometryCache.getKey(ldrawId, LDPovContentKey.get(ctx, ldrawId), invert, simplified, ctx.getPrimitivesKey());
+		LDPovGeometry g = ctx.geometryCache.get(key);
+		if (g != null) {
+			return g;
+		}
+		long start = System.nanoTime();
+		Deque<GeometryFrame> stack = new ArrayDeque<GeometryFrame>();
+		// files on stack, to find circular references
+		Set<String> building = new HashSet<String>();
+		GeometryFrame f = new GeometryFrame(key, ldrawId, invert, simplified);
+		while (f != null) {
+			stack.push(f);
+			building.add(f.key);
+			if (stack.size() > ctx.stats.maxDepth) {
+				ctx.stats.maxDepth = stack.size();
+			}
+			f = null;
+			while (f == null && !stack.isEmpty()) {
+				GeometryFrame top = stack.peek();
+				f = buildGeometry(ctx, top, building);
+				if (f == null) {
+					// file is complete, it goes in place of reference in file below
+					stack.pop();
+					building.remove(top.key);
+					g = top.builder.build();
+					ctx.geometryCache.put(top.key, g);
+					if (!stack.isEmpty()) {
+						stack.peek().addReference(ctx, g);
+					}
+				}
+			}
+		}
+		ctx.stats.tessellationNanos += System.nanoTime() - start;
+		return g;
 	}
 	
 	
-//	private static void addLine(float[] point1, float[] point2, int ldrcolor) throws IOException 
-//	{
-//		// write a line primitive as a cylinder with LDraw material
-//		String material = LDrawColor.getById(ldrcolor).getName();
-//		povFile.write("cylinder {\n");
-//		povFile.write(String.format(Locale.US, "  <%s,%s,%s>, <%s,%s,%s>, 0.1\n", 
-//				fF(point1[0]),fF(point1[1]),fF(point1[2]),
-//				fF(point2[0]),fF(point2[1]),fF(point2[2])));
-//		povFile.write(String.format(Locale.US, "  material { %s }\n}\n\n", "Trans_Black"));		
-//	}
-
 	
 	/**
-	 * A really complex function that uses OpenGL Vertex Buffer Object
-	 * specification to create arrays of float for a part vertex and
-	 * arrays of byte for colors
-	 *
-	 * Triangles with attribute array:
-	 *  - coordinate (x,y,z)
-	 *  - normal (x,y,z)
-	 *  for every vertex
-	 *  Separate color attribute byte array:
-	 *  - color (r,g,b,a)
-	 *  for every vertex
-	 *
-	 * Lines with attribute array:
-	 *  - coordinate (x,y,z)
-	 *  for every vertex
-	 *  Separate color attribute byte array:
-	 *  - color (r,g,b,a)
-	 *  for every vertex
+	 * Returns geometry of a part to write in output, optimized if 
+	 * optimization is enabled, see {@link LDPovGeometryOptimizer}
+	 * @param ctx export context
+	 * @param ldrawId LDraw file name
+	 * @param invert true if file is inverted
+	 * @param simplified true to drop internal details
+	 * @return geometry in file local coordinates
+	 * @throws IOException
+	 */
+	private static LDPovGeometry getRenderGeometry(LDPovExportContext ctx, String ldrawId, boolean invert, 
+			boolean simplified) throws IOException {
+		
+		LDPovGeometry g = getGeometry(ctx, ldrawId, invert, simplified);
+		if (ctx.optimizeTolerance <= 0) {
+			return g;
+		}
+		String key = LDPovGeometryCache.getKey(ldrawId, LDPovContentKey.get(ctx, ldrawId), invert, simplified, ctx.getPrimitivesKey())
+				+ "|o" + ctx.optimizeTolerance;
+		LDPovGeometry o = ctx.geometryCache.get(key);
+		if (o == null) {
+			long start = System.nanoTime();
+			o = LDPovGeometryOptimizer.optimize(g, ctx.optimizeTolerance, ctx.stats);
+			ctx.stats.tessellationNanos += System.nanoTime() - start;
+			ctx.geometryCache.put(key, o);
+		}
+		return o;
+	}
+	
+	
+	
+	/**
+	 * LDraw file being flattened, on the stack of files built by 
+	 * {@link LDPOVRenderedPart#getGeometry(LDPovExportContext, String, boolean, boolean)}
+	 */
+	private static class GeometryFrame {
+		
+		final String key;
+		final String ldrawId;
+		final boolean invert;
+		final boolean simplified;
+		final Iterator<LDPrimitive> primitives;
+		final LDPovGeometry.Builder builder = new LDPovGeometry.Builder();
+		// reference waiting for geometry of file above this one on stack:
+		// a substituted or generated primitive, that needs only bounds, or a sub-file
+		String primitive;
+		boolean generated;
+		float[] matrix = new float[12];
+		int color;
+		
+		
+		GeometryFrame(String key, String ldrawId, boolean invert, boolean simplified) {
+			
+			this.key = key;
+			this.ldrawId = ldrawId;
+			this.invert = invert;
+			this.simplified = simplified;
+			primitives = LDrawPart.getPart(ldrawId).getPrimitives().iterator();
+		}
+		
+		
+		/**
+		 * Adds waiting reference
+		 * @param ctx export context
+		 * @param g geometry of referenced file, null if it can't be used
+		 */
+		void addReference(LDPovExportContext ctx, LDPovGeometry g) {
+			
+			if (primitive != null) {
+				// if file is empty or missing, bounds are a unit cube, like most primitives
+				float[] b = g == null ? null : g.getBounds();
+				builder.addPrimitive(primitive, generated, matrix, color, b == null ? UNITBOX : b);
+			}
+			else if (g != null) {
+				builder.addGeometry(g, matrix, color);
+				ctx.stats.subfilesRecursed++;
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Flattens an LDraw file to triangles and POV-Ray primitives, in file 
+	 * local coordinates, until a referenced file isn't in cache.
+	 * 
+	 * Triangles and primitives with CURRENT or EDGE color keep CURRENT color, 
+	 * to get the color of part or sub-file that uses them. EDGE color of a
+	 * face is the color of its part, as in plain triangle export.
+	 * @param ctx export context
+	 * @param f file being flattened
+	 * @param building keys of files on stack
+	 * @return file that must be flattened before continuing, null if f is complete
 	 * @throws IOException 
 	 * 
 	 */ 
-	private static void renderPart(Collection<LDPrimitive> pt, int color, Matrix3D m, boolean invert) throws IOException {
+	private static GeometryFrame buildGeometry(LDPovExportContext ctx, GeometryFrame f, Set<String> building) 
+			throws IOException {
 
-		float[] p1, p2, p3;
+		LDPovGeometry.Builder gb = f.builder;
 		int pc;
 
-		//System.out.println(pt);
-		for (LDPrimitive prim : pt) {
+		while (f.primitives.hasNext()) {
+			LDPrimitive prim = f.primitives.next();
 			switch (prim.getType()) {
 			case TRIANGLE:
 			// triangle:
-				//System.out.println("Triangle-"+invert);
-				if (prim.getColorIndex() == LDrawColor.CURRENT) {
-					// current color
-					pc = color;
-				}
-				else if (prim.getColorIndex() == LDrawColor.EDGE) {
-					// edge color
-					pc = color;
+			case QUAD:
+			// quad, rendered as two adjacent triangles:
+				if (prim.getColorIndex() == LDrawColor.CURRENT 
+						|| prim.getColorIndex() == LDrawColor.EDGE) {
+					// current or edge color
+					pc = LDrawColor.CURRENT;
 				}
 				else {
 					// specific color
 					pc = prim.getColorIndex();
 				}
-				p1 = m.transformPoint(prim.getPointsFV()[0], prim.getPointsFV()[1],prim.getPointsFV()[2]);
-				p2 = m.transformPoint(prim.getPointsFV()[3], prim.getPointsFV()[4],prim.getPointsFV()[5]);
-				p3 = m.transformPoint(prim.getPointsFV()[6], prim.getPointsFV()[7],prim.getPointsFV()[8]);
-				// place every vertex with color and normal on array
-
-				addTriangle(p1, p2, p3, pc);
-				break;
-			case QUAD:
-			// quad, rendered as two adjacent triangles:
-				//System.out.println("Quad-"+invert);
-				if (prim.getColorIndex() == LDrawColor.CURRENT) {
-					// current color
-					pc = color;
-				}
-				else if (prim.getColorIndex() == LDrawColor.EDGE) {
-					// edge color
-					pc = color;
+				if (prim.getType() == LDrawCommand.TRIANGLE) {
+					gb.addTriangle(prim.getPointsFV(), 0, pc);
 				}
 				else {
-					// specific color
-					pc = prim.getColorIndex();
+					gb.addQuad(prim.getPointsFV(), pc);
+					ctx.stats.quadsSplit++;
 				}
-				p1 = m.transformPoint(prim.getPointsFV()[0], prim.getPointsFV()[1],prim.getPointsFV()[2]);
-				p2 = m.transformPoint(prim.getPointsFV()[3], prim.getPointsFV()[4],prim.getPointsFV()[5]);
-				p3 = m.transformPoint(prim.getPointsFV()[6], prim.getPointsFV()[7],prim.getPointsFV()[8]);
-				// place every vertex with color and normal on array
-
-				addTriangle(p1, p2, p3, pc);
-				
-				// place every vertex with color and normal on array
-				// now vertex 0,2,3
-				p1 = m.transformPoint(prim.getPointsFV()[0], prim.getPointsFV()[1],prim.getPointsFV()[2]);
-				p2 = m.transformPoint(prim.getPointsFV()[6], prim.getPointsFV()[7],prim.getPointsFV()[8]);
-				p3 = m.transformPoint(prim.getPointsFV()[9], prim.getPointsFV()[10],prim.getPointsFV()[11]);
-
-				addTriangle(p1, p2, p3, pc);
-				
 				break;
 			case REFERENCE:
 			// sub-part
-				if (prim.getTransformation().determinant() == 0) {
-					prim = prim.setTransform(prim.getTransformation().correctSingular());
-					singular = true;
+				Matrix3D t = prim.getTransformation();
+				float det = t.determinant();
+				if (det == 0) {
+					t = t.correctSingular();
+					prim = prim.setTransform(t);
+					det = t.determinant();
+					gb.setSingular();
+					ctx.stats.singularMatrices++;
 				}
-				int localColor = 0;
 				if (prim.getColorIndex() == LDrawColor.CURRENT) {
 					// current color
-					localColor = color;
+					f.color = LDrawColor.CURRENT;
 				}
 				else if (prim.getColorIndex() == LDrawColor.EDGE) {
 					// edge color is illegal in sub-part!
-					Logger.getGlobal().log(Level.WARNING,"[LDPOVRenderedPart] Illegal EDGE color in sub-part:\n"+prim.toString());
-					localColor = color;
+					ctx.warning("Illegal EDGE color in sub-part: "+prim.toString());
+					f.color = LDrawColor.CURRENT;
 				}
 				else {
 					// specific color
-					localColor = prim.getColorIndex();
-				}
-				String p = prim.getLdrawId().toLowerCase();
-				//System.out.println(p);
-				if (p.startsWith("8\\") || p.startsWith("48\\")) {
-					p = p.substring(p.indexOf('\\')+1);
+					f.color = prim.getColorIndex();
 				}
-				if (substPrimitives.contains(p) || genPrimitives.contains(p)) {
-					//System.out.println("Present = "+p);
-					addPrimitive("LD"+p.substring(0, p.length()-4).toUpperCase().replace('-', '_'),prim.getTransformation().transform(m), localColor);
+				LDPovGeometry.getMatrix(t, f.matrix);
+				String p = getPrimitiveName(prim.getLdrawId());
+				if (f.simplified && isInternalDetail(p)) {
 					break;
 				}
-		        Matcher ringConeMatch = ringConePattern.matcher(p);
-		        if (ringConeMatch.lookingAt()) {
-		        	if (ringConeMatch.groupCount() == 4) {
-		        		if (ringConeMatch.group(3).equalsIgnoreCase("ring") 
-		        				|| ringConeMatch.group(3).equalsIgnoreCase("rin")
-		        				|| ringConeMatch.group(3).equalsIgnoreCase("ri")
-		        				|| ringConeMatch.group(3).equalsIgnoreCase("r")) {
-		        			// it is a ring
-		        			int r = Integer.parseInt(ringConeMatch.group(4));
-		        			int fraction = Integer.parseInt(ringConeMatch.group(1));
-		        			int total = Integer.parseInt(ringConeMatch.group(2));
-	        				addGeneratedRing(p,r,fraction,total);
-		        		}
-		        		else if (ringConeMatch.group(3).equalsIgnoreCase("con") 
-		        				|| ringConeMatch.group(3).equalsIgnoreCase("co")) {
-		        			// it is a ring
-		        			int r = Integer.parseInt(ringConeMatch.group(4));
-		        			int fraction = Integer.parseInt(ringConeMatch.group(1));
-		        			int total = Integer.parseInt(ringConeMatch.group(2));
-	        				addGeneratedCone(p,r,fraction,total);
-		        		}
-		        	}
-		        }
-		        Matcher cylMatch = cylPattern.matcher(p);
-		        if (cylMatch.lookingAt()) {
-		        	if (cylMatch.groupCount() == 3) {
-		        		if (cylMatch.group(3).equalsIgnoreCase("cyli") 
-		        				|| cylMatch.group(3).equalsIgnoreCase("cylo")) {
-		        			// it is a cylinder
-		        			int fraction = Integer.parseInt(cylMatch.group(1));
-		        			int total = Integer.parseInt(cylMatch.group(2));
-	        				addGeneratedCylinder(p, fraction, total);
-		        		}
-		        	}
-		        }
-		        Matcher discMatch = discPattern.matcher(p);
-		        if (discMatch.lookingAt()) {
-		        	if (discMatch.groupCount() == 3) {
-		        		if (discMatch.group(3).equalsIgnoreCase("disc")) {
-		        			// it is a disc
-		        			int fraction = Integer.parseInt(discMatch.group(1));
-		        			int total = Integer.parseInt(discMatch.group(2));
-	        				addGeneratedDisc(p,fraction,total);
-		        		}
-		        	}
-		        }
-		        Matcher torusMatch = torusPattern.matcher(p);
-		        if (torusMatch.lookingAt()) {
-		        	if (torusMatch.groupCount() == 3) {
-	        			int fraction = Integer.parseInt(torusMatch.group(1));
-	        			float minorRadius = Integer.parseInt(torusMatch.group(3))/10000.0f;
-        				addGeneratedTorus(p,torusMatch.group(2),fraction,minorRadius);
-		        		
-		        	}
-		        }
-
-				if (genPrimitives.contains(p)) {
-					System.out.println("Generated = "+p);
-					addPrimitive("LD"+p.substring(0, p.length()-4).toUpperCase().replace('-', '_'),prim.getTransformation().transform(m), localColor);
-					break;
+				GeometryFrame sub;
+				if (ctx.substPrimitives.contains(p)) {
+					f.primitive = p;
+					f.generated = false;
+					sub = getReference(ctx, f, prim.getLdrawId(), false, false, building);
 				}
-				if (prim.getTransformation().determinant() < 0) {
-					renderPart(LDrawPart.getPart(prim.getLdrawId()).getPrimitives(), 
-							localColor, prim.getTransformation().transform(m), prim.isInvert()^(!invert));
+				else if (ctx.genDeclares.containsKey(p) || generatePrimitive(ctx, p)) {
+					f.primitive = p;
+					f.generated = true;
+					sub = getReference(ctx, f, prim.getLdrawId(), false, false, building);
 				}
 				else {
-					renderPart(LDrawPart.getPart(prim.getLdrawId()).getPrimitives(), 
-							localColor, prim.getTransformation().transform(m), prim.isInvert()^invert);
+					boolean subInvert;
+					if (det < 0) {
+						subInvert = prim.isInvert()^(!f.invert);
+					}
+					else {
+						subInvert = prim.isInvert()^f.invert;
+					}
+					f.primitive = null;
+					sub = getReference(ctx, f, prim.getLdrawId(), subInvert, f.simplified, building);
+				}
+				if (sub != null) {
+					return sub;
 				}
 				break;
 			case LINE:
@@ -598,33 +655,360 @@ public class LDPOVRenderedPart {
 				break;
 			}
 		}
+		return null;
+	}
+	
+	
+	
+	/**
+	 * Adds a reference to a file already in cache, or prepares file 
+	 * to be flattened
+	 * @param ctx export context
+	 * @param f file with reference
+	 * @param ldrawId referenced file
+	 * @param invert true if referenced file is inverted
+	 * @param simplified true to drop internal details
+	 * @param building keys of files on stack
+	 * @return referenced file to flatten, null if reference is done
+	 */
+	private static GeometryFrame getReference(LDPovExportContext ctx, GeometryFrame f, String ldrawId, 
+			boolean invert, boolean simplified, Set<String> building) {
+		
+		String key = LDPovGeometryCache.getKey(ldrawId, LDPovContentKey.get(ctx, ldrawId), invert, simplified, ctx.getPrimitivesKey());
+		LDPovGeometry g = ctx.geometryCache.get(key);
+		if (g == null && building.contains(key)) {
+			ctx.warning("Circular reference to "+ldrawId+" in "+f.ldrawId);
+		}
+		else if (g == null) {
+			return new GeometryFrame(key, ldrawId, invert, simplified);
+		}
+		f.addReference(ctx, g);
+		return null;
+	}
+
+	
+	
+	/**
+	 * Writes placed geometry
+	 * @param ctx export context
+	 * @param g geometry to write
+	 * @param color color for CURRENT color in geometry, ENCLOSING to leave color to enclosing object
+	 * @param m geometry transformation
+	 * @throws IOException
+	 */
+	static void renderPart(LDPovExportContext ctx, LDPovGeometry g, int color, float[] m) throws IOException {
+		
+		float[] p = ctx.tmpMatrix;
+		float[] p1 = ctx.tmpPoints[0];
+		float[] p2 = ctx.tmpPoints[1];
+		float[] p3 = ctx.tmpPoints[2];
+		float[] box = ctx.tmpBox;
+		float[] t = g.getTriangles();
+		int[] tc = g.getTriangleColors();
+		for (int i=0;i<g.getTriangleCount();i++) {
+			LDPovGeometry.transformPoint(m, t, i*9, p1, 0);
+			LDPovGeometry.transformPoint(m, t, i*9+3, p2, 0);
+			LDPovGeometry.transformPoint(m, t, i*9+6, p3, 0);
+			ctx.extendBounds(p1[0], p1[1], p1[2]);
+			ctx.extendBounds(p2[0], p2[1], p2[2]);
+			ctx.extendBounds(p3[0], p3[1], p3[2]);
+			addTriangle(ctx, p1, p2, p3, tc[i] == LDrawColor.CURRENT ? color : tc[i]);
+		}
+		float[] uv = g.getPolygonPoints();
+		int[] ps = g.getPolygonStart();
+		int[] pn = g.getPolygonSize();
+		int[] pgc = g.getPolygonColors();
+		for (int i=0;i<g.getPolygonCount();i++) {
+			LDPovGeometry.compose(m, g.getPolygonMatrix(), i*12, p, 0);
+			int c = pgc[i] == LDrawColor.CURRENT ? color : pgc[i];
+			for (int k=0;k<pn[i];k++) {
+				LDPovGeometry.getPolygonPoint(p, uv, (ps[i]+k)*2, p1);
+				ctx.extendBounds(p1[0], p1[1], p1[2]);
+			}
+			if (ctx.mesh != null) {
+				// mesh2 has only triangles, polygon is convex
+				LDPovGeometry.getPolygonPoint(p, uv, ps[i]*2, p1);
+				for (int k=1;k<pn[i]-1;k++) {
+					LDPovGeometry.getPolygonPoint(p, uv, (ps[i]+k)*2, p2);
+					LDPovGeometry.getPolygonPoint(p, uv, (ps[i]+k+1)*2, p3);
+					addTriangle(ctx, p1, p2, p3, c);
+				}
+			}
+			else {
+				addPolygon(ctx, uv, ps[i], pn[i], p, c);
+			}
+		}
+		String[] names = g.getPrimitives();
+		boolean[] gen = g.getGenerated();
+		float[] pm = g.getPrimitiveMatrix();
+		int[] pc = g.getPrimitiveColors();
+		float[][] pb = g.getPrimitiveBounds();
+		for (int i=0;i<g.getPrimitiveCount();i++) {
+			if (gen[i]) {
+				// geometry can come from cache of a previous export
+				if (!ctx.genDeclares.containsKey(names[i])) {
+					generatePrimitive(ctx, names[i]);
+				}
+				ctx.usedGenerated.add(names[i]);
+				ctx.stats.primitivesGenerated++;
+			}
+			else {
+				ctx.stats.primitivesSubstituted++;
+			}
+			LDPovGeometry.compose(m, pm, i*12, p, 0);
+			LDPovGeometry.transformBounds(p, pb[i], box);
+			ctx.extendBounds(box);
+			addPrimitive(ctx, getPrimitiveDeclare(ctx, names[i]), p, 0, pc[i] == LDrawColor.CURRENT ? color : pc[i]);
+		}
+		if (g.isSingular()) {
+			ctx.singular = true;
+		}
 	}
 
 	
-	public static void resetPrimitives() {
+	/**
+	 * Reads primitive substitution list from primitive file in current directory
+	 * @return names of LDraw primitives with a substitute, empty if there is no file
+	 */
+	static Set<String> readSubstPrimitives() {
 		
+		Set<String> substPrimitives = new TreeSet<String>();
 		try {
-			genPrimitives.clear();
 			InputStream is = new FileInputStream(PRIMSUBST);
-			initPrimitives(is); 
+			try {
+				initPrimitives(is, substPrimitives);
+			}
+			finally {
+				is.close();
+			}
 		} catch (IOException e) {
 			// ignored if no file
 		}
-
+		return substPrimitives;
 	}
 
 	
 	
 	
-	public static void newRenderedPart(LDPrimitive p, BufferedWriter bw, Matrix3D viewMatrix) throws IOException {
+	/**
+	 * Writes a part with geometry placed in world coordinates
+	 * @param ctx export context
+	 * @param p part placement
+	 * @param bw output
+	 * @param viewMatrix current view transformation
+	 * @param useMesh if true part triangles are written as mesh2 objects
+	 * @throws IOException
+	 */
+	public static void newRenderedPart(LDPovExportContext ctx, LDPrimitive p, BufferedWriter bw, Matrix3D viewMatrix, boolean useMesh) throws IOException {
+		
+		ctx.singular = false;
+		ctx.povFile = getPovWriter(bw);
+		ctx.mesh = useMesh ? ctx.getMesh() : null;
+		ctx.resetBounds();
+		ctx.povFile.write("// Part: ");
+		ctx.povFile.write(p.toString());
+		ctx.povFile.newLine();
+		float[] m = getPlacement(ctx, p, viewMatrix);
+		boolean invert = p.getTransformation().determinant() < 0;
+		LDPovGeometry g = getGeometry(ctx, p.getLdrawId(), invert);
+		switch (getDetail(ctx, g, m)) {
+		case LOD_BOX:
+			LDPovGeometry.transformBounds(m, g.getBounds(), ctx.tmpBox);
+			ctx.extendBounds(ctx.tmpBox);
+			addBox(ctx, g.getBounds(), m, p.getColorIndex());
+			break;
+		case LOD_SIMPLIFIED:
+			renderPart(ctx, getRenderGeometry(ctx, p.getLdrawId(), invert, true), p.getColorIndex(), m);
+			break;
+		default:
+			renderPart(ctx, getRenderGeometry(ctx, p.getLdrawId(), invert, false), p.getColorIndex(), m);
+			break;
+		}
+		if (ctx.mesh != null) {
+			addMesh(ctx);
+			ctx.mesh = null;
+		}
+		if (ctx.singular) 
+			ctx.warning("Singular matrix detected: "+p.toString());
+		if (ctx.povFile != bw)
+			ctx.povFile.flush();
+	}
+	
+	
+	
+	/**
+	 * Returns part placement in POV-Ray coordinates
+	 * @param ctx export context
+	 * @param p part placement
+	 * @param viewMatrix current view transformation
+	 * @return part transformation moved by context offset, followed by view, 
+	 * with LDraw to POV-Ray axis change
+	 */
+	static float[] getPlacement(LDPovExportContext ctx, LDPrimitive p, Matrix3D viewMatrix) {
+		
+		Matrix3D t = p.getTransformation();
+		if (t.determinant() == 0) {
+			t = t.correctSingular();
+			ctx.singular = true;
+		}
+		float[] m = new float[12];
+		LDPovGeometry.getMatrix(t, ctx.tmpMatrix);
+		ctx.tmpMatrix[9] += ctx.offset[0];
+		ctx.tmpMatrix[10] += ctx.offset[1];
+		ctx.tmpMatrix[11] += ctx.offset[2];
+		LDPovGeometry.compose(ctx.getPlacementMatrix(viewMatrix), ctx.tmpMatrix, 0, m, 0);
+		return m;
+	}
+	
+	
+	
+	/**
+	 * Returns a POV-Ray writer for output
+	 * @param bw output
+	 * @return bw itself if it is a {@link LDPovWriter}, otherwise a writer that buffers on bw
+	 */
+	private static LDPovWriter getPovWriter(BufferedWriter bw) {
+		
+		if (bw instanceof LDPovWriter) {
+			return (LDPovWriter) bw;
+		}
+		return new LDPovWriter(bw);
+	}
+	
+	
+	
+	/**
+	 * Returns POV-Ray identifier used to declare part geometry
+	 * @param ldrawId LDraw part id
+	 * @return uppercase identifier, with every non-alphanumeric char changed to '_'
+	 */
+	public static String getPartDeclareName(String ldrawId) {
+		
+		String id = ldrawId.toLowerCase();
+		if (id.endsWith(".dat") || id.endsWith(".ldr")) {
+			id = id.substring(0, id.length()-4);
+		}
+		StringBuilder sb = new StringBuilder("LDPART_");
+		for (char c : id.toUpperCase().toCharArray()) {
+			if ((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+				sb.append(c);
+			}
+			else {
+				sb.append('_');
+			}
+		}
+		return sb.toString();
+	}
+	
+	
+	
+	/**
+	 * Writes part geometry in part local coordinates as a POV-Ray declare.
+	 * Triangles and primitives in CURRENT color get no material, so color 
+	 * is assigned by every instance.
+	 * @param ctx export context
+	 * @param ldrawId LDraw part id
+	 * @param declare POV-Ray identifier for part
+	 * @param bw output
+	 * @param useMesh if true part triangles are written as mesh2 objects
+	 * @throws IOException
+	 */
+	public static void newPartDeclare(LDPovExportContext ctx, String ldrawId, String declare, BufferedWriter bw, boolean useMesh) throws IOException {
+		
+		newGeometryDeclare(ctx, getRenderGeometry(ctx, ldrawId, false, false), ldrawId, declare, bw, useMesh);
+		if (ctx.singular) 
+			ctx.warning("Singular matrix detected in part: "+ldrawId);
+	}
+	
+	
+	
+	/**
+	 * Writes flattened part geometry as a POV-Ray declare
+	 * @param ctx export context
+	 * @param g part geometry, in part local coordinates
+	 * @param ldrawId LDraw part id, for comment
+	 * @param declare POV-Ray identifier for part
+	 * @param bw output
+	 * @param useMesh if true part triangles are written as mesh2 objects
+	 * @throws IOException
+	 */
+	static void newGeometryDeclare(LDPovExportContext ctx, LDPovGeometry g, String ldrawId, String declare, 
+			BufferedWriter bw, boolean useMesh) throws IOException {
+		
+		ctx.singular = false;
+		ctx.povFile = getPovWriter(bw);
+		ctx.mesh = useMesh ? ctx.getMesh() : null;
+		ctx.povFile.write("// Part declare: "+ldrawId);
+		ctx.povFile.newLine();
+		ctx.povFile.write("#declare "+declare+"=union {\n");
+		renderPart(ctx, g, ENCLOSING, IDENTITY);
+		if (ctx.mesh != null) {
+			addMesh(ctx);
+			ctx.mesh = null;
+		}
+		ctx.povFile.write("}\n\n");
+		if (ctx.povFile != bw)
+			ctx.povFile.flush();
+	}
+	
+	
+	
+	/**
+	 * Writes a placed instance of a part already declared with {@link #newPartDeclare(LDPovExportContext, String, String, BufferedWriter, boolean)} 
+	 * @param ctx export context
+	 * @param p part placement
+	 * @param declare POV-Ray identifier for part
+	 * @param bw output
+	 * @param viewMatrix current view transformation
+	 * @throws IOException
+	 */
+	public static void newPartInstance(LDPovExportContext ctx, LDPrimitive p, String declare, BufferedWriter bw, Matrix3D viewMatrix) throws IOException {
 		
-		singular = false;
-		povFile = bw;
-		povFile.write("// Part: "+p.toString());
-		povFile.newLine();
-		renderPart(p.getPrimitives(),p.getColorIndex(),/*pp.getTransformation()*/ viewMatrix.scale(-1, -1, -1),false);
+		ctx.singular = false;
+		float[] m = getPlacement(ctx, p, viewMatrix);
+		boolean singular = ctx.singular;
+		newGeometryInstance(ctx, getGeometry(ctx, p.getLdrawId(), false), p.toString(), m, 
+				p.getColorIndex(), declare, bw);
 		if (singular) 
-			Logger.getGlobal().log(Level.WARNING, "Singular matrix detected: "+p.toString());
+			ctx.warning("Singular matrix detected: "+p.toString());
+	}
+	
+	
+	
+	/**
+	 * Writes a placed instance of a part geometry already declared with 
+	 * {@link #newGeometryDeclare(LDPovExportContext, LDPovGeometry, String, String, BufferedWriter, boolean)} 
+	 * @param ctx export context
+	 * @param g part geometry, for bounds and level of detail
+	 * @param part part description, for comment
+	 * @param m part placement in POV-Ray coordinates
+	 * @param color LDraw color
+	 * @param declare POV-Ray identifier for part
+	 * @param bw output
+	 * @throws IOException
+	 */
+	static void newGeometryInstance(LDPovExportContext ctx, LDPovGeometry g, String part, float[] m, int color,
+			String declare, BufferedWriter bw) throws IOException {
+		
+		ctx.povFile = getPovWriter(bw);
+		ctx.povFile.write("// Part: ");
+		ctx.povFile.write(part);
+		ctx.povFile.newLine();
+		float[] b = g.getBounds();
+		// declared geometry is shared, so only box level can be used
+		if (getDetail(ctx, g, m) == LOD_BOX) {
+			addBox(ctx, b, m, color);
+		}
+		else {
+			addPrimitive(ctx, declare, m, 0, color);
+		}
+		ctx.resetBounds();
+		if (b != null) {
+			LDPovGeometry.transformBounds(m, b, ctx.tmpBox);
+			ctx.extendBounds(ctx.tmpBox);
+		}
+		if (ctx.povFile != bw)
+			ctx.povFile.flush();
 	}
 	
 	
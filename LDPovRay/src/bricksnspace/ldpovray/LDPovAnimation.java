@@ -0,0 +1,358 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import bricksnspace.j3dgeom.Matrix3D;
+
+
+/**
+ * Animation of an exported scene, driven by POV-Ray clock.
+ *
+ * Model geometry is written once, in model coordinates, and every part
+ * is moved by a transformation that depends on clock, so all frames are
+ * rendered from the same scene file, see
+ * {@link LDPovRenderer#setAnimation(LDPovAnimation)}.
+ *
+ * Clock goes from 0 to 1. Animation has:
+ * <ul>
+ * <li>camera keys: model rotation in degrees around POV-Ray axes, after
+ * view matrix, and zoom factor; values are linearly interpolated</li>
+ * <li>explode keys: distance parts are moved away from model center,
+ * in LDraw units</li>
+ * <li>build: parts appear one after another, in model order or at
+ * given times</li>
+ * </ul>
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovAnimation {
+
+	// time -> rotation x,y,z and zoom
+	private TreeMap<Float,float[]> cameraKeys = new TreeMap<Float,float[]>();
+	// time -> explode distance
+	private TreeMap<Float,Float> explodeKeys = new TreeMap<Float,Float>();
+	private boolean build = false;
+	private float buildStart = 0;
+	private float buildEnd = 1;
+	// part index -> time part appears
+	private Map<Integer,Float> partTimes = new HashMap<Integer,Float>();
+	private int frames = 120;
+	private boolean cyclic = false;
+
+
+
+	/**
+	 * Returns a turntable animation: model makes a full turn around
+	 * vertical axis
+	 * @param frames number of frames
+	 * @param zoomFactor zoom factor, see {@link LDPovRenderer#setPerspective(float)}
+	 * @return animation
+	 */
+	public static LDPovAnimation getTurntable(int frames, float zoomFactor) {
+
+		LDPovAnimation a = new LDPovAnimation();
+		a.setFrames(frames);
+		// last frame isn't the same of first one
+		a.setCyclic(true);
+		a.addCameraKey(0, 0, 0, 0, zoomFactor);
+		a.addCameraKey(1, 0, 360, 0, zoomFactor);
+		return a;
+	}
+
+
+
+	/**
+	 * Adds a camera key
+	 * @param time clock value, from 0 to 1
+	 * @param rotX rotation around x axis, degrees
+	 * @param rotY rotation around y axis, degrees
+	 * @param rotZ rotation around z axis, degrees
+	 * @param zoomFactor zoom factor, see {@link LDPovRenderer#setPerspective(float)}
+	 */
+	public void addCameraKey(float time, float rotX, float rotY, float rotZ, float zoomFactor) {
+
+		checkTime(time);
+		cameraKeys.put(time, new float[] { rotX, rotY, rotZ, zoomFactor });
+	}
+
+
+
+	/**
+	 * Adds an explode key
+	 * @param time clock value, from 0 to 1
+	 * @param distance distance of parts from their place, in LDraw units
+	 */
+	public void addExplodeKey(float time, float distance) {
+
+		checkTime(time);
+		explodeKeys.put(time, distance);
+	}
+
+
+
+	/**
+	 * Parts appear one after another, in model order, from start to end time
+	 * @param start time first part appears
+	 * @param end time last part appears
+	 */
+	public void setBuild(float start, float end) {
+
+		checkTime(start);
+		checkTime(end);
+		build = true;
+		buildStart = start;
+		buildEnd = end;
+	}
+
+
+
+	/**
+	 * Sets time a part appears, in place of time from model order.
+	 * Enables build animation, if it isn't enabled.
+	 * @param part part index, in model order, only parts are counted
+	 * @param time clock value, from 0 to 1
+	 */
+	public void setPartTime(int part, float time) {
+
+		checkTime(time);
+		build = true;
+		partTimes.put(part, time);
+	}
+
+
+
+	public boolean isBuild() {
+		return build;
+	}
+
+
+	public int getFrames() {
+		return frames;
+	}
+
+
+	public void setFrames(int frames) {
+
+		if (frames < 1)
+			throw new IllegalArgumentException("Invalid frame count "+frames);
+		this.frames = frames;
+	}
+
+
+	public boolean isCyclic() {
+		return cyclic;
+	}
+
+
+	/**
+	 * @param cyclic true if animation loops, so last frame is one step before clock 1
+	 */
+	public void setCyclic(boolean cyclic) {
+		this.cyclic = cyclic;
+	}
+
+
+
+	private static void checkTime(float time) {
+
+		if (time < 0 || time > 1)
+			throw new IllegalArgumentException("Animation time must be from 0 to 1: "+time);
+	}
+
+
+
+	/**
+	 * @param defaultZoom zoom factor if there are no camera keys
+	 * @return zoom factor at clock 0
+	 */
+	float getZoomFactor(float defaultZoom) {
+
+		if (cameraKeys.isEmpty())
+			return defaultZoom;
+		return cameraKeys.firstEntry().getValue()[3];
+	}
+
+
+
+	/**
+	 * Returns time a part appears
+	 * @param part part index, in model order
+	 * @param count number of parts in model
+	 * @return clock value
+	 */
+	float getPartTime(int part, int count) {
+
+		Float t = partTimes.get(part);
+		if (t != null)
+			return t;
+		if (count <= 1)
+			return buildStart;
+		return buildStart + (buildEnd - buildStart) * part / (count - 1);
+	}
+
+
+
+	/**
+	 * Writes a linear spline, a spline with a single key is constant
+	 */
+	private static void writeSpline(LDPovWriter w, String name, TreeMap<Float,float[]> keys) throws IOException {
+
+		w.write("#declare ");
+		w.write(name);
+		w.write(" = spline {\n  linear_spline\n");
+		for (Map.Entry<Float,float[]> e : keys.entrySet()) {
+			float[] v = e.getValue();
+			w.write("  ");
+			w.writeFloat(e.getKey());
+			w.write(", ");
+			w.writeVector(v[0], v[1], v[2]);
+			w.write('\n');
+		}
+		if (keys.size() == 1) {
+			float[] v = keys.firstEntry().getValue();
+			w.write("  ");
+			w.writeFloat(keys.firstKey() < 1 ? 1 : 0);
+			w.write(", ");
+			w.writeVector(v[0], v[1], v[2]);
+			w.write('\n');
+		}
+		w.write("}\n");
+	}
+
+
+
+	/**
+	 * Writes declares for current frame: view transformation LDView,
+	 * zoom LDZoom and explode distance LDExplode
+	 * @param w output
+	 * @param viewMatrix view transformation, before camera rotation
+	 * @param defaultZoom zoom factor if there are no camera keys
+	 * @throws IOException
+	 */
+	void writeDeclares(LDPovWriter w, Matrix3D viewMatrix, float defaultZoom) throws IOException {
+
+		w.write("// animation\n");
+		TreeMap<Float,float[]> camera = new TreeMap<Float,float[]>();
+		TreeMap<Float,float[]> zoom = new TreeMap<Float,float[]>();
+		for (Map.Entry<Float,float[]> e : cameraKeys.entrySet()) {
+			float[] v = e.getValue();
+			camera.put(e.getKey(), new float[] { v[0], v[1], v[2] });
+			zoom.put(e.getKey(), new float[] { v[3], 0, 0 });
+		}
+		if (camera.isEmpty()) {
+			camera.put(0f, new float[] { 0, 0, 0 });
+			zoom.put(0f, new float[] { defaultZoom, 0, 0 });
+		}
+		TreeMap<Float,float[]> explode = new TreeMap<Float,float[]>();
+		for (Map.Entry<Float,Float> e : explodeKeys.entrySet()) {
+			explode.put(e.getKey(), new float[] { e.getValue(), 0, 0 });
+		}
+		if (explode.isEmpty()) {
+			explode.put(0f, new float[] { 0, 0, 0 });
+		}
+		writeSpline(w, "LDCameraPath", camera);
+		writeSpline(w, "LDZoomPath", zoom);
+		writeSpline(w, "LDExplodePath", explode);
+		w.write("#declare LDZoom = LDZoomPath(clock).x;\n");
+		w.write("#declare LDExplode = LDExplodePath(clock).x;\n");
+		// parts are in model coordinates, with LDraw to POV-Ray axis change
+		float[] m = LDPovGeometry.getMatrix(viewMatrix);
+		w.write("#declare LDView = transform {\n  matrix <");
+		w.writeFloat(m[0]);
+		w.write(',');
+		w.writeFloat(m[3]);
+		w.write(',');
+		w.writeFloat(m[6]);
+		w.write(", ");
+		w.writeFloat(m[1]);
+		w.write(',');
+		w.writeFloat(m[4]);
+		w.write(',');
+		w.writeFloat(m[7]);
+		w.write(", ");
+		w.writeFloat(m[2]);
+		w.write(',');
+		w.writeFloat(m[5]);
+		w.write(',');
+		w.writeFloat(m[8]);
+		w.write(", ");
+		w.writeFloat(-m[9]);
+		w.write(',');
+		w.writeFloat(-m[10]);
+		w.write(',');
+		w.writeFloat(-m[11]);
+		w.write(">\n  rotate LDCameraPath(clock)\n}\n\n");
+	}
+
+
+
+	/**
+	 * Writes start of an animated part
+	 * @param w output
+	 * @param part part index, in model order
+	 * @param count number of parts in model
+	 * @throws IOException
+	 */
+	void writePartStart(LDPovWriter w, int part, int count) throws IOException {
+
+		if (build) {
+			w.write("#if (clock >= ");
+			w.writeFloat(getPartTime(part, count));
+			w.write(")\n");
+		}
+		w.write("union {\n");
+	}
+
+
+
+	/**
+	 * Writes end of an animated part, with its transformation
+	 * @param w output
+	 * @param bounds part bounds in model coordinates, null if part is empty
+	 * @param center model center
+	 * @throws IOException
+	 */
+	void writePartEnd(LDPovWriter w, float[] bounds, float[] center) throws IOException {
+
+		if (bounds != null && !explodeKeys.isEmpty()) {
+			float dx = (bounds[0] + bounds[3]) / 2 - center[0];
+			float dy = (bounds[1] + bounds[4]) / 2 - center[1];
+			float dz = (bounds[2] + bounds[5]) / 2 - center[2];
+			float len = (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+			if (len > 0) {
+				w.write("  translate ");
+				w.writeVector(dx/len, dy/len, dz/len);
+				w.write("*LDExplode\n");
+			}
+		}
+		w.write("  transform { LDView }\n}\n");
+		if (build) {
+			w.write("#end\n");
+		}
+		w.write('\n');
+	}
+
+}
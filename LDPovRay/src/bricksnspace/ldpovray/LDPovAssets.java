@@ -0,0 +1,309 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Support files for POV-Ray scenes: header, materials, primitives and font.
+ *
+ * A file is written only if its content differs from the file already in
+ * directory, compared by SHA-1 digest. Files written or checked are
+ * remembered with their size and modification time, so later exports to
+ * the same directory don't read them again. Materials include is generated
+ * again only if LDraw color table changes.
+ *
+ * Files are written to a temporary file and then renamed, so another
+ * process never reads a partial file.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovAssets {
+
+	public final static String POVHEADER = "jbbheader.inc";
+	public final static String POVPRIMITIVES = "jbbprimitives.inc";
+	public final static String POVFONT = "lego-font.ttf";
+
+	private static final Object lock = new Object();
+
+	// canonical file path -> state of file when it was written or checked
+	private static Map<String,Stamp> known = new HashMap<String,Stamp>();
+
+	// resource name -> content digest
+	private static Map<String,Digest> resourceDigests = new HashMap<String,Digest>();
+
+	// materials include for last LDraw color table seen
+	private static String materialsKey = null;
+	private static byte[] materials;
+	private static Digest materialsDigest;
+
+	private static long written = 0;
+	private static long skipped = 0;
+
+
+	/**
+	 * Content digest, with content length
+	 */
+	private static class Digest {
+
+		final byte[] value;
+		final long length;
+
+		Digest(byte[] value, long length) {
+			this.value = value;
+			this.length = length;
+		}
+	}
+
+
+	private static class Stamp {
+
+		long length;
+		long modified;
+		byte[] digest;
+
+		Stamp(File f, Digest d) {
+			length = f.length();
+			modified = f.lastModified();
+			digest = d.value;
+		}
+
+		boolean isCurrent(File f, Digest d) {
+			return f.length() == length && f.lastModified() == modified
+					&& Arrays.equals(digest, d.value);
+		}
+	}
+
+
+
+	private LDPovAssets() {
+		// static methods only
+	}
+
+
+
+	/**
+	 * Writes support files in a directory, if they are missing or changed
+	 * @param dir destination directory, created if it doesn't exists
+	 * @throws IOException
+	 */
+	public static void generate(File dir) throws IOException {
+
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Unable to create directory " + dir);
+		}
+		// materials depend on LDraw color table, that can change at runtime
+		String key = LDMaterials.getColorTableKey();
+		synchronized (lock) {
+			if (!key.equals(materialsKey)) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(65536);
+				LDPovWriter w = new LDPovWriter(new LDPovByteWriter(out));
+				LDMaterials.writeMaterials(w);
+				w.close();
+				materials = out.toByteArray();
+				materialsDigest = new Digest(getDigest().digest(materials), materials.length);
+				materialsKey = key;
+			}
+			writeResource(dir, POVHEADER);
+			writeResource(dir, POVPRIMITIVES);
+			writeResource(dir, POVFONT);
+			writeContent(dir, LDMaterials.MATERIALSFILE, materials, materialsDigest);
+		}
+	}
+
+
+
+	/**
+	 * @return number of support files written
+	 */
+	public static long getWritten() {
+		synchronized (lock) {
+			return written;
+		}
+	}
+
+
+	/**
+	 * @return number of support files skipped because unchanged
+	 */
+	public static long getSkipped() {
+		synchronized (lock) {
+			return skipped;
+		}
+	}
+
+
+
+	private static MessageDigest getDigest() {
+
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is required in every Java platform
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+
+	private static InputStream getResource(String name) throws IOException {
+
+		InputStream in = LDPovAssets.class.getResourceAsStream("data/"+name);
+		if (in == null) {
+			throw new IOException("Missing resource " + name);
+		}
+		return in;
+	}
+
+
+
+	/**
+	 * Reads a stream to its end and closes it
+	 * @return digest and length of stream content
+	 */
+	private static Digest digest(InputStream in) throws IOException {
+
+		MessageDigest md = getDigest();
+		byte[] buf = new byte[65536];
+		long length = 0;
+		try {
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				md.update(buf, 0, n);
+				length += n;
+			}
+		}
+		finally {
+			in.close();
+		}
+		return new Digest(md.digest(), length);
+	}
+
+
+
+	/**
+	 * Checks if file content is already as required
+	 * @param f file to check
+	 * @param d required digest
+	 * @return true if file doesn't need to be written
+	 */
+	private static boolean isUnchanged(File f, Digest d) throws IOException {
+
+		if (!f.isFile()) {
+			return false;
+		}
+		String key = f.getCanonicalPath();
+		Stamp s = known.get(key);
+		if (s != null && s.isCurrent(f, d)) {
+			return true;
+		}
+		if (f.length() != d.length) {
+			return false;
+		}
+		if (Arrays.equals(digest(new FileInputStream(f)).value, d.value)) {
+			known.put(key, new Stamp(f, d));
+			return true;
+		}
+		return false;
+	}
+
+
+
+	/**
+	 * Writes file from a stream, with a temporary file and a rename
+	 */
+	private static void write(File f, InputStream in, Digest d) throws IOException {
+
+		File tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+		try {
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				byte[] buf = new byte[65536];
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					out.write(buf, 0, n);
+				}
+			}
+			finally {
+				out.close();
+				in.close();
+			}
+			try {
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+		known.put(f.getCanonicalPath(), new Stamp(f, d));
+		written++;
+	}
+
+
+
+	private static void writeResource(File dir, String name) throws IOException {
+
+		Digest d = resourceDigests.get(name);
+		if (d == null) {
+			// resource content never changes, so digest is computed once
+			d = digest(getResource(name));
+			resourceDigests.put(name, d);
+		}
+		File f = new File(dir, name);
+		if (isUnchanged(f, d)) {
+			skipped++;
+			return;
+		}
+		write(f, getResource(name), d);
+	}
+
+
+
+	private static void writeContent(File dir, String name, byte[] content, Digest d) throws IOException {
+
+		File f = new File(dir, name);
+		if (isUnchanged(f, d)) {
+			skipped++;
+			return;
+		}
+		write(f, new ByteArrayInputStream(content), d);
+	}
+
+}
@@ -0,0 +1,173 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Writes rendered parts grouped in a bounding volume hierarchy.
+ *
+ * Parts are split recursively in two halves along the longest side of
+ * their centers, and every group is written as a union with a bounding
+ * box, so POV-Ray tests a ray against a whole group before its parts.
+ *
+ * Parts without geometry are written outside the hierarchy.
+ *
+ * Hierarchy needs all parts before writing, so rendered output of every 
+ * part is kept in memory until end of model: memory used isn't flat with
+ * model size as in plain export. Render time with and without hierarchy
+ * (POV-Ray options -SU -UR) has not been measured yet.
+ *
+ * @author Mario Pascucci
+ *
+ */
+class LDPovBoundingTree {
+
+	// max parts in a leaf union
+	private static final int LEAFSIZE = 4;
+	// bounding box margin, more than rounding of written coordinates
+	private static final float MARGIN = 0.001f;
+
+	private List<LDPovPartTask> parts = new ArrayList<LDPovPartTask>();
+	private List<LDPovPartTask> empty = new ArrayList<LDPovPartTask>();
+
+
+
+	/**
+	 * Adds a rendered part
+	 * @param t rendered part, with declares already written
+	 */
+	void add(LDPovPartTask t) {
+
+		if (t.getBounds() == null) {
+			empty.add(t);
+		}
+		else {
+			parts.add(t);
+		}
+	}
+
+
+
+	int size() {
+
+		return parts.size() + empty.size();
+	}
+
+
+
+	/**
+	 * Writes all parts
+	 * @param out output
+	 * @param stats export stats, for unions written
+	 * @throws IOException
+	 */
+	void write(LDPovWriter out, LDPovExportStats stats) throws IOException {
+
+		for (LDPovPartTask t : empty) {
+			t.writeObject(out);
+		}
+		if (!parts.isEmpty()) {
+			stats.boundingUnions += write(out, parts);
+		}
+		parts.clear();
+		empty.clear();
+	}
+
+
+
+	private static float[] getBounds(List<LDPovPartTask> l) {
+
+		float[] b = l.get(0).getBounds().clone();
+		for (LDPovPartTask t : l) {
+			float[] tb = t.getBounds();
+			for (int i=0;i<3;i++) {
+				b[i] = Math.min(b[i], tb[i]);
+				b[3+i] = Math.max(b[3+i], tb[3+i]);
+			}
+		}
+		return b;
+	}
+
+
+
+	/**
+	 * Writes a group of parts
+	 * @return unions written
+	 */
+	private static int write(LDPovWriter out, List<LDPovPartTask> l) throws IOException {
+
+		if (l.size() == 1) {
+			l.get(0).writeObject(out);
+			return 0;
+		}
+		float[] b = getBounds(l);
+		int unions = 1;
+		out.write("union {\n");
+		if (l.size() <= LEAFSIZE) {
+			for (LDPovPartTask t : l) {
+				t.writeObject(out);
+			}
+		}
+		else {
+			// split on longest side of part centers
+			float[] c = new float[] {
+					Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+					Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+			for (LDPovPartTask t : l) {
+				float[] tb = t.getBounds();
+				for (int i=0;i<3;i++) {
+					float v = tb[i] + tb[3+i];
+					c[i] = Math.min(c[i], v);
+					c[3+i] = Math.max(c[3+i], v);
+				}
+			}
+			int axis = 0;
+			for (int i=1;i<3;i++) {
+				if (c[3+i] - c[i] > c[3+axis] - c[axis])
+					axis = i;
+			}
+			final int a = axis;
+			List<LDPovPartTask> sorted = new ArrayList<LDPovPartTask>(l);
+			Collections.sort(sorted, new Comparator<LDPovPartTask>() {
+				@Override
+				public int compare(LDPovPartTask o1, LDPovPartTask o2) {
+					float[] b1 = o1.getBounds(), b2 = o2.getBounds();
+					return Float.compare(b1[a] + b1[3+a], b2[a] + b2[3+a]);
+				}
+			});
+			int half = sorted.size() / 2;
+			unions += write(out, sorted.subList(0, half));
+			unions += write(out, sorted.subList(half, sorted.size()));
+		}
+		out.write("bounded_by { box { ");
+		out.writeVector(b[0]-MARGIN, b[1]-MARGIN, b[2]-MARGIN);
+		out.write(',');
+		out.writeVector(b[3]+MARGIN, b[4]+MARGIN, b[5]+MARGIN);
+		out.write(" } }\n}\n");
+		return unions;
+	}
+
+}
@@ -0,0 +1,249 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * A writer that encodes chars as UTF-8 bytes directly in its own buffer,
+ * and sends them to an output stream or to a NIO channel.
+ *
+ * POV-Ray scripts are almost all ASCII, so every char is usually copied
+ * to a single byte, without a charset encoder.
+ * Unpaired surrogates are written as '?'.
+ *
+ * Like other writers it isn't thread safe.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovByteWriter extends Writer {
+
+	private static final int BUFSIZE = 65536;
+
+	private OutputStream stream;
+	private WritableByteChannel channel;
+	private byte[] buf;
+	private ByteBuffer byteBuffer;
+	private int count = 0;
+	// bytes sent to destination
+	private long written = 0;
+	// high surrogate waiting for its low surrogate
+	private char highSurrogate = 0;
+	private boolean closed = false;
+
+
+
+	/**
+	 * Creates a writer to an output stream
+	 * @param out destination stream
+	 */
+	public LDPovByteWriter(OutputStream out) {
+
+		stream = out;
+		buf = new byte[BUFSIZE];
+	}
+
+
+
+	/**
+	 * Creates a writer to a channel
+	 * @param out destination channel
+	 */
+	public LDPovByteWriter(WritableByteChannel out) {
+
+		channel = out;
+		buf = new byte[BUFSIZE];
+		byteBuffer = ByteBuffer.wrap(buf);
+	}
+
+
+
+	private void ensureOpen() throws IOException {
+
+		if (closed)
+			throw new IOException("Writer closed");
+	}
+
+
+
+	private void flushBuffer() throws IOException {
+
+		if (count == 0)
+			return;
+		if (stream != null) {
+			stream.write(buf, 0, count);
+		}
+		else {
+			byteBuffer.clear();
+			byteBuffer.limit(count);
+			while (byteBuffer.hasRemaining()) {
+				channel.write(byteBuffer);
+			}
+		}
+		written += count;
+		count = 0;
+	}
+
+
+
+	private void encode(char c) throws IOException {
+
+		if (count > BUFSIZE - 4) {
+			flushBuffer();
+		}
+		if (highSurrogate != 0) {
+			char h = highSurrogate;
+			highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				int cp = Character.toCodePoint(h, c);
+				buf[count++] = (byte) (0xf0 | (cp >> 18));
+				buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buf[count++] = (byte) (0x80 | (cp & 0x3f));
+				return;
+			}
+			buf[count++] = '?';
+		}
+		if (c < 0x80) {
+			buf[count++] = (byte) c;
+		}
+		else if (c < 0x800) {
+			buf[count++] = (byte) (0xc0 | (c >> 6));
+			buf[count++] = (byte) (0x80 | (c & 0x3f));
+		}
+		else if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		}
+		else if (Character.isLowSurrogate(c)) {
+			buf[count++] = '?';
+		}
+		else {
+			buf[count++] = (byte) (0xe0 | (c >> 12));
+			buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			buf[count++] = (byte) (0x80 | (c & 0x3f));
+		}
+	}
+
+
+
+	@Override
+	public void write(int c) throws IOException {
+
+		ensureOpen();
+		encode((char) c);
+	}
+
+
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+
+		ensureOpen();
+		int end = off + len;
+		for (int i=off;i<end;i++) {
+			char c = cbuf[i];
+			if (c < 0x80 && highSurrogate == 0) {
+				// ASCII fast path
+				if (count == BUFSIZE) {
+					flushBuffer();
+				}
+				buf[count++] = (byte) c;
+			}
+			else {
+				encode(c);
+			}
+		}
+	}
+
+
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+
+		ensureOpen();
+		int end = off + len;
+		for (int i=off;i<end;i++) {
+			char c = str.charAt(i);
+			if (c < 0x80 && highSurrogate == 0) {
+				if (count == BUFSIZE) {
+					flushBuffer();
+				}
+				buf[count++] = (byte) c;
+			}
+			else {
+				encode(c);
+			}
+		}
+	}
+
+
+
+	@Override
+	public void flush() throws IOException {
+
+		ensureOpen();
+		flushBuffer();
+		if (stream != null) {
+			stream.flush();
+		}
+	}
+
+
+
+	@Override
+	public void close() throws IOException {
+
+		if (closed)
+			return;
+		try {
+			if (highSurrogate != 0) {
+				highSurrogate = 0;
+				encode('?');
+			}
+			flushBuffer();
+		}
+		finally {
+			closed = true;
+			if (stream != null) {
+				stream.close();
+			}
+			else {
+				channel.close();
+			}
+		}
+	}
+
+
+
+	/**
+	 * @return bytes written, buffered bytes included
+	 */
+	public long getBytesWritten() {
+
+		return written + count;
+	}
+
+}
@@ -0,0 +1,109 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+
+/**
+ * Camera written by {@link LDPovRenderer#startRender()}, to compute
+ * where objects are on image.
+ *
+ * Camera is perspective, located at &lt;0,0,800*zoom&gt; and looking at
+ * origin, with POV-Ray default right (4/3) and up (1) vectors, so image
+ * area is a pyramid. All coordinates are POV-Ray coordinates, after view
+ * transformation.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovCamera {
+
+	// camera distance from origin with zoom 1
+	static final float DISTANCE = 800;
+	// POV-Ray default camera right vector length, up vector length is 1
+	static final float RIGHT = 4f/3f;
+
+	private final float distance;
+
+
+
+	/**
+	 * @param zoomFactor zoom factor, as in {@link LDPovRenderer#setPerspective(float)}
+	 */
+	public LDPovCamera(float zoomFactor) {
+
+		distance = DISTANCE * zoomFactor;
+	}
+
+
+
+	public float getDistance() {
+		return distance;
+	}
+
+
+
+	/**
+	 * Projects a point on image
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param width image width in pixels
+	 * @param height image height in pixels
+	 * @param out image column and row, in pixels
+	 * @return depth from camera, negative or zero if point is behind camera
+	 */
+	public float project(float x, float y, float z, int width, int height, float[] out) {
+
+		float d = distance - z;
+		if (d <= 0)
+			return d;
+		// camera looks at -z, so right vector is -x
+		out[0] = (0.5f - x / d / RIGHT) * width;
+		out[1] = (0.5f - y / d) * height;
+		return d;
+	}
+
+
+
+	/**
+	 * Checks if a box can be seen by camera
+	 * @param b box as min x,y,z and max x,y,z
+	 * @return false if box is surely outside image
+	 */
+	public boolean isVisible(float[] b) {
+
+		// behind camera
+		if (b[2] >= distance)
+			return false;
+		// every side plane: box is outside if its nearest corner is outside
+		float hx = RIGHT / 2, hy = 0.5f;
+		// x <= hx*(distance-z) for a point inside
+		if (b[0] - hx * (distance - b[2]) > 0)
+			return false;
+		if (-b[3] - hx * (distance - b[2]) > 0)
+			return false;
+		if (b[1] - hy * (distance - b[2]) > 0)
+			return false;
+		if (-b[4] - hy * (distance - b[2]) > 0)
+			return false;
+		return true;
+	}
+
+}
@@ -0,0 +1,218 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.ldrawlib.LDPrimitive;
+import bricksnspace.ldrawlib.LDrawCommand;
+import bricksnspace.ldrawlib.LDrawPart;
+
+
+/**
+ * Key of LDraw file content, with content of all its sub-files.
+ *
+ * Cached geometry and output are keyed by content, not by file name, so
+ * an edited sub-model, or a model that reuses the name of a sub-model of 
+ * another model, never gets what was cached for other content. Library 
+ * parts get the same key in every export, and share cache.
+ *
+ * Key is a SHA-1 digest of file lines, with keys of referenced files in
+ * place of their names. Keys are computed once for every export, see 
+ * {@link LDPovExportContext#contentKeys}, without recursion, like flattening.
+ * Files in a circular reference get a key that is never used again, so 
+ * they aren't shared between exports.
+ *
+ * @author Mario Pascucci
+ *
+ */
+class LDPovContentKey {
+
+	// makes keys of files in circular references unique
+	private static AtomicLong circular = new AtomicLong();
+
+	private final String ldrawId;
+	private final Iterator<LDPrimitive> primitives;
+	private final MessageDigest md = getDigest();
+	private final byte[] buf = new byte[4];
+	// file is in a circular reference, or references one
+	private boolean cyclic = false;
+
+
+
+	private LDPovContentKey(String ldrawId) {
+
+		this.ldrawId = ldrawId;
+		primitives = LDrawPart.getPart(ldrawId).getPrimitives().iterator();
+	}
+
+
+
+	/**
+	 * Returns content key of a file, computing keys of all its sub-files 
+	 * if needed
+	 * @param ctx export context
+	 * @param ldrawId LDraw file name
+	 * @return key
+	 */
+	static String get(LDPovExportContext ctx, String ldrawId) {
+
+		String id = ldrawId.toLowerCase();
+		String key = ctx.contentKeys.get(id);
+		if (key != null) {
+			return key;
+		}
+		Deque<LDPovContentKey> stack = new ArrayDeque<LDPovContentKey>();
+		// files on stack, to find circular references
+		Set<String> building = new HashSet<String>();
+		stack.push(new LDPovContentKey(id));
+		building.add(id);
+		while (!stack.isEmpty()) {
+			LDPovContentKey f = stack.peek();
+			String sub = f.update(ctx, building);
+			if (sub != null) {
+				stack.push(new LDPovContentKey(sub));
+				building.add(sub);
+				continue;
+			}
+			stack.pop();
+			building.remove(f.ldrawId);
+			key = f.getKey();
+			ctx.contentKeys.putIfAbsent(f.ldrawId, key);
+			if (!stack.isEmpty()) {
+				LDPovContentKey below = stack.peek();
+				below.add(key);
+				below.cyclic |= f.cyclic;
+			}
+		}
+		return ctx.contentKeys.get(id);
+	}
+
+
+
+	/**
+	 * Adds file lines to digest, until a referenced file without a key
+	 * @return referenced file, lowercase, null if file is complete
+	 */
+	private String update(LDPovExportContext ctx, Set<String> building) {
+
+		while (primitives.hasNext()) {
+			LDPrimitive p = primitives.next();
+			LDrawCommand type = p.getType();
+			if (type != LDrawCommand.TRIANGLE && type != LDrawCommand.QUAD
+					&& type != LDrawCommand.REFERENCE) {
+				// lines and comments don't change geometry
+				continue;
+			}
+			add(type.ordinal());
+			add(p.getColorIndex());
+			if (type != LDrawCommand.REFERENCE) {
+				for (float v : p.getPointsFV()) {
+					add(Float.floatToIntBits(v));
+				}
+				continue;
+			}
+			add(p.isInvert() ? 1 : 0);
+			Matrix3D t = p.getTransformation();
+			add(t.getA()); add(t.getB()); add(t.getC());
+			add(t.getD()); add(t.getE()); add(t.getF());
+			add(t.getG()); add(t.getH()); add(t.getI());
+			add(t.getX()); add(t.getY()); add(t.getZ());
+			String id = p.getLdrawId().toLowerCase();
+			// name is needed too: primitives are substituted or generated by name
+			add(id);
+			String key = ctx.contentKeys.get(id);
+			if (key != null) {
+				add(key);
+			}
+			else if (building.contains(id)) {
+				cyclic = true;
+			}
+			else {
+				return id;
+			}
+		}
+		return null;
+	}
+
+
+
+	private String getKey() {
+
+		StringBuilder sb = new StringBuilder(48);
+		for (byte b : md.digest()) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		if (cyclic) {
+			sb.append('#').append(circular.incrementAndGet());
+		}
+		return sb.toString();
+	}
+
+
+
+	private void add(int v) {
+
+		buf[0] = (byte) (v >>> 24);
+		buf[1] = (byte) (v >>> 16);
+		buf[2] = (byte) (v >>> 8);
+		buf[3] = (byte) v;
+		md.update(buf);
+	}
+
+
+
+	private void add(float v) {
+
+		add(Float.floatToIntBits(v));
+	}
+
+
+
+	private void add(String s) {
+
+		add(s.length());
+		for (int i=0;i<s.length();i++) {
+			add(s.charAt(i));
+		}
+	}
+
+
+
+	private static MessageDigest getDigest() {
+
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is required in every Java platform
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
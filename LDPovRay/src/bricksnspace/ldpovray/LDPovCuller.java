@@ -0,0 +1,305 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.ldrawlib.LDPrimitive;
+import bricksnspace.ldrawlib.LDrawColor;
+import bricksnspace.ldrawlib.LDrawColorType;
+import bricksnspace.ldrawlib.LDrawCommand;
+
+
+/**
+ * Removes parts that can't be seen from model, before export.
+ *
+ * Frustum culling drops parts with bounding box outside camera view.
+ *
+ * Occlusion culling drops parts with bounding box enclosed on all six
+ * sides by bounding boxes of opaque parts. Boxes are compared in model
+ * coordinates, and every side must be covered by a single part that lies
+ * beyond that side and touches it. A neighbor whose box overlaps the part
+ * box doesn't cover it, so parts inside a hollow or open neighbor, like a
+ * minifig in a cockpit, are kept. It is an approximation: parts seen
+ * through holes of their neighbors are dropped too.
+ *
+ * @author Mario Pascucci
+ *
+ */
+class LDPovCuller {
+
+	// margin for part displacement added by renderer
+	private static final float MARGIN = 0.5f;
+	// tolerance for adjacent faces, LDraw units
+	private static final float EPSILON = 0.1f;
+	// max overlap of boxes of touching parts, both enlarged by margin
+	private static final float TOUCH = 2 * MARGIN + EPSILON;
+	// grid cell size for neighbor search, LDraw units
+	private static final float CELL = 80;
+	// parts spanning more cells are checked against every part
+	private static final int MAXCELLS = 512;
+
+	private boolean frustum = false;
+	private boolean occlusion = false;
+
+	private int frustumCulled = 0;
+	private int occlusionCulled = 0;
+	private long trianglesCulled = 0;
+
+
+
+	void setFrustum(boolean frustum) {
+		this.frustum = frustum;
+	}
+
+
+	void setOcclusion(boolean occlusion) {
+		this.occlusion = occlusion;
+	}
+
+
+	int getFrustumCulled() {
+		return frustumCulled;
+	}
+
+
+	int getOcclusionCulled() {
+		return occlusionCulled;
+	}
+
+
+	long getTrianglesCulled() {
+		return trianglesCulled;
+	}
+
+
+
+	private static boolean isOpaque(int color) {
+
+		LDrawColor c = LDrawColor.getById(color);
+		if (c == null)
+			return true;
+		return c.getType() != LDrawColorType.TRANSPARENT && c.getColor().getAlpha() == 255;
+	}
+
+
+
+	private static long cellKey(int x, int y, int z) {
+
+		return ((long) (x & 0x1fffff) << 42) | ((long) (y & 0x1fffff) << 21) | (z & 0x1fffff);
+	}
+
+
+
+	private static int cell(float v) {
+
+		return (int) Math.floor(v / CELL);
+	}
+
+
+
+	/**
+	 * Removes hidden parts
+	 * @param ctx export context, for part geometry
+	 * @param model model parts
+	 * @param viewMatrix view transformation
+	 * @param zoomFactor camera zoom
+	 * @return visible parts, in model order
+	 * @throws IOException
+	 */
+	List<LDPrimitive> cull(LDPovExportContext ctx, List<LDPrimitive> model, Matrix3D viewMatrix,
+			float zoomFactor) throws IOException {
+
+		List<LDPrimitive> parts = new ArrayList<LDPrimitive>();
+		for (LDPrimitive p : model) {
+			if (p.getType() == LDrawCommand.REFERENCE) {
+				parts.add(p);
+			}
+		}
+		int n = parts.size();
+		// model coordinates bounds, 6 floats for every part, null if part is empty
+		float[][] bounds = new float[n][];
+		int[] triangles = new int[n];
+		boolean[] culled = new boolean[n];
+		for (int i=0;i<n;i++) {
+			LDPrimitive p = parts.get(i);
+			LDPovGeometry g = LDPOVRenderedPart.getGeometry(ctx, p.getLdrawId(),
+					p.getTransformation().determinant() < 0);
+			triangles[i] = g.getTriangleCount();
+			if (g.getBounds() != null) {
+				float[] b = new float[6];
+				LDPovGeometry.transformBounds(LDPovGeometry.getMatrix(p.getTransformation()), g.getBounds(), b);
+				for (int k=0;k<3;k++) {
+					b[k] -= MARGIN;
+					b[k+3] += MARGIN;
+				}
+				bounds[i] = b;
+			}
+		}
+		if (frustum) {
+			LDPovCamera camera = new LDPovCamera(zoomFactor);
+			float[] m = LDPovGeometry.getMatrix(viewMatrix.scale(-1, -1, -1));
+			float[] box = new float[6];
+			for (int i=0;i<n;i++) {
+				if (bounds[i] == null)
+					continue;
+				LDPovGeometry.transformBounds(m, bounds[i], box);
+				if (!camera.isVisible(box)) {
+					culled[i] = true;
+					frustumCulled++;
+					trianglesCulled += triangles[i];
+				}
+			}
+		}
+		if (occlusion) {
+			cullOccluded(parts, bounds, triangles, culled);
+		}
+		if (frustumCulled + occlusionCulled == 0) {
+			return model;
+		}
+		List<LDPrimitive> visible = new ArrayList<LDPrimitive>(n);
+		int i = 0;
+		for (LDPrimitive p : model) {
+			if (p.getType() != LDrawCommand.REFERENCE) {
+				visible.add(p);
+			}
+			else if (!culled[i++]) {
+				visible.add(p);
+			}
+		}
+		return visible;
+	}
+
+
+
+	private void cullOccluded(List<LDPrimitive> parts, float[][] bounds, int[] triangles, boolean[] culled) {
+
+		int n = parts.size();
+		boolean[] opaque = new boolean[n];
+		// opaque parts by grid cell
+		Map<Long,List<Integer>> grid = new HashMap<Long,List<Integer>>();
+		List<Integer> large = new ArrayList<Integer>();
+		for (int i=0;i<n;i++) {
+			float[] b = bounds[i];
+			if (b == null || !isOpaque(parts.get(i).getColorIndex()))
+				continue;
+			opaque[i] = true;
+			int x0 = cell(b[0]), x1 = cell(b[3]);
+			int y0 = cell(b[1]), y1 = cell(b[4]);
+			int z0 = cell(b[2]), z1 = cell(b[5]);
+			if ((long) (x1-x0+1) * (y1-y0+1) * (z1-z0+1) > MAXCELLS) {
+				large.add(i);
+				continue;
+			}
+			for (int x=x0;x<=x1;x++) {
+				for (int y=y0;y<=y1;y++) {
+					for (int z=z0;z<=z1;z++) {
+						Long k = cellKey(x, y, z);
+						List<Integer> c = grid.get(k);
+						if (c == null) {
+							c = new ArrayList<Integer>(4);
+							grid.put(k, c);
+						}
+						c.add(i);
+					}
+				}
+			}
+		}
+		// last part that checked a neighbor, to check it once
+		int[] seen = new int[n];
+		for (int i=0;i<n;i++) {
+			seen[i] = -1;
+		}
+		for (int i=0;i<n;i++) {
+			float[] b = bounds[i];
+			if (b == null || culled[i])
+				continue;
+			// covered sides: -x,-y,-z,+x,+y,+z
+			boolean[] sides = new boolean[6];
+			int x0 = cell(b[0]-EPSILON), x1 = cell(b[3]+EPSILON);
+			int y0 = cell(b[1]-EPSILON), y1 = cell(b[4]+EPSILON);
+			int z0 = cell(b[2]-EPSILON), z1 = cell(b[5]+EPSILON);
+			boolean enclosed = false;
+			for (int j : large) {
+				if (j != i && cover(b, bounds[j], sides)) {
+					enclosed = true;
+					break;
+				}
+			}
+			for (int x=x0;x<=x1 && !enclosed;x++) {
+				for (int y=y0;y<=y1 && !enclosed;y++) {
+					for (int z=z0;z<=z1 && !enclosed;z++) {
+						List<Integer> c = grid.get(cellKey(x, y, z));
+						if (c == null)
+							continue;
+						for (int j : c) {
+							if (j == i || seen[j] == i)
+								continue;
+							seen[j] = i;
+							if (cover(b, bounds[j], sides)) {
+								enclosed = true;
+								break;
+							}
+						}
+					}
+				}
+			}
+			if (enclosed) {
+				culled[i] = true;
+				occlusionCulled++;
+				trianglesCulled += triangles[i];
+			}
+		}
+	}
+
+
+
+	/**
+	 * Marks sides of a box covered by another box
+	 * @param b box to check
+	 * @param o neighbor box
+	 * @param sides covered sides, updated
+	 * @return true if all sides are covered
+	 */
+	private static boolean cover(float[] b, float[] o, boolean[] sides) {
+
+		for (int a=0;a<3;a++) {
+			// neighbor must cover box on other two axes
+			int u = (a+1) % 3, v = (a+2) % 3;
+			if (o[u] > b[u] + EPSILON || o[3+u] < b[3+u] - EPSILON
+					|| o[v] > b[v] + EPSILON || o[3+v] < b[3+v] - EPSILON)
+				continue;
+			// lower side: neighbor is below it and touches it, without entering 
+			// box, else box can be seen through an open side of neighbor
+			if (o[a] < b[a] && o[3+a] >= b[a] - EPSILON && o[3+a] <= b[a] + TOUCH)
+				sides[a] = true;
+			// upper side
+			if (o[3+a] > b[3+a] && o[a] <= b[3+a] + EPSILON && o[a] >= b[3+a] - TOUCH)
+				sides[3+a] = true;
+		}
+		return sides[0] && sides[1] && sides[2] && sides[3] && sides[4] && sides[5];
+	}
+
+}
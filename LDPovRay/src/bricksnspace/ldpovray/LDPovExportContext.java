@@ -0,0 +1,399 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import bricksnspace.j3dgeom.Matrix3D;
+
+/**
+ * State of a single export: output, primitives already substituted or
+ * generated, materials, stats and listeners.
+ *
+ * Every {@link LDPovRenderer} owns its context, so different exports can
+ * run in parallel threads. A context must not be shared between threads:
+ * parts of the same export rendered in parallel use contexts obtained
+ * with {@link #fork()}, that share only generated primitive declares and materials.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovExportContext {
+
+	// Primitives in substitution file
+	Set<String> substPrimitives;
+
+	// Special primitives, program generated when used
+	Set<String> genPrimitives = new TreeSet<String>();
+	// generators of special primitives, shared with forked contexts
+	LDPovPrimitiveTable primitives = new LDPovPrimitiveTable();
+
+	// POV-Ray declares of generated primitives, shared with forked contexts
+	ConcurrentMap<String,String> genDeclares = new ConcurrentHashMap<String,String>();
+	// primitive name -> POV-Ray declare identifier, shared with forked contexts
+	ConcurrentMap<String,String> primitiveDeclares = new ConcurrentHashMap<String,String>();
+	// LDraw file name, lowercase -> content key, see LDPovContentKey; 
+	// computed once for every export, shared with forked contexts
+	ConcurrentMap<String,String> contentKeys = new ConcurrentHashMap<String,String>();
+
+	// generated primitives used by current part, in order of first use
+	Set<String> usedGenerated = new LinkedHashSet<String>();
+
+	// materials of LDraw colors, shared with forked contexts
+	LDPovMaterialTable materials = new LDPovMaterialTable();
+	// materials used by current part, in order of first use
+	Set<LDPovMaterialTable.Material> usedMaterials = new LinkedHashSet<LDPovMaterialTable.Material>();
+	// last material used, consecutive objects have often the same color
+	LDPovMaterialTable.Material material;
+
+	LDPovWriter povFile;
+
+	// a singular matrix was found in current part
+	boolean singular;
+
+	// if not null, triangles are collected here and written as mesh2
+	LDPovMesh mesh;
+
+	// bounds of current part in POV-Ray coordinates: min x,y,z, max x,y,z
+	float[] bounds = new float[6];
+
+	// work buffers for parts, a context is used by a single thread
+	float[] tmpMatrix = new float[12];
+	float[] tmpBox = new float[6];
+	float[][] tmpPoints = new float[3][3];
+	// displacement of current part in LDraw coordinates, added to its placement
+	float[] offset = new float[3];
+	// mesh reused by every part, it keeps its buffers
+	private LDPovMesh meshBuffer;
+	// output of current part, reused by every part
+	private StringWriter partBuffer;
+	private LDPovWriter partWriter;
+	// view used for last placement, and its matrix with LDraw to POV-Ray axis change
+	private Matrix3D placementView;
+	private float[] placementMatrix;
+
+	// flattened sub-file geometry
+	LDPovGeometryCache geometryCache = LDPovGeometryCache.getShared();
+
+	// level of detail: parts smaller than these fractions of image height 
+	// are simplified or written as a box, 0 to disable
+	float lodSimplify = 0;
+	float lodBox = 0;
+	// camera used to compute part size on image, null if level of detail is disabled
+	LDPovCamera camera;
+	// max difference on every axis of welded vertices in optimized part geometry, 0 to disable optimization
+	float optimizeTolerance = 0;
+
+	// stats of current export, or of current part in a forked context
+	LDPovExportStats stats = new LDPovExportStats();
+	// listeners for warnings and generated primitives, shared with forked contexts
+	List<LDPovExportListener> listeners = Collections.emptyList();
+
+
+
+	/**
+	 * Creates a new context, with substitution primitives read from
+	 * primitive file in current directory, if any.
+	 */
+	public LDPovExportContext() {
+
+		substPrimitives = LDPOVRenderedPart.readSubstPrimitives();
+	}
+
+
+
+	/**
+	 * Creates a new context with a given list of substitution primitives
+	 * @param substPrimitives LDraw primitive names with a POV-Ray declare in primitive file
+	 */
+	public LDPovExportContext(Set<String> substPrimitives) {
+
+		this.substPrimitives = new TreeSet<String>(substPrimitives);
+	}
+
+
+
+	private LDPovExportContext(LDPovExportContext parent) {
+
+		substPrimitives = parent.substPrimitives;
+		genDeclares = parent.genDeclares;
+		primitiveDeclares = parent.primitiveDeclares;
+		contentKeys = parent.contentKeys;
+		primitives = parent.primitives;
+		materials = parent.materials;
+		geometryCache = parent.geometryCache;
+		lodSimplify = parent.lodSimplify;
+		lodBox = parent.lodBox;
+		camera = parent.camera;
+		optimizeTolerance = parent.optimizeTolerance;
+		listeners = parent.listeners;
+		placementView = parent.placementView;
+		placementMatrix = parent.placementMatrix;
+	}
+
+
+
+	/**
+	 * Returns a new context for the same export, to render parts in another thread.
+	 * @return a context that shares substitution primitives and generated declares with this one
+	 */
+	public LDPovExportContext fork() {
+
+		return new LDPovExportContext(this);
+	}
+
+
+
+	/**
+	 * Sets cache for flattened sub-file geometry, by default the shared cache 
+	 * is used
+	 * @param cache geometry cache
+	 */
+	public void setGeometryCache(LDPovGeometryCache cache) {
+
+		geometryCache = cache;
+	}
+
+
+
+	public LDPovGeometryCache getGeometryCache() {
+
+		return geometryCache;
+	}
+
+
+
+	/**
+	 * Starts a new export: LDraw files can be changed since last export, 
+	 * so their content is read again
+	 */
+	void startExport() {
+
+		contentKeys.clear();
+	}
+
+
+
+	/**
+	 * @return key of substitution primitives and primitive generators, 
+	 * for geometry cache
+	 */
+	int getPrimitivesKey() {
+
+		return substPrimitives.hashCode()*31 + primitives.getKey();
+	}
+
+
+
+	/**
+	 * Returns an empty mesh, the same for all parts rendered with this 
+	 * context, so its buffers are allocated once
+	 * @return mesh
+	 */
+	LDPovMesh getMesh() {
+
+		if (meshBuffer == null) {
+			meshBuffer = new LDPovMesh();
+		}
+		meshBuffer.clear();
+		return meshBuffer;
+	}
+
+
+
+	/**
+	 * Returns an empty writer for output of a part, the same for all parts 
+	 * rendered with this context
+	 * @return writer, text is read with {@link #getPartText()}
+	 * @throws IOException
+	 */
+	LDPovWriter getPartWriter() throws IOException {
+
+		if (partWriter == null) {
+			partBuffer = new StringWriter();
+			partWriter = new LDPovWriter(partBuffer);
+		}
+		// drops text left by a part that failed
+		partWriter.flush();
+		partBuffer.getBuffer().setLength(0);
+		return partWriter;
+	}
+
+
+
+	/**
+	 * Returns text written since last call, or since {@link #getPartWriter()}, 
+	 * and empties writer
+	 * @return part text
+	 * @throws IOException
+	 */
+	String getPartText() throws IOException {
+
+		partWriter.flush();
+		String text = partBuffer.toString();
+		partBuffer.getBuffer().setLength(0);
+		return text;
+	}
+
+
+
+	/**
+	 * Returns view transformation with LDraw to POV-Ray axis change, 
+	 * computed once for every view
+	 * @param viewMatrix current view
+	 * @return view matrix, 12 floats, must not be changed
+	 */
+	float[] getPlacementMatrix(Matrix3D viewMatrix) {
+
+		if (viewMatrix != placementView) {
+			placementMatrix = LDPovGeometry.getMatrix(viewMatrix.scale(-1, -1, -1));
+			placementView = viewMatrix;
+		}
+		return placementMatrix;
+	}
+
+
+
+	/**
+	 * Empties bounds of current part
+	 */
+	void resetBounds() {
+
+		bounds[0] = bounds[1] = bounds[2] = Float.POSITIVE_INFINITY;
+		bounds[3] = bounds[4] = bounds[5] = Float.NEGATIVE_INFINITY;
+	}
+
+
+
+	/**
+	 * Extends bounds of current part with a box
+	 * @param b box as min x,y,z and max x,y,z
+	 */
+	void extendBounds(float[] b) {
+
+		for (int i=0;i<3;i++) {
+			if (b[i] < bounds[i])
+				bounds[i] = b[i];
+			if (b[3+i] > bounds[3+i])
+				bounds[3+i] = b[3+i];
+		}
+	}
+
+
+
+	/**
+	 * Extends bounds of current part with a point
+	 */
+	void extendBounds(float x, float y, float z) {
+
+		if (x < bounds[0])
+			bounds[0] = x;
+		if (x > bounds[3])
+			bounds[3] = x;
+		if (y < bounds[1])
+			bounds[1] = y;
+		if (y > bounds[4])
+			bounds[4] = y;
+		if (z < bounds[2])
+			bounds[2] = z;
+		if (z > bounds[5])
+			bounds[5] = z;
+	}
+
+
+
+	/**
+	 * Returns material of a color, and adds it to materials used by current part
+	 * @param color LDraw color
+	 * @return material
+	 * @throws IOException
+	 */
+	LDPovMaterialTable.Material getMaterial(int color) throws IOException {
+
+		if (material == null || material.id != color) {
+			material = materials.get(color);
+			usedMaterials.add(material);
+		}
+		return material;
+	}
+
+
+
+	/**
+	 * Starts a new part: clears generated primitives and materials used
+	 */
+	void startPart() {
+
+		usedGenerated.clear();
+		usedMaterials.clear();
+		material = null;
+	}
+
+
+
+	/**
+	 * Sends a warning to listeners
+	 * @param message problem description
+	 */
+	void warning(String message) {
+
+		stats.warnings++;
+		for (LDPovExportListener l : listeners) {
+			l.exportWarning(message);
+		}
+	}
+
+
+
+	/**
+	 * Tells listeners a primitive declare was generated
+	 * @param p primitive name
+	 */
+	void generated(String p) {
+
+		for (LDPovExportListener l : listeners) {
+			l.primitiveGenerated(p);
+		}
+	}
+
+
+
+	/**
+	 * Forgets generated primitives, to start a new output file
+	 */
+	public void reset() {
+
+		genPrimitives.clear();
+		genDeclares.clear();
+		startPart();
+		singular = false;
+		mesh = null;
+		povFile = null;
+	}
+
+}
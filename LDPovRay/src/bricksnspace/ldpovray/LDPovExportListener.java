@@ -0,0 +1,52 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+
+/**
+ * Receives events of a scene export.
+ *
+ * With parallel export, primitive and warning events are called from
+ * export threads, in any order.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public interface LDPovExportListener {
+
+	/**
+	 * A POV-Ray declare was generated for an LDraw primitive
+	 * @param name primitive file name
+	 */
+	public void primitiveGenerated(String name);
+
+	/**
+	 * A problem in LDraw files, export goes on
+	 * @param message problem description
+	 */
+	public void exportWarning(String message);
+
+	/**
+	 * Model is written and output closed
+	 * @param stats export stats
+	 */
+	public void exportFinished(LDPovExportStats stats);
+
+}
@@ -0,0 +1,242 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Export listener that sums stats of all exports, readable with JMX.
+ *
+ * Shared monitor is registered in platform MBean server as
+ * "bricksnspace.ldpovray:type=ExportMonitor" when it is first used.
+ * It only counts exports of renderers it was added to:
+ * <pre>
+ * renderer.addListener(LDPovExportMonitor.getShared());
+ * </pre>
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovExportMonitor implements LDPovExportListener, LDPovExportMonitorMBean {
+
+	public static final String OBJECTNAME = "bricksnspace.ldpovray:type=ExportMonitor";
+
+	private static LDPovExportMonitor shared = null;
+
+	private LDPovExportStats total = new LDPovExportStats();
+	private LDPovExportStats last = null;
+	private long exports = 0;
+
+
+
+	/**
+	 * Returns shared monitor, registered in platform MBean server
+	 * @return shared monitor
+	 */
+	public static synchronized LDPovExportMonitor getShared() {
+
+		if (shared == null) {
+			shared = new LDPovExportMonitor();
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				ObjectName name = new ObjectName(OBJECTNAME);
+				if (!server.isRegistered(name)) {
+					server.registerMBean(shared, name);
+				}
+			} catch (JMException e) {
+				// monitor works without JMX
+			}
+		}
+		return shared;
+	}
+
+
+
+	@Override
+	public void primitiveGenerated(String name) {
+		// counted in stats
+	}
+
+
+
+	@Override
+	public void exportWarning(String message) {
+		// counted in stats
+	}
+
+
+
+	@Override
+	public synchronized void exportFinished(LDPovExportStats stats) {
+
+		total.add(stats);
+		last = stats;
+		exports++;
+	}
+
+
+
+	@Override
+	public synchronized long getExports() {
+		return exports;
+	}
+
+
+	@Override
+	public synchronized long getParts() {
+		return total.getParts();
+	}
+
+
+	@Override
+	public synchronized long getPartsReused() {
+		return total.getPartsReused();
+	}
+
+
+	@Override
+	public synchronized long getTriangles() {
+		return total.getTriangles();
+	}
+
+
+	@Override
+	public synchronized long getQuadsSplit() {
+		return total.getQuadsSplit();
+	}
+
+
+	@Override
+	public synchronized long getPrimitivesSubstituted() {
+		return total.getPrimitivesSubstituted();
+	}
+
+
+	@Override
+	public synchronized long getPrimitivesGenerated() {
+		return total.getPrimitivesGenerated();
+	}
+
+
+	@Override
+	public synchronized long getSubfilesRecursed() {
+		return total.getSubfilesRecursed();
+	}
+
+
+	@Override
+	public synchronized long getSingularMatrices() {
+		return total.getSingularMatrices();
+	}
+
+
+	@Override
+	public synchronized int getMaxDepth() {
+		return total.getMaxDepth();
+	}
+
+
+	@Override
+	public synchronized long getOptimizedTriangles() {
+		return total.getOptimizedTriangles();
+	}
+
+
+	@Override
+	public synchronized long getDegenerateTriangles() {
+		return total.getDegenerateTriangles();
+	}
+
+
+	@Override
+	public synchronized long getMergedTriangles() {
+		return total.getMergedTriangles();
+	}
+
+
+	@Override
+	public synchronized long getPolygons() {
+		return total.getPolygons();
+	}
+
+
+	@Override
+	public synchronized double getReductionRatio() {
+		return total.getReductionRatio();
+	}
+
+
+	@Override
+	public synchronized long getWarnings() {
+		return total.getWarnings();
+	}
+
+
+	@Override
+	public synchronized long getBytesWritten() {
+		return total.getBytesWritten();
+	}
+
+
+	@Override
+	public synchronized long getTessellationMillis() {
+		return total.getTessellationNanos() / 1000000;
+	}
+
+
+	@Override
+	public synchronized long getFormattingMillis() {
+		return total.getFormattingNanos() / 1000000;
+	}
+
+
+	@Override
+	public synchronized long getIoMillis() {
+		return total.getIoNanos() / 1000000;
+	}
+
+
+	@Override
+	public synchronized long getTotalMillis() {
+		return total.getTotalNanos() / 1000000;
+	}
+
+
+	@Override
+	public synchronized String getLastExport() {
+		return last == null ? "" : last.toString();
+	}
+
+
+
+	@Override
+	public synchronized void reset() {
+
+		total = new LDPovExportStats();
+		last = null;
+		exports = 0;
+	}
+
+}
@@ -0,0 +1,83 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+
+/**
+ * JMX view of export totals, see {@link LDPovExportMonitor}.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public interface LDPovExportMonitorMBean {
+
+	public long getExports();
+
+	public long getParts();
+
+	public long getPartsReused();
+
+	public long getTriangles();
+
+	public long getQuadsSplit();
+
+	public long getPrimitivesSubstituted();
+
+	public long getPrimitivesGenerated();
+
+	public long getSubfilesRecursed();
+
+	public long getSingularMatrices();
+
+	public int getMaxDepth();
+
+	public long getOptimizedTriangles();
+
+	public long getDegenerateTriangles();
+
+	public long getMergedTriangles();
+
+	public long getPolygons();
+
+	public double getReductionRatio();
+
+	public long getWarnings();
+
+	public long getBytesWritten();
+
+	public long getTessellationMillis();
+
+	public long getFormattingMillis();
+
+	public long getIoMillis();
+
+	public long getTotalMillis();
+
+	/**
+	 * @return stats of last export, as text
+	 */
+	public String getLastExport();
+
+	/**
+	 * Clears totals
+	 */
+	public void reset();
+
+}
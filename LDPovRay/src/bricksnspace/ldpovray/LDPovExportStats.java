@@ -0,0 +1,281 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+
+/**
+ * Counters and timings of an export.
+ *
+ * Quads, sub-files, singular matrices, depth and geometry optimization
+ * are counted when part geometry is built, so parts already in geometry cache don't add to
+ * them. Parts reused from a previous export, see {@link LDPovFragmentCache},
+ * count only as parts. Other counters are about written output.
+ *
+ * Times are summed over all export threads, so with parallel export
+ * they can be more than elapsed time.
+ *
+ * Stats are updated by a single thread, parallel export merges stats of
+ * every part in output order.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovExportStats {
+
+	long parts = 0;
+	long partsReused = 0;
+	long triangles = 0;
+	long quadsSplit = 0;
+	long primitivesSubstituted = 0;
+	long primitivesGenerated = 0;
+	long subfilesRecursed = 0;
+	long singularMatrices = 0;
+	int maxDepth = 0;
+	long optimizedTriangles = 0;
+	long degenerateTriangles = 0;
+	long mergedTriangles = 0;
+	long polygons = 0;
+	long warnings = 0;
+	long boundingUnions = 0;
+	long bytesWritten = 0;
+	long tessellationNanos = 0;
+	long formattingNanos = 0;
+	long ioNanos = 0;
+	long totalNanos = 0;
+
+
+
+	/**
+	 * Adds counters and times of another export, or part of export
+	 * @param s stats to add
+	 */
+	public void add(LDPovExportStats s) {
+
+		parts += s.parts;
+		partsReused += s.partsReused;
+		triangles += s.triangles;
+		quadsSplit += s.quadsSplit;
+		primitivesSubstituted += s.primitivesSubstituted;
+		primitivesGenerated += s.primitivesGenerated;
+		subfilesRecursed += s.subfilesRecursed;
+		singularMatrices += s.singularMatrices;
+		maxDepth = Math.max(maxDepth, s.maxDepth);
+		optimizedTriangles += s.optimizedTriangles;
+		degenerateTriangles += s.degenerateTriangles;
+		mergedTriangles += s.mergedTriangles;
+		polygons += s.polygons;
+		warnings += s.warnings;
+		boundingUnions += s.boundingUnions;
+		bytesWritten += s.bytesWritten;
+		tessellationNanos += s.tessellationNanos;
+		formattingNanos += s.formattingNanos;
+		ioNanos += s.ioNanos;
+		totalNanos += s.totalNanos;
+	}
+
+
+
+	/**
+	 * @return parts written
+	 */
+	public long getParts() {
+		return parts;
+	}
+
+
+	/**
+	 * @return parts written with output of a previous export
+	 */
+	public long getPartsReused() {
+		return partsReused;
+	}
+
+
+	/**
+	 * @return triangles written, as triangle objects or in meshes
+	 */
+	public long getTriangles() {
+		return triangles;
+	}
+
+
+	/**
+	 * @return quads split in two triangles
+	 */
+	public long getQuadsSplit() {
+		return quadsSplit;
+	}
+
+
+	/**
+	 * @return primitive objects written with a substitute from primitives file
+	 */
+	public long getPrimitivesSubstituted() {
+		return primitivesSubstituted;
+	}
+
+
+	/**
+	 * @return primitive objects written with a program generated declare
+	 */
+	public long getPrimitivesGenerated() {
+		return primitivesGenerated;
+	}
+
+
+	/**
+	 * @return sub-files flattened in part geometry
+	 */
+	public long getSubfilesRecursed() {
+		return subfilesRecursed;
+	}
+
+
+	/**
+	 * @return singular sub-file matrices corrected
+	 */
+	public long getSingularMatrices() {
+		return singularMatrices;
+	}
+
+
+	/**
+	 * @return max sub-file nesting, 1 is a part without sub-files
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+
+	/**
+	 * @return triangles of part geometry given to optimization
+	 */
+	public long getOptimizedTriangles() {
+		return optimizedTriangles;
+	}
+
+
+	/**
+	 * @return triangles dropped by optimization, because they have no area
+	 */
+	public long getDegenerateTriangles() {
+		return degenerateTriangles;
+	}
+
+
+	/**
+	 * @return triangles merged in polygons by optimization
+	 */
+	public long getMergedTriangles() {
+		return mergedTriangles;
+	}
+
+
+	/**
+	 * @return polygons made by optimization, in place of merged triangles
+	 */
+	public long getPolygons() {
+		return polygons;
+	}
+
+
+	/**
+	 * @return fraction of optimized triangles that are no more written as objects
+	 */
+	public double getReductionRatio() {
+
+		if (optimizedTriangles == 0) 
+			return 0;
+		return (degenerateTriangles + mergedTriangles - polygons) / (double) optimizedTriangles;
+	}
+
+
+	/**
+	 * @return warnings sent to listeners
+	 */
+	public long getWarnings() {
+		return warnings;
+	}
+
+
+	/**
+	 * @return unions with a bounding box written by bounding hierarchy
+	 */
+	public long getBoundingUnions() {
+		return boundingUnions;
+	}
+
+
+	/**
+	 * @return bytes written to scene output
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+
+	/**
+	 * @return time spent building part geometry from LDraw files
+	 */
+	public long getTessellationNanos() {
+		return tessellationNanos;
+	}
+
+
+	/**
+	 * @return time spent writing POV-Ray objects to part buffers
+	 */
+	public long getFormattingNanos() {
+		return formattingNanos;
+	}
+
+
+	/**
+	 * @return time spent writing to scene output
+	 */
+	public long getIoNanos() {
+		return ioNanos;
+	}
+
+
+	/**
+	 * @return elapsed time of model export
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+
+
+	@Override
+	public String toString() {
+
+		return "LDPovExportStats [parts=" + parts + ", partsReused=" + partsReused + ", triangles=" + triangles
+				+ ", quadsSplit=" + quadsSplit + ", primitivesSubstituted=" + primitivesSubstituted
+				+ ", primitivesGenerated=" + primitivesGenerated + ", subfilesRecursed=" + subfilesRecursed
+				+ ", singularMatrices=" + singularMatrices + ", maxDepth=" + maxDepth
+				+ ", optimizedTriangles=" + optimizedTriangles + ", degenerateTriangles=" + degenerateTriangles
+				+ ", mergedTriangles=" + mergedTriangles + ", polygons=" + polygons
+				+ ", warnings=" + warnings + ", boundingUnions=" + boundingUnions + ", bytesWritten=" + bytesWritten
+				+ ", tessellationMs=" + tessellationNanos / 1000000 + ", formattingMs=" + formattingNanos / 1000000
+				+ ", ioMs=" + ioNanos / 1000000 + ", totalMs=" + totalNanos / 1000000 + "]";
+	}
+
+}
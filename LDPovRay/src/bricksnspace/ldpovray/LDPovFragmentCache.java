@@ -0,0 +1,213 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.ldrawlib.LDPrimitive;
+
+
+/**
+ * Rendered parts of last export, for incremental export of the same
+ * model after a change.
+ *
+ * Output of a part depends only on its id, file content, color and 
+ * placement, and on export options. Parts with the same id, content, 
+ * color and placement of a part in last export are written again without 
+ * rendering, only new, moved or edited parts are rendered. File content
+ * includes its sub-files, see {@link LDPovContentKey}, so a part that 
+ * uses an edited sub-model is rendered again. If export options change, 
+ * all parts are rendered.
+ *
+ * Cache keeps rendered output of last export only, so memory used is
+ * about the size of scene file. Part geometry declares used with instancing
+ * keep their identifiers across exports, so instances can be reused too; 
+ * declare of an edited part is rendered again with the same identifier.
+ *
+ * Cache can be used by a single export at a time, see
+ * {@link LDPovRenderer#setFragmentCache(LDPovFragmentCache)}.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovFragmentCache {
+
+	// rendered parts of last export, and of current export
+	private Map<String,LDPovPartTask> fragments = new HashMap<String,LDPovPartTask>();
+	private Map<String,LDPovPartTask> nextFragments = new HashMap<String,LDPovPartTask>();
+	// rendered part geometry declares, by identifier
+	private Map<String,LDPovPartTask> declares = new HashMap<String,LDPovPartTask>();
+	private Map<String,LDPovPartTask> nextDeclares = new HashMap<String,LDPovPartTask>();
+	private String options = null;
+
+	// part id -> declared POV-Ray identifier, stable across exports
+	Map<String,String> declaredParts = new HashMap<String,String>();
+	Set<String> usedDeclares = new HashSet<String>();
+	// generated primitive declares used by cached parts
+	ConcurrentMap<String,String> genDeclares = new ConcurrentHashMap<String,String>();
+
+
+
+	/**
+	 * Cache key of a part
+	 * @param p part placement
+	 * @param contentKey key of part file content, see {@link LDPovContentKey}
+	 * @return key with id, content, color and transformation
+	 */
+	static String getKey(LDPrimitive p, String contentKey) {
+
+		Matrix3D t = p.getTransformation();
+		StringBuilder sb = new StringBuilder(160);
+		sb.append(p.getLdrawId().toLowerCase()).append('|').append(contentKey);
+		sb.append('|').append(p.getColorIndex());
+		float[] m = new float[] { t.getA(),t.getB(),t.getC(),t.getD(),t.getE(),t.getF(),
+				t.getG(),t.getH(),t.getI(),t.getX(),t.getY(),t.getZ() };
+		for (float f : m) {
+			sb.append('|').append(Integer.toHexString(Float.floatToIntBits(f)));
+		}
+		return sb.toString();
+	}
+
+
+
+	/**
+	 * Cache key of a part geometry declare
+	 * @param declare POV-Ray identifier
+	 * @param contentKey key of part file content
+	 * @return key
+	 */
+	static String getDeclareKey(String declare, String contentKey) {
+
+		return declare + '|' + contentKey;
+	}
+
+
+
+	/**
+	 * Starts a new export, discarding all parts if export options are
+	 * not the same of last export
+	 * @param exportOptions export options, as text
+	 */
+	void startExport(String exportOptions) {
+
+		if (!exportOptions.equals(options)) {
+			fragments.clear();
+			declares.clear();
+			// primitive generators can be changed
+			genDeclares.clear();
+			options = exportOptions;
+		}
+		nextFragments = new HashMap<String,LDPovPartTask>();
+		nextDeclares = new HashMap<String,LDPovPartTask>();
+	}
+
+
+
+	/**
+	 * Keeps only parts written by current export
+	 */
+	void finishExport() {
+
+		fragments = nextFragments;
+		declares = nextDeclares;
+		nextFragments = new HashMap<String,LDPovPartTask>();
+		nextDeclares = new HashMap<String,LDPovPartTask>();
+	}
+
+
+
+	/**
+	 * Returns part rendered by last export
+	 * @param key part key
+	 * @return rendered part, null if it isn't in cache
+	 */
+	LDPovPartTask get(String key) {
+
+		return fragments.get(key);
+	}
+
+
+
+	/**
+	 * Returns a rendered part with geometry declare
+	 * @param declareKey declare key, see {@link #getDeclareKey(String, String)}
+	 * @return rendered part, null if declare isn't in cache
+	 */
+	LDPovPartTask getDeclare(String declareKey) {
+
+		LDPovPartTask t = nextDeclares.get(declareKey);
+		if (t == null) {
+			t = declares.get(declareKey);
+		}
+		return t;
+	}
+
+
+
+	/**
+	 * Keeps a part written by current export
+	 * @param t rendered part, with its key
+	 */
+	void put(LDPovPartTask t) {
+
+		nextFragments.put(t.getKey(), t);
+		String d = t.getDeclareKey();
+		if (t.hasDeclareText()) {
+			nextDeclares.put(d, t);
+		}
+		else if (d != null && !nextDeclares.containsKey(d)) {
+			LDPovPartTask old = declares.get(d);
+			if (old != null) {
+				nextDeclares.put(d, old);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Discards all parts
+	 */
+	public void clear() {
+
+		fragments.clear();
+		declares.clear();
+		nextFragments.clear();
+		nextDeclares.clear();
+		options = null;
+	}
+
+
+
+	/**
+	 * @return number of parts in cache
+	 */
+	public int size() {
+
+		return fragments.size();
+	}
+
+}
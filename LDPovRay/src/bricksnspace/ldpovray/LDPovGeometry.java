@@ -0,0 +1,602 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.ldrawlib.LDrawColor;
+
+
+/**
+ * Flattened geometry of an LDraw file, in file local coordinates.
+ *
+ * All sub-files are resolved to triangles, except primitives that are
+ * substituted or generated as POV-Ray objects. Triangles and primitives in
+ * CURRENT color get their color when geometry is placed.
+ *
+ * Optimized geometry, see {@link LDPovGeometryOptimizer}, has also flat
+ * convex polygons made of coplanar triangles. Polygons are in 2D 
+ * coordinates of their plane, with a transformation to file coordinates.
+ *
+ * Matrices are arrays of 12 floats a,b,c,d,e,f,g,h,i,X,Y,Z, in the same
+ * order of LDraw type 1 lines, so a point (u,v,w) is transformed as
+ * (a*u+b*v+c*w+X, d*u+e*v+f*w+Y, g*u+h*v+i*w+Z)
+ *
+ * Geometry is immutable, and can be shared between threads.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovGeometry {
+
+	// 9 floats for every triangle
+	private float[] triangles;
+	private int[] triangleColors;
+	private int triangleCount;
+	// lowercase primitive file name, without 8\ or 48\ prefix
+	private String[] primitives;
+	// true if primitive is program generated, false if substituted from primitive file
+	private boolean[] generated;
+	// 12 floats for every primitive
+	private float[] primitiveMatrix;
+	private int[] primitiveColors;
+	// bounding box of every primitive, in primitive coordinates
+	private float[][] primitiveBounds;
+	private int primitiveCount;
+	// convex polygons of coplanar triangles, in polygon plane coordinates
+	private int polygonCount;
+	// 12 floats for every polygon, from polygon plane to file coordinates
+	private float[] polygonMatrix;
+	// first point and number of points of every polygon
+	private int[] polygonStart;
+	private int[] polygonSize;
+	// u,v for every point
+	private float[] polygonPoints;
+	private int[] polygonColors;
+	private boolean singular;
+	// min x,y,z and max x,y,z, null if geometry is empty
+	private float[] bounds;
+
+
+
+	private LDPovGeometry() {
+		// use Builder
+	}
+
+
+
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+
+
+	/**
+	 * @return triangle vertex coordinates, 9 floats for every triangle
+	 */
+	public float[] getTriangles() {
+		return triangles;
+	}
+
+
+	/**
+	 * @return LDraw color for every triangle, can be CURRENT
+	 */
+	public int[] getTriangleColors() {
+		return triangleColors;
+	}
+
+
+	public int getPrimitiveCount() {
+		return primitiveCount;
+	}
+
+
+	/**
+	 * @return LDraw primitive name for every primitive
+	 */
+	public String[] getPrimitives() {
+		return primitives;
+	}
+
+
+	/**
+	 * @return true for every primitive that is program generated
+	 */
+	public boolean[] getGenerated() {
+		return generated;
+	}
+
+
+	/**
+	 * @return transformation for every primitive, 12 floats for every primitive
+	 */
+	public float[] getPrimitiveMatrix() {
+		return primitiveMatrix;
+	}
+
+
+	/**
+	 * @return LDraw color for every primitive, can be CURRENT
+	 */
+	public int[] getPrimitiveColors() {
+		return primitiveColors;
+	}
+
+
+	/**
+	 * @return bounding box for every primitive, in primitive own coordinates
+	 */
+	public float[][] getPrimitiveBounds() {
+		return primitiveBounds;
+	}
+
+
+	/**
+	 * @return number of polygons, only optimized geometry has polygons
+	 */
+	public int getPolygonCount() {
+		return polygonCount;
+	}
+
+
+	/**
+	 * @return transformation from polygon plane to file coordinates, 12 floats for every polygon
+	 */
+	public float[] getPolygonMatrix() {
+		return polygonMatrix;
+	}
+
+
+	/**
+	 * @return index of first point in {@link #getPolygonPoints()} for every polygon
+	 */
+	public int[] getPolygonStart() {
+		return polygonStart;
+	}
+
+
+	/**
+	 * @return number of points for every polygon, polygon isn't closed
+	 */
+	public int[] getPolygonSize() {
+		return polygonSize;
+	}
+
+
+	/**
+	 * @return u,v coordinates in polygon plane for every point
+	 */
+	public float[] getPolygonPoints() {
+		return polygonPoints;
+	}
+
+
+	/**
+	 * @return LDraw color for every polygon, can be CURRENT
+	 */
+	public int[] getPolygonColors() {
+		return polygonColors;
+	}
+
+
+	/**
+	 * @return true if a singular matrix was corrected while flattening geometry
+	 */
+	public boolean isSingular() {
+		return singular;
+	}
+
+
+
+	/**
+	 * @return bounding box as min x,y,z and max x,y,z, null if geometry is empty
+	 */
+	public float[] getBounds() {
+		return bounds;
+	}
+
+
+
+	/**
+	 * @return approximate memory used by geometry, in bytes
+	 */
+	public long getSize() {
+
+		return 88 + triangles.length * 4L + triangleColors.length * 4L
+				+ primitiveMatrix.length * 4L + primitiveColors.length * 4L
+				+ primitives.length * 16L + generated.length
+				// a float[6] per primitive, with array header
+				+ primitiveBounds.length * (16 + 24L)
+				+ polygonMatrix.length * 4L + polygonPoints.length * 4L + polygonCount * 12L;
+	}
+
+
+
+	/**
+	 * Gets matrix coefficients as a 12 floats array
+	 * @param t matrix
+	 * @return a,b,c,d,e,f,g,h,i,x,y,z
+	 */
+	public static float[] getMatrix(Matrix3D t) {
+
+		float[] m = new float[12];
+		getMatrix(t, m);
+		return m;
+	}
+
+
+
+	/**
+	 * Gets matrix coefficients in an existing array
+	 * @param t matrix
+	 * @param out destination, a,b,c,d,e,f,g,h,i,x,y,z
+	 */
+	public static void getMatrix(Matrix3D t, float[] out) {
+
+		out[0] = t.getA();
+		out[1] = t.getB();
+		out[2] = t.getC();
+		out[3] = t.getD();
+		out[4] = t.getE();
+		out[5] = t.getF();
+		out[6] = t.getG();
+		out[7] = t.getH();
+		out[8] = t.getI();
+		out[9] = t.getX();
+		out[10] = t.getY();
+		out[11] = t.getZ();
+	}
+
+
+
+	/**
+	 * Transforms a point
+	 * @param m matrix
+	 * @param p source coordinates
+	 * @param poff offset of point in p
+	 * @param out destination
+	 * @param ooff offset of point in out
+	 */
+	public static void transformPoint(float[] m, float[] p, int poff, float[] out, int ooff) {
+
+		float x = p[poff], y = p[poff+1], z = p[poff+2];
+		out[ooff] = m[0]*x + m[1]*y + m[2]*z + m[9];
+		out[ooff+1] = m[3]*x + m[4]*y + m[5]*z + m[10];
+		out[ooff+2] = m[6]*x + m[7]*y + m[8]*z + m[11];
+	}
+
+
+
+	/**
+	 * Transforms a bounding box
+	 * @param m matrix
+	 * @param b box as min x,y,z and max x,y,z
+	 * @param out destination, bounding box of transformed box, can't be b
+	 */
+	public static void transformBounds(float[] m, float[] b, float[] out) {
+
+		for (int r=0;r<3;r++) {
+			float min = m[9+r], max = m[9+r];
+			for (int c=0;c<3;c++) {
+				float e = m[r*3+c] * b[c];
+				float f = m[r*3+c] * b[3+c];
+				if (e < f) {
+					min += e;
+					max += f;
+				}
+				else {
+					min += f;
+					max += e;
+				}
+			}
+			out[r] = min;
+			out[3+r] = max;
+		}
+	}
+
+
+
+	/**
+	 * Composes two transformations: result transforms a point with child and then with parent
+	 * @param parent outer transformation
+	 * @param child inner transformation
+	 * @param coff offset of matrix in child
+	 * @param out destination, must not be parent or child
+	 * @param ooff offset of matrix in out
+	 */
+	public static void compose(float[] parent, float[] child, int coff, float[] out, int ooff) {
+
+		for (int r=0;r<3;r++) {
+			float p0 = parent[r*3], p1 = parent[r*3+1], p2 = parent[r*3+2];
+			for (int c=0;c<3;c++) {
+				out[ooff+r*3+c] = p0*child[coff+c] + p1*child[coff+3+c] + p2*child[coff+6+c];
+			}
+			out[ooff+9+r] = p0*child[coff+9] + p1*child[coff+10] + p2*child[coff+11] + parent[9+r];
+		}
+	}
+
+
+
+	/**
+	 * Gets a polygon point in file coordinates
+	 * @param m polygon transformation
+	 * @param uv point coordinates in polygon plane
+	 * @param off offset of point in uv
+	 * @param out destination x,y,z
+	 */
+	public static void getPolygonPoint(float[] m, float[] uv, int off, float[] out) {
+
+		float u = uv[off], v = uv[off+1];
+		out[0] = m[0]*u + m[1]*v + m[9];
+		out[1] = m[3]*u + m[4]*v + m[10];
+		out[2] = m[6]*u + m[7]*v + m[11];
+	}
+
+
+
+	/**
+	 * Builds flattened geometry
+	 */
+	static class Builder {
+
+		private float[] triangles = new float[9*16];
+		private int[] triangleColors = new int[16];
+		private int triangleCount = 0;
+		private List<String> primitives = new ArrayList<String>();
+		private List<float[]> primitiveBounds = new ArrayList<float[]>();
+		private boolean[] generated = new boolean[16];
+		private float[] primitiveMatrix = new float[12*16];
+		private int[] primitiveColors = new int[16];
+		private float[] polygonMatrix = new float[0];
+		private int[] polygonStart = new int[0];
+		private int[] polygonSize = new int[0];
+		private float[] polygonPoints = new float[0];
+		private int[] polygonColors = new int[0];
+		private int polygonCount = 0;
+		private int pointCount = 0;
+		private boolean singular = false;
+		private float[] bounds = new float[] { 
+				Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+				Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+		private float[] box = new float[6];
+
+
+		void setSingular() {
+
+			singular = true;
+		}
+
+
+		private void extend(float[] p, int off) {
+
+			for (int i=0;i<3;i++) {
+				float v = p[off+i];
+				if (v < bounds[i])
+					bounds[i] = v;
+				if (v > bounds[3+i])
+					bounds[3+i] = v;
+			}
+		}
+
+
+		private void extend(float[] m, float[] b) {
+
+			transformBounds(m, b, box);
+			extend(box, 0);
+			extend(box, 3);
+		}
+
+
+		private void ensureTriangles(int n) {
+
+			if (triangleCount + n > triangleColors.length) {
+				int size = Math.max(triangleColors.length*2, triangleCount + n);
+				triangleColors = Arrays.copyOf(triangleColors, size);
+				triangles = Arrays.copyOf(triangles, size*9);
+			}
+		}
+
+
+		private void ensurePrimitives(int n) {
+
+			int count = primitives.size();
+			if (count + n > primitiveColors.length) {
+				int size = Math.max(primitiveColors.length*2, count + n);
+				primitiveColors = Arrays.copyOf(primitiveColors, size);
+				generated = Arrays.copyOf(generated, size);
+				primitiveMatrix = Arrays.copyOf(primitiveMatrix, size*12);
+			}
+		}
+
+
+		/**
+		 * Adds a triangle
+		 * @param p vertex coordinates
+		 * @param off offset of first vertex in p
+		 * @param color LDraw color, CURRENT if it is inherited
+		 */
+		void addTriangle(float[] p, int off, int color) {
+
+			ensureTriangles(1);
+			System.arraycopy(p, off, triangles, triangleCount*9, 9);
+			triangleColors[triangleCount++] = color;
+			extend(p, off);
+			extend(p, off+3);
+			extend(p, off+6);
+		}
+
+
+		/**
+		 * Adds a quad, as two triangles
+		 * @param p vertex coordinates
+		 * @param color LDraw color, CURRENT if it is inherited
+		 */
+		void addQuad(float[] p, int color) {
+
+			ensureTriangles(2);
+			int t = triangleCount*9;
+			System.arraycopy(p, 0, triangles, t, 9);
+			// now vertex 0,2,3
+			System.arraycopy(p, 0, triangles, t+9, 3);
+			System.arraycopy(p, 6, triangles, t+12, 6);
+			triangleColors[triangleCount++] = color;
+			triangleColors[triangleCount++] = color;
+			extend(p, 0);
+			extend(p, 3);
+			extend(p, 6);
+			extend(p, 9);
+		}
+
+
+		private void ensurePolygons(int n, int points) {
+
+			if (polygonCount + n > polygonColors.length) {
+				int size = Math.max(Math.max(polygonColors.length*2, 16), polygonCount + n);
+				polygonColors = Arrays.copyOf(polygonColors, size);
+				polygonStart = Arrays.copyOf(polygonStart, size);
+				polygonSize = Arrays.copyOf(polygonSize, size);
+				polygonMatrix = Arrays.copyOf(polygonMatrix, size*12);
+			}
+			if ((pointCount + points)*2 > polygonPoints.length) {
+				int size = Math.max(Math.max(polygonPoints.length*2, 64), (pointCount + points)*2);
+				polygonPoints = Arrays.copyOf(polygonPoints, size);
+			}
+		}
+
+
+		/**
+		 * Adds a flat convex polygon
+		 * @param m transformation from polygon plane to file coordinates, 12 floats
+		 * @param uv point coordinates u,v in polygon plane
+		 * @param off offset of first point in uv
+		 * @param n number of points
+		 * @param color LDraw color, CURRENT if it is inherited
+		 */
+		void addPolygon(float[] m, float[] uv, int off, int n, int color) {
+
+			ensurePolygons(1, n);
+			System.arraycopy(m, 0, polygonMatrix, polygonCount*12, 12);
+			System.arraycopy(uv, off, polygonPoints, pointCount*2, n*2);
+			for (int i=0;i<n;i++) {
+				getPolygonPoint(m, uv, off+i*2, box);
+				extend(box, 0);
+			}
+			polygonStart[polygonCount] = pointCount;
+			polygonSize[polygonCount] = n;
+			polygonColors[polygonCount++] = color;
+			pointCount += n;
+		}
+
+
+		/**
+		 * Adds a substituted or generated primitive
+		 * @param name primitive name
+		 * @param gen true if it is program generated
+		 * @param m primitive transformation, 12 floats
+		 * @param color LDraw color, CURRENT if it is inherited
+		 * @param b bounding box of primitive, in its own coordinates
+		 */
+		void addPrimitive(String name, boolean gen, float[] m, int color, float[] b) {
+
+			ensurePrimitives(1);
+			int i = primitives.size();
+			primitives.add(name);
+			primitiveBounds.add(b);
+			generated[i] = gen;
+			System.arraycopy(m, 0, primitiveMatrix, i*12, 12);
+			primitiveColors[i] = color;
+			extend(m, b);
+		}
+
+
+		/**
+		 * Adds a placed sub-file geometry
+		 * @param g geometry to add
+		 * @param m transformation of sub-file
+		 * @param color color for CURRENT color in sub-file, can be CURRENT
+		 */
+		void addGeometry(LDPovGeometry g, float[] m, int color) {
+
+			ensureTriangles(g.triangleCount);
+			for (int i=0;i<g.triangleCount;i++) {
+				int t = triangleCount*9;
+				transformPoint(m, g.triangles, i*9, triangles, t);
+				transformPoint(m, g.triangles, i*9+3, triangles, t+3);
+				transformPoint(m, g.triangles, i*9+6, triangles, t+6);
+				int c = g.triangleColors[i];
+				triangleColors[triangleCount++] = c == LDrawColor.CURRENT ? color : c;
+			}
+			ensurePrimitives(g.primitiveCount);
+			for (int i=0;i<g.primitiveCount;i++) {
+				int j = primitives.size();
+				primitives.add(g.primitives[i]);
+				primitiveBounds.add(g.primitiveBounds[i]);
+				generated[j] = g.generated[i];
+				compose(m, g.primitiveMatrix, i*12, primitiveMatrix, j*12);
+				int c = g.primitiveColors[i];
+				primitiveColors[j] = c == LDrawColor.CURRENT ? color : c;
+			}
+			ensurePolygons(g.polygonCount, g.polygonPoints.length/2);
+			for (int i=0;i<g.polygonCount;i++) {
+				compose(m, g.polygonMatrix, i*12, polygonMatrix, polygonCount*12);
+				System.arraycopy(g.polygonPoints, g.polygonStart[i]*2, polygonPoints, pointCount*2, g.polygonSize[i]*2);
+				polygonStart[polygonCount] = pointCount;
+				polygonSize[polygonCount] = g.polygonSize[i];
+				int c = g.polygonColors[i];
+				polygonColors[polygonCount++] = c == LDrawColor.CURRENT ? color : c;
+				pointCount += g.polygonSize[i];
+			}
+			singular |= g.singular;
+			if (g.bounds != null) {
+				extend(m, g.bounds);
+			}
+		}
+
+
+		LDPovGeometry build() {
+
+			LDPovGeometry g = new LDPovGeometry();
+			g.triangleCount = triangleCount;
+			g.triangles = Arrays.copyOf(triangles, triangleCount*9);
+			g.triangleColors = Arrays.copyOf(triangleColors, triangleCount);
+			g.primitiveCount = primitives.size();
+			g.primitives = primitives.toArray(new String[g.primitiveCount]);
+			g.generated = Arrays.copyOf(generated, g.primitiveCount);
+			g.primitiveBounds = primitiveBounds.toArray(new float[g.primitiveCount][]);
+			g.primitiveMatrix = Arrays.copyOf(primitiveMatrix, g.primitiveCount*12);
+			g.primitiveColors = Arrays.copyOf(primitiveColors, g.primitiveCount);
+			g.polygonCount = polygonCount;
+			g.polygonMatrix = Arrays.copyOf(polygonMatrix, polygonCount*12);
+			g.polygonStart = Arrays.copyOf(polygonStart, polygonCount);
+			g.polygonSize = Arrays.copyOf(polygonSize, polygonCount);
+			g.polygonPoints = Arrays.copyOf(polygonPoints, pointCount*2);
+			g.polygonColors = Arrays.copyOf(polygonColors, polygonCount);
+			g.singular = singular;
+			if (bounds[0] <= bounds[3]) {
+				g.bounds = bounds.clone();
+			}
+			return g;
+		}
+	}
+
+}
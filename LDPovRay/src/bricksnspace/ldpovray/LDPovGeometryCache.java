@@ -0,0 +1,222 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Cache of flattened sub-file geometry, shared between exports.
+ *
+ * Cache is bounded by memory used by geometries: least recently used
+ * geometries are discarded when limit is reached. A geometry larger
+ * than a quarter of limit isn't cached at all.
+ *
+ * Geometry is keyed by content of LDraw file and its sub-files, see 
+ * {@link LDPovContentKey}, so model sub-models and custom parts can be 
+ * cached with library parts: an edited file gets a new key. Old 
+ * geometries are discarded as least recently used.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovGeometryCache {
+
+	// default memory limit, 64 MB
+	public static final long DEFAULT_MAXSIZE = 64L*1024*1024;
+
+	private static LDPovGeometryCache shared = new LDPovGeometryCache(DEFAULT_MAXSIZE);
+
+	private Map<String,LDPovGeometry> cache = new LinkedHashMap<String,LDPovGeometry>(256, 0.75f, true);
+	private long maxSize;
+	private long size = 0;
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+
+
+
+	/**
+	 * Creates a new empty cache
+	 * @param maxSize memory limit in bytes
+	 */
+	public LDPovGeometryCache(long maxSize) {
+
+		this.maxSize = maxSize;
+	}
+
+
+
+	/**
+	 * @return cache shared by all exports that don't set their own cache
+	 */
+	public static LDPovGeometryCache getShared() {
+
+		return shared;
+	}
+
+
+
+	/**
+	 * Cache key for a geometry
+	 * @param ldrawId LDraw file name
+	 * @param contentKey key of file content, see {@link LDPovContentKey}
+	 * @param invert true if file is inverted (BFC)
+	 * @param simplified true if geometry is without internal details
+	 * @param substKey key of primitive substitution list and generators used to flatten geometry
+	 * @return key
+	 */
+	static String getKey(String ldrawId, String contentKey, boolean invert, boolean simplified, int substKey) {
+
+		return ldrawId.toLowerCase() + "|" + contentKey + (invert ? "|i" : "|n") + (simplified ? "s|" : "f|") + substKey;
+	}
+
+
+
+	/**
+	 * Gets a geometry from cache
+	 * @param key geometry key
+	 * @return geometry or null if not in cache
+	 */
+	synchronized LDPovGeometry get(String key) {
+
+		LDPovGeometry g = cache.get(key);
+		if (g == null) {
+			misses.incrementAndGet();
+		}
+		else {
+			hits.incrementAndGet();
+		}
+		return g;
+	}
+
+
+
+	/**
+	 * Puts a geometry in cache, discarding least recently used geometries if needed
+	 * @param key geometry key
+	 * @param g geometry
+	 */
+	synchronized void put(String key, LDPovGeometry g) {
+
+		if (g.getSize() > maxSize / 4) {
+			return;
+		}
+		LDPovGeometry old = cache.put(key, g);
+		if (old != null) {
+			size -= old.getSize();
+		}
+		size += g.getSize();
+		Iterator<LDPovGeometry> i = cache.values().iterator();
+		while (size > maxSize && i.hasNext()) {
+			size -= i.next().getSize();
+			i.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+
+
+	/**
+	 * Discards all cached geometries, statistics are kept.
+	 */
+	public synchronized void clear() {
+
+		cache.clear();
+		size = 0;
+	}
+
+
+
+	/**
+	 * Sets memory limit, discarding geometries if needed
+	 * @param maxSize memory limit in bytes
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+
+		this.maxSize = maxSize;
+		Iterator<LDPovGeometry> i = cache.values().iterator();
+		while (size > maxSize && i.hasNext()) {
+			size -= i.next().getSize();
+			i.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+
+	/**
+	 * @return approximate memory used by cached geometries, in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+
+	/**
+	 * @return number of cached geometries
+	 */
+	public synchronized int getCount() {
+		return cache.size();
+	}
+
+
+	public long getHits() {
+		return hits.get();
+	}
+
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+
+	/**
+	 * Resets hit, miss and eviction counters
+	 */
+	public void resetStatistics() {
+
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+
+
+	@Override
+	public String toString() {
+		return "LDPovGeometryCache [count=" + getCount() + ", size=" + getSize()
+				+ ", hits=" + getHits() + ", misses=" + getMisses()
+				+ ", evictions=" + getEvictions() + "]";
+	}
+
+}
@@ -0,0 +1,352 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Reduces objects written for part geometry.
+ *
+ * Vertices within a tolerance on every axis are welded to the same 
+ * position, triangles with zero area after welding are dropped, and 
+ * adjacent coplanar triangles with the same color and winding are merged 
+ * in convex polygons, like the two triangles of an LDraw quad. Primitives 
+ * are not changed.
+ *
+ * Polygons are kept in 2D coordinates of their plane, so they are
+ * exactly flat when written, as POV-Ray requires.
+ *
+ * @author Mario Pascucci
+ *
+ */
+class LDPovGeometryOptimizer {
+
+	// max points in a merged polygon
+	private static final int MAXPOINTS = 32;
+	// min sine of angle at polygon corners, to keep polygons strictly convex
+	private static final float MINTURN = 1e-4f;
+	// min cosine of angle between normals of coplanar triangles
+	private static final float MINCOS = 1 - 1e-5f;
+
+	private float tolerance;
+	private LDPovExportStats stats;
+
+	// welded vertices, x,y,z
+	private float[] vertex;
+	private int vertexCount = 0;
+	// grid cell -> welded vertex in that cell
+	private Map<Long,Integer> cells = new HashMap<Long,Integer>();
+
+
+
+	private LDPovGeometryOptimizer(float tolerance, LDPovExportStats stats) {
+
+		this.tolerance = tolerance;
+		this.stats = stats;
+	}
+
+
+
+	/**
+	 * Optimizes a geometry
+	 * @param g geometry to optimize
+	 * @param tolerance max difference on every axis of welded vertices, and max distance 
+	 * of coplanar points from plane, in LDraw units
+	 * @param stats export stats, for triangles dropped and merged
+	 * @return optimized geometry
+	 */
+	static LDPovGeometry optimize(LDPovGeometry g, float tolerance, LDPovExportStats stats) {
+
+		return new LDPovGeometryOptimizer(tolerance, stats).run(g);
+	}
+
+
+
+	private static long getCellKey(int x, int y, int z) {
+
+		return ((long)(x & 0x1fffff) << 42) | ((long)(y & 0x1fffff) << 21) | (z & 0x1fffff);
+	}
+
+
+
+	/**
+	 * Returns welded vertex for a point, adding it if there isn't a
+	 * vertex within tolerance on every axis
+	 */
+	private int weld(float x, float y, float z) {
+
+		int cx = (int) Math.floor(x / tolerance);
+		int cy = (int) Math.floor(y / tolerance);
+		int cz = (int) Math.floor(z / tolerance);
+		for (int i=-1;i<=1;i++) {
+			for (int j=-1;j<=1;j++) {
+				for (int k=-1;k<=1;k++) {
+					Integer v = cells.get(getCellKey(cx+i, cy+j, cz+k));
+					if (v != null
+							&& Math.abs(vertex[v*3] - x) <= tolerance
+							&& Math.abs(vertex[v*3+1] - y) <= tolerance
+							&& Math.abs(vertex[v*3+2] - z) <= tolerance) {
+						return v;
+					}
+				}
+			}
+		}
+		vertex[vertexCount*3] = x;
+		vertex[vertexCount*3+1] = y;
+		vertex[vertexCount*3+2] = z;
+		Long key = getCellKey(cx, cy, cz);
+		if (!cells.containsKey(key)) {
+			cells.put(key, vertexCount);
+		}
+		return vertexCount++;
+	}
+
+
+
+	/**
+	 * Cross product of b-a and c-b
+	 */
+	private void cross(int a, int b, int c, float[] out) {
+
+		float ux = vertex[b*3] - vertex[a*3];
+		float uy = vertex[b*3+1] - vertex[a*3+1];
+		float uz = vertex[b*3+2] - vertex[a*3+2];
+		float vx = vertex[c*3] - vertex[b*3];
+		float vy = vertex[c*3+1] - vertex[b*3+1];
+		float vz = vertex[c*3+2] - vertex[b*3+2];
+		out[0] = uy*vz - uz*vy;
+		out[1] = uz*vx - ux*vz;
+		out[2] = ux*vy - uy*vx;
+	}
+
+
+
+	private float distance(int a, int b) {
+
+		float dx = vertex[b*3] - vertex[a*3];
+		float dy = vertex[b*3+1] - vertex[a*3+1];
+		float dz = vertex[b*3+2] - vertex[a*3+2];
+		return (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+
+
+
+	/**
+	 * @return true if path a,b,c turns around normal n, by a not too small angle
+	 */
+	private boolean isConvex(int a, int b, int c, float[] n, float[] tmp) {
+
+		cross(a, b, c, tmp);
+		float turn = tmp[0]*n[0] + tmp[1]*n[1] + tmp[2]*n[2];
+		return turn > MINTURN * distance(a, b) * distance(b, c);
+	}
+
+
+
+	private LDPovGeometry run(LDPovGeometry g) {
+
+		int count = g.getTriangleCount();
+		float[] t = g.getTriangles();
+		int[] tc = g.getTriangleColors();
+		vertex = new float[count*9];
+		// welded vertices of triangles, -1 for dropped triangles
+		int[] tv = new int[count*3];
+		float[] normal = new float[count*3];
+		float[] tmp = new float[3];
+		int degenerate = 0;
+		for (int i=0;i<count;i++) {
+			for (int k=0;k<3;k++) {
+				tv[i*3+k] = weld(t[i*9+k*3], t[i*9+k*3+1], t[i*9+k*3+2]);
+			}
+			int a = tv[i*3], b = tv[i*3+1], c = tv[i*3+2];
+			cross(a, b, c, tmp);
+			float len = (float) Math.sqrt(tmp[0]*tmp[0] + tmp[1]*tmp[1] + tmp[2]*tmp[2]);
+			if (a == b || b == c || a == c || len <= tolerance * tolerance) {
+				tv[i*3] = -1;
+				degenerate++;
+				continue;
+			}
+			normal[i*3] = tmp[0] / len;
+			normal[i*3+1] = tmp[1] / len;
+			normal[i*3+2] = tmp[2] / len;
+		}
+		// triangles on every edge, as linked lists
+		Map<Long,Integer> edges = new HashMap<Long,Integer>();
+		int[] edgeTriangle = new int[count*3];
+		int[] edgeNext = new int[count*3];
+		int entries = 0;
+		for (int i=0;i<count;i++) {
+			if (tv[i*3] < 0)
+				continue;
+			for (int k=0;k<3;k++) {
+				Long key = getEdgeKey(tv[i*3+k], tv[i*3+(k+1)%3]);
+				Integer head = edges.get(key);
+				edgeTriangle[entries] = i;
+				edgeNext[entries] = head == null ? -1 : head;
+				edges.put(key, entries++);
+			}
+		}
+		LDPovGeometry.Builder gb = new LDPovGeometry.Builder();
+		boolean[] used = new boolean[count];
+		int[] loop = new int[MAXPOINTS];
+		float[] tri = new float[9];
+		float[] m = new float[12];
+		float[] uv = new float[MAXPOINTS*2];
+		int merged = 0;
+		int polygons = 0;
+		for (int i=0;i<count;i++) {
+			if (tv[i*3] < 0 || used[i])
+				continue;
+			used[i] = true;
+			float[] n = new float[] { normal[i*3], normal[i*3+1], normal[i*3+2] };
+			int size = 3;
+			loop[0] = tv[i*3];
+			loop[1] = tv[i*3+1];
+			loop[2] = tv[i*3+2];
+			boolean grown = true;
+			while (grown && size < MAXPOINTS) {
+				grown = false;
+				for (int k=0;k<size && !grown;k++) {
+					int a = loop[k], b = loop[(k+1)%size];
+					Integer e = edges.get(getEdgeKey(a, b));
+					for (int en = e == null ? -1 : e;en >= 0 && !grown;en = edgeNext[en]) {
+						int o = edgeTriangle[en];
+						// same facing too, winding of BFC parts is kept
+						if (used[o] || tc[o] != tc[i]
+								|| normal[o*3]*n[0] + normal[o*3+1]*n[1] + normal[o*3+2]*n[2] < MINCOS)
+							continue;
+						int w = tv[o*3] + tv[o*3+1] + tv[o*3+2] - a - b;
+						if (!isOutside(w, loop, size, n, tmp, k))
+							continue;
+						// insert new point between a and b
+						System.arraycopy(loop, k+1, loop, k+2, size-k-1);
+						loop[k+1] = w;
+						size++;
+						used[o] = true;
+						grown = true;
+					}
+				}
+			}
+			if (size == 3) {
+				for (int k=0;k<3;k++) {
+					System.arraycopy(vertex, loop[k]*3, tri, k*3, 3);
+				}
+				gb.addTriangle(tri, 0, tc[i]);
+				continue;
+			}
+			getPlane(loop, n, m);
+			for (int k=0;k<size;k++) {
+				float dx = vertex[loop[k]*3] - m[9];
+				float dy = vertex[loop[k]*3+1] - m[10];
+				float dz = vertex[loop[k]*3+2] - m[11];
+				uv[k*2] = dx*m[0] + dy*m[3] + dz*m[6];
+				uv[k*2+1] = dx*m[1] + dy*m[4] + dz*m[7];
+			}
+			gb.addPolygon(m, uv, 0, size, tc[i]);
+			merged += size-2;
+			polygons++;
+		}
+		String[] names = g.getPrimitives();
+		float[][] pb = g.getPrimitiveBounds();
+		float[] pm = g.getPrimitiveMatrix();
+		for (int i=0;i<g.getPrimitiveCount();i++) {
+			gb.addPrimitive(names[i], g.getGenerated()[i], Arrays.copyOfRange(pm, i*12, i*12+12),
+					g.getPrimitiveColors()[i], pb[i]);
+		}
+		if (g.isSingular()) {
+			gb.setSingular();
+		}
+		stats.optimizedTriangles += count;
+		stats.degenerateTriangles += degenerate;
+		stats.mergedTriangles += merged;
+		stats.polygons += polygons;
+		return gb.build();
+	}
+
+
+
+	private static Long getEdgeKey(int a, int b) {
+
+		return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+	}
+
+
+
+	/**
+	 * Checks if a point can be added to polygon between points k and k+1,
+	 * keeping polygon flat and convex
+	 */
+	private boolean isOutside(int w, int[] loop, int size, float[] n, float[] tmp, int k) {
+
+		for (int i=0;i<size;i++) {
+			if (loop[i] == w)
+				return false;
+		}
+		int p0 = loop[0];
+		float d = (vertex[w*3] - vertex[p0*3])*n[0] + (vertex[w*3+1] - vertex[p0*3+1])*n[1]
+				+ (vertex[w*3+2] - vertex[p0*3+2])*n[2];
+		if (Math.abs(d) > tolerance)
+			return false;
+		int prev = loop[(k+size-1)%size];
+		int a = loop[k];
+		int b = loop[(k+1)%size];
+		int next = loop[(k+2)%size];
+		return isConvex(prev, a, w, n, tmp) && isConvex(a, w, b, n, tmp) && isConvex(w, b, next, n, tmp);
+	}
+
+
+
+	/**
+	 * Gets polygon plane, with origin in first point and u axis along first side
+	 * @param loop polygon points
+	 * @param n polygon normal
+	 * @param m destination, transformation from plane to file coordinates
+	 */
+	private void getPlane(int[] loop, float[] n, float[] m) {
+
+		float ux = vertex[loop[1]*3] - vertex[loop[0]*3];
+		float uy = vertex[loop[1]*3+1] - vertex[loop[0]*3+1];
+		float uz = vertex[loop[1]*3+2] - vertex[loop[0]*3+2];
+		float len = (float) Math.sqrt(ux*ux + uy*uy + uz*uz);
+		ux /= len;
+		uy /= len;
+		uz /= len;
+		// v = n x u
+		float vx = n[1]*uz - n[2]*uy;
+		float vy = n[2]*ux - n[0]*uz;
+		float vz = n[0]*uy - n[1]*ux;
+		m[0] = ux;
+		m[1] = vx;
+		m[2] = n[0];
+		m[3] = uy;
+		m[4] = vy;
+		m[5] = n[1];
+		m[6] = uz;
+		m[7] = vz;
+		m[8] = n[2];
+		m[9] = vertex[loop[0]*3];
+		m[10] = vertex[loop[0]*3+1];
+		m[11] = vertex[loop[0]*3+2];
+	}
+
+}
@@ -0,0 +1,202 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import bricksnspace.ldrawlib.LDrawColor;
+
+
+/**
+ * POV-Ray materials of LDraw colors used by an export.
+ *
+ * Text of every material, its declare and the text that closes an
+ * object with it, is built once, when color is first used, so parts
+ * are written without looking up color names.
+ *
+ * A color can have a user defined material in place of the one
+ * generated from LDraw color table. User materials must be set before
+ * export starts.
+ *
+ * In a self-contained scene only materials used by parts are declared,
+ * every one before the first part that uses it. With include files in
+ * a directory, materials include has all colors, because it can be
+ * shared by many scenes, and scene declares again only user materials.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovMaterialTable {
+
+	/**
+	 * Material of a single LDraw color
+	 */
+	static class Material {
+
+		final int id;
+		final String name;
+		// declare with comment
+		final char[] declare;
+		// closes an object with this material
+		final char[] reference;
+
+		Material(int id, String name, String declare) {
+			this.id = id;
+			this.name = name;
+			this.declare = declare.toCharArray();
+			reference = ("  material { "+name+" }\n}\n\n").toCharArray();
+		}
+	}
+
+	// color id -> material, built on first use
+	private ConcurrentMap<Integer,Material> materials = new ConcurrentHashMap<Integer,Material>();
+	// color id -> user defined material
+	private Map<Integer,String> userMaterials = new HashMap<Integer,String>();
+	// materials are declared before parts that use them
+	private boolean declareOnUse = false;
+
+
+
+	/**
+	 * Sets a user defined material for a color
+	 * @param colorId LDraw color ID
+	 * @param material POV-Ray material, like "material { texture { pigment { rgb <1,0,0> } finish { SOLID } } }"
+	 */
+	public void setMaterial(int colorId, String material) {
+
+		userMaterials.put(colorId, material);
+		materials.remove(colorId);
+	}
+
+
+
+	/**
+	 * Removes user defined material of a color, material is generated from
+	 * LDraw color table
+	 * @param colorId LDraw color ID
+	 */
+	public void removeMaterial(int colorId) {
+
+		userMaterials.remove(colorId);
+		materials.remove(colorId);
+	}
+
+
+
+	/**
+	 * @param colorId LDraw color ID
+	 * @return user defined material, null if color uses generated material
+	 */
+	public String getMaterial(int colorId) {
+
+		return userMaterials.get(colorId);
+	}
+
+
+
+	/**
+	 * Starts an export: drops materials built by a previous export,
+	 * because LDraw color table can change
+	 * @param declareOnUse true if materials are declared in scene before
+	 * parts that use them, false if they are in materials include
+	 */
+	void startExport(boolean declareOnUse) {
+
+		this.declareOnUse = declareOnUse;
+		materials.clear();
+	}
+
+
+
+	boolean isDeclareOnUse() {
+		return declareOnUse;
+	}
+
+
+
+	/**
+	 * Returns material of a color, building it if it is first used
+	 * @param colorId LDraw color ID
+	 * @return material
+	 * @throws IOException
+	 */
+	Material get(int colorId) throws IOException {
+
+		Material m = materials.get(colorId);
+		if (m == null) {
+			m = build(colorId);
+			Material old = materials.putIfAbsent(colorId, m);
+			if (old != null) {
+				m = old;
+			}
+		}
+		return m;
+	}
+
+
+
+	private Material build(int colorId) throws IOException {
+
+		String name = LDrawColor.getById(colorId).getName();
+		String user = userMaterials.get(colorId);
+		StringWriter sw = new StringWriter();
+		LDPovWriter w = new LDPovWriter(sw);
+		if (user != null) {
+			w.write("// User defined material color ID ");
+			w.writeInt(colorId);
+			w.write("\n#declare ");
+			w.write(name);
+			w.write('=');
+			w.write(user);
+			w.write("\n\n");
+		}
+		else {
+			LDMaterials.writeMaterial(w, colorId);
+		}
+		w.flush();
+		return new Material(colorId, name, sw.toString());
+	}
+
+
+
+	/**
+	 * Writes declares of user defined materials, to replace materials
+	 * in materials include
+	 * @param bw output
+	 * @throws IOException
+	 */
+	void writeUserMaterials(LDPovWriter bw) throws IOException {
+
+		List<Integer> l = new ArrayList<Integer>(userMaterials.keySet());
+		Collections.sort(l);
+		for (int i : l) {
+			bw.write(get(i).declare);
+		}
+	}
+
+}
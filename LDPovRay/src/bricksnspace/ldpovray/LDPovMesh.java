@@ -0,0 +1,231 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Collects triangles of a part as POV-Ray mesh2 data:
+ * a vertex list without duplicates and a face index list.
+ *
+ * Triangles are grouped by LDraw color, every group becomes a mesh2 object
+ * with its own material.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovMesh {
+
+	private Map<Integer,Group> groups = new LinkedHashMap<Integer,Group>();
+	// empty groups of colors used before
+	private Map<Integer,Group> spare = new HashMap<Integer,Group>();
+
+
+
+	/**
+	 * Triangles for a single color, with shared vertices
+	 */
+	public static class Group {
+
+		private int color;
+		private float[] vertex = new float[3*64];
+		private int vertexCount = 0;
+		private int[] face = new int[3*64];
+		private int faceCount = 0;
+		// open addressing hash table vertex -> index+1, 0 is empty slot
+		private int[] table = new int[256];
+
+
+		private Group(int color) {
+
+			this.color = color;
+		}
+
+
+		public int getColor() {
+			return color;
+		}
+
+
+		public int getVertexCount() {
+			return vertexCount;
+		}
+
+
+		public int getFaceCount() {
+			return faceCount;
+		}
+
+
+		/**
+		 * @return vertex coordinates x,y,z for every vertex, 3*{@link #getVertexCount()} items are valid
+		 */
+		public float[] getVertex() {
+			return vertex;
+		}
+
+
+		/**
+		 * @return vertex index triplets for every face, 3*{@link #getFaceCount()} items are valid
+		 */
+		public int[] getFace() {
+			return face;
+		}
+
+
+		private static int hash(float x, float y, float z) {
+
+			int h = Float.floatToIntBits(x);
+			h = h * 31 + Float.floatToIntBits(y);
+			h = h * 31 + Float.floatToIntBits(z);
+			return h ^ (h >>> 16);
+		}
+
+
+		private void rehash() {
+
+			table = new int[table.length*2];
+			int mask = table.length - 1;
+			for (int i=0;i<vertexCount;i++) {
+				int slot = hash(vertex[i*3],vertex[i*3+1],vertex[i*3+2]) & mask;
+				while (table[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				table[slot] = i+1;
+			}
+		}
+
+
+		private int addVertex(float x, float y, float z) {
+
+			// no negative zero, it is the same vertex
+			x += 0.0f;
+			y += 0.0f;
+			z += 0.0f;
+			int mask = table.length - 1;
+			int slot = hash(x,y,z) & mask;
+			while (table[slot] != 0) {
+				int i = (table[slot]-1)*3;
+				if (vertex[i] == x && vertex[i+1] == y && vertex[i+2] == z) {
+					return table[slot]-1;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (vertexCount*3 == vertex.length) {
+				vertex = Arrays.copyOf(vertex, vertex.length*2);
+			}
+			vertex[vertexCount*3] = x;
+			vertex[vertexCount*3+1] = y;
+			vertex[vertexCount*3+2] = z;
+			table[slot] = ++vertexCount;
+			// keep load factor under 0.5
+			if (vertexCount*2 > table.length) {
+				rehash();
+			}
+			return vertexCount-1;
+		}
+
+
+		private void clear() {
+
+			vertexCount = 0;
+			faceCount = 0;
+			Arrays.fill(table, 0);
+		}
+
+
+		private void addFace(float[] p1, float[] p2, float[] p3) {
+
+			int a = addVertex(p1[0], p1[1], p1[2]);
+			int b = addVertex(p2[0], p2[1], p2[2]);
+			int c = addVertex(p3[0], p3[1], p3[2]);
+			if (a == b || b == c || a == c) {
+				// degenerate face, POV-Ray discards it anyway
+				return;
+			}
+			if (faceCount*3 == face.length) {
+				face = Arrays.copyOf(face, face.length*2);
+			}
+			face[faceCount*3] = a;
+			face[faceCount*3+1] = b;
+			face[faceCount*3+2] = c;
+			faceCount++;
+		}
+	}
+
+
+
+	/**
+	 * Adds a triangle to mesh
+	 * @param p1 first vertex
+	 * @param p2 second vertex
+	 * @param p3 third vertex
+	 * @param ldrcolor LDraw color index
+	 */
+	public void addTriangle(float[] p1, float[] p2, float[] p3, int ldrcolor) {
+
+		Group g = groups.get(ldrcolor);
+		if (g == null) {
+			g = spare.remove(ldrcolor);
+			if (g == null) {
+				g = new Group(ldrcolor);
+			}
+			groups.put(ldrcolor, g);
+		}
+		g.addFace(p1, p2, p3);
+	}
+
+
+
+	public boolean isEmpty() {
+
+		return groups.isEmpty();
+	}
+
+
+
+	/**
+	 * @return triangle groups, in order of first use of color
+	 */
+	public List<Group> getGroups() {
+
+		return new ArrayList<Group>(groups.values());
+	}
+
+
+
+	/**
+	 * Empties mesh, groups are kept to be reused with their buffers
+	 */
+	public void clear() {
+
+		for (Group g : groups.values()) {
+			g.clear();
+			spare.put(g.color, g);
+		}
+		groups.clear();
+	}
+}
@@ -0,0 +1,338 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.ldrawlib.LDPrimitive;
+
+
+/**
+ * Renders a single placed part in its own buffer.
+ *
+ * Tasks can run in any order and in any thread, output is assembled
+ * in model order with {@link #write(LDPovWriter, Set, LDPovExportContext)}, so it is the same
+ * for serial and parallel export.
+ *
+ * Rendered output is kept by task, so it can be written again by a later
+ * export, see {@link LDPovFragmentCache}.
+ *
+ * @author Mario Pascucci
+ *
+ */
+class LDPovPartTask implements Callable<LDPovPartTask> {
+
+	private LDPovExportContext ctx;
+	private LDPrimitive part;
+	private Matrix3D viewMatrix;
+	// displacement of part in LDraw coordinates
+	private float offsetX, offsetY, offsetZ;
+	// flattened part and placement, used if part is null
+	private LDPovGeometry geometry;
+	private String ldrawId;
+	private float[] placement;
+	private int color;
+	private boolean useMesh;
+	// POV-Ray identifier of part geometry, null if instancing is off
+	private String declare;
+	// true if this task must also write part geometry declare
+	private boolean newDeclare;
+
+	private String declareText;
+	private String text;
+	private List<String> usedGenerated;
+	private List<LDPovMaterialTable.Material> usedMaterials;
+	// part bounds in POV-Ray coordinates, null if part is empty
+	private float[] bounds;
+	private LDPovExportStats stats = new LDPovExportStats();
+	// key in fragment cache, null if it isn't cached
+	private String key;
+	// key of part geometry declare in fragment cache, null if it isn't cached
+	private String declareKey;
+
+
+
+	/**
+	 * Prepares a task for a part
+	 * @param ctx export context, must be used only by this task while it runs
+	 * @param part part placement
+	 * @param viewMatrix current view transformation
+	 * @param useMesh true to write triangles as mesh2
+	 * @param declare identifier for part geometry if instancing, null otherwise
+	 * @param newDeclare true if part geometry declare must be written before instance
+	 */
+	LDPovPartTask(LDPovExportContext ctx, LDPrimitive part, Matrix3D viewMatrix, boolean useMesh,
+			String declare, boolean newDeclare) {
+
+		this.ctx = ctx;
+		this.part = part;
+		this.viewMatrix = viewMatrix;
+		this.useMesh = useMesh;
+		this.declare = declare;
+		this.newDeclare = newDeclare;
+	}
+
+
+
+	/**
+	 * Prepares a task for an instance of a flattened part
+	 * @param ctx export context, must be used only by this task while it runs
+	 * @param geometry part geometry
+	 * @param ldrawId LDraw part id
+	 * @param placement part placement in POV-Ray coordinates
+	 * @param color LDraw color
+	 * @param useMesh true to write triangles as mesh2
+	 * @param declare identifier for part geometry
+	 * @param newDeclare true if part geometry declare must be written before instance
+	 */
+	LDPovPartTask(LDPovExportContext ctx, LDPovGeometry geometry, String ldrawId, float[] placement, int color, 
+			boolean useMesh, String declare, boolean newDeclare) {
+
+		this.ctx = ctx;
+		this.geometry = geometry;
+		this.ldrawId = ldrawId;
+		this.placement = placement;
+		this.color = color;
+		this.useMesh = useMesh;
+		this.declare = declare;
+		this.newDeclare = newDeclare;
+	}
+
+
+
+	/**
+	 * Reuses output of a task rendered by a previous export
+	 * @param rendered rendered task
+	 */
+	LDPovPartTask(LDPovPartTask rendered) {
+
+		part = rendered.part;
+		declare = rendered.declare;
+		declareText = rendered.declareText;
+		text = rendered.text;
+		usedGenerated = rendered.usedGenerated;
+		usedMaterials = rendered.usedMaterials;
+		bounds = rendered.bounds;
+		key = rendered.key;
+		declareKey = rendered.declareKey;
+		stats.parts = 1;
+		stats.partsReused = 1;
+	}
+
+
+
+	@Override
+	public LDPovPartTask call() throws IOException {
+
+		if (ctx == null) {
+			// already rendered
+			return this;
+		}
+		long start = System.nanoTime();
+		LDPovExportStats parentStats = ctx.stats;
+		ctx.stats = stats;
+		ctx.offset[0] = offsetX;
+		ctx.offset[1] = offsetY;
+		ctx.offset[2] = offsetZ;
+		try {
+			render();
+		}
+		finally {
+			ctx.stats = parentStats;
+			ctx.offset[0] = ctx.offset[1] = ctx.offset[2] = 0;
+		}
+		// time not spent building geometry is spent writing objects
+		stats.formattingNanos += System.nanoTime() - start - stats.tessellationNanos;
+		stats.parts++;
+		ctx = null;
+		return this;
+	}
+
+
+
+	private void render() throws IOException {
+
+		LDPovWriter w = ctx.getPartWriter();
+		ctx.startPart();
+		if (part == null) {
+			if (newDeclare) {
+				LDPOVRenderedPart.newGeometryDeclare(ctx, geometry, ldrawId, declare, w, useMesh);
+				declareText = ctx.getPartText();
+			}
+			LDPOVRenderedPart.newGeometryInstance(ctx, geometry, ldrawId+" color "+color, placement, color, declare, w);
+		}
+		else if (declare != null) {
+			if (newDeclare) {
+				LDPOVRenderedPart.newPartDeclare(ctx, part.getLdrawId(), declare, w, useMesh);
+				declareText = ctx.getPartText();
+			}
+			LDPOVRenderedPart.newPartInstance(ctx, part, declare, w, viewMatrix);
+		}
+		else {
+			LDPOVRenderedPart.newRenderedPart(ctx, part, w, viewMatrix, useMesh);
+		}
+		text = ctx.getPartText();
+		usedGenerated = ctx.usedGenerated.isEmpty() ? Collections.<String>emptyList() 
+				: new ArrayList<String>(ctx.usedGenerated);
+		usedMaterials = new ArrayList<LDPovMaterialTable.Material>(ctx.usedMaterials);
+		if (ctx.bounds[0] <= ctx.bounds[3]) {
+			bounds = ctx.bounds.clone();
+		}
+	}
+
+
+
+	/**
+	 * Writes rendered part, preceded by declares of materials and generated 
+	 * primitives not yet written in output
+	 * @param out output
+	 * @param written materials, generated primitives and part geometries already declared in output, updated
+	 * @param context export context, with materials and generated primitives declares
+	 * @throws IOException
+	 */
+	void write(LDPovWriter out, Set<String> written, LDPovExportContext context) throws IOException {
+
+		writeDeclares(out, written, context);
+		writeObject(out);
+	}
+
+
+
+	/**
+	 * Writes declares needed by rendered part: materials and generated 
+	 * primitives not yet written in output and part geometry, if task 
+	 * has rendered it and it isn't yet written
+	 * @param out output
+	 * @param written materials, generated primitives and part geometries already declared in output, updated
+	 * @param context export context, with materials and generated primitives declares
+	 * @throws IOException
+	 */
+	void writeDeclares(LDPovWriter out, Set<String> written, LDPovExportContext context) throws IOException {
+
+		if (context.materials.isDeclareOnUse()) {
+			for (LDPovMaterialTable.Material m : usedMaterials) {
+				if (written.add(m.name)) {
+					// material text can be changed since part was rendered
+					out.write(context.materials.get(m.id).declare);
+				}
+			}
+		}
+		for (String p : usedGenerated) {
+			if (written.add(p)) {
+				out.write(context.genDeclares.get(p));
+			}
+		}
+		if (declareText != null && written.add(declare)) {
+			out.write(declareText);
+		}
+	}
+
+
+
+	/**
+	 * Writes rendered part objects, without declares
+	 * @param out output
+	 * @throws IOException
+	 */
+	void writeObject(LDPovWriter out) throws IOException {
+
+		out.write(text);
+	}
+
+
+
+	/**
+	 * @return POV-Ray identifier of part geometry, null if instancing is off
+	 */
+	String getDeclare() {
+
+		return declare;
+	}
+
+
+
+	/**
+	 * @return true if task has rendered part geometry declare
+	 */
+	boolean hasDeclareText() {
+
+		return declareText != null;
+	}
+
+
+
+	String getKey() {
+		return key;
+	}
+
+
+	String getDeclareKey() {
+		return declareKey;
+	}
+
+
+	/**
+	 * Sets keys in fragment cache
+	 * @param key key of rendered part
+	 * @param declareKey key of part geometry declare, null if instancing is off
+	 */
+	void setKey(String key, String declareKey) {
+		this.key = key;
+		this.declareKey = declareKey;
+	}
+
+
+	/**
+	 * Sets a displacement of part, added to its placement when rendered
+	 * @param offset displacement x,y,z in LDraw coordinates, copied
+	 */
+	void setOffset(float[] offset) {
+		offsetX = offset[0];
+		offsetY = offset[1];
+		offsetZ = offset[2];
+	}
+
+
+
+	/**
+	 * @return stats of part export
+	 */
+	LDPovExportStats getStats() {
+
+		return stats;
+	}
+
+
+
+	/**
+	 * @return part bounds in POV-Ray coordinates, null if part is empty
+	 */
+	float[] getBounds() {
+
+		return bounds;
+	}
+
+}
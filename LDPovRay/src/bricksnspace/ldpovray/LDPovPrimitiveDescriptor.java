@@ -0,0 +1,286 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * LDraw primitive file name parsed to primitive kind and parameters.
+ *
+ * Recognized names are:
+ * <ul>
+ * <li>n-mcyli.dat, n-mcylo.dat, n-mcyli2.dat, n-mcylo2.dat: cylinders</li>
+ * <li>n-mcyls.dat: sloped cylinders, top is cut by plane x+y=1</li>
+ * <li>n-mcylc.dat: closed cylinders, with both ends</li>
+ * <li>n-mdisc.dat: discs</li>
+ * <li>n-mndis.dat: square around disc, less the disc</li>
+ * <li>n-mchrd.dat: disc between arc and its chord</li>
+ * <li>n-mringR.dat (also rin, ri, r): rings with internal radius R</li>
+ * <li>n-mconR.dat (also co): cones with top radius R</li>
+ * <li>tNNtRRRR.dat: tori, fraction 1/NN, type i, o or q, minor radius 0.RRRR</li>
+ * <li>box.dat: cube from -1 to 1</li>
+ * <li>box5.dat: box from y 0 to 1, open at y 0</li>
+ * <li>rect.dat, rect1.dat, rect2a.dat, rect2p.dat, rect3.dat: square 
+ * from -1 to 1 in y 0 plane, they differ only by edges</li>
+ * <li>stud.dat, stud2.dat: plain and hollow stud, without logo</li>
+ * <li>stud3.dat, stud4.dat: solid and open stud tube</li>
+ * </ul>
+ * where n-m is the circle fraction.
+ *
+ * Other boxes (box2*.dat to box4*.dat, box5-*.dat) have many variants 
+ * with different faces, so they are left to triangles.
+ *
+ * Edge primitives, n-medge.dat, have only lines, that aren't exported,
+ * so they are left out.
+ *
+ * Names are parsed once, descriptors are kept in a global table.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovPrimitiveDescriptor {
+
+	public enum Kind {
+		CYLINDER,
+		SLOPED_CYLINDER,
+		CLOSED_CYLINDER,
+		DISC,
+		NDISC,
+		CHORD,
+		RING,
+		CONE,
+		TORUS,
+		BOX,
+		OPEN_BOX,
+		RECT,
+		STUD,
+		HOLLOW_STUD,
+		SOLID_TUBE,
+		TUBE,
+		NONE
+	}
+
+	private static final LDPovPrimitiveDescriptor NOTPRIMITIVE = new LDPovPrimitiveDescriptor(Kind.NONE, 0, 0, 0, 0, '\0');
+
+	private static ConcurrentMap<String,LDPovPrimitiveDescriptor> descriptors =
+			new ConcurrentHashMap<String,LDPovPrimitiveDescriptor>();
+
+	private final Kind kind;
+	private final int fraction;
+	private final int total;
+	private final int radius;
+	private final float minorRadius;
+	private final char torusType;
+
+
+
+	private LDPovPrimitiveDescriptor(Kind kind, int fraction, int total, int radius,
+			float minorRadius, char torusType) {
+
+		this.kind = kind;
+		this.fraction = fraction;
+		this.total = total;
+		this.radius = radius;
+		this.minorRadius = minorRadius;
+		this.torusType = torusType;
+	}
+
+
+
+	/**
+	 * Returns descriptor for a primitive file name
+	 * @param name primitive file name, lowercase, without "8\" or "48\" prefix
+	 * @return descriptor, with kind NONE if name isn't a known primitive
+	 */
+	public static LDPovPrimitiveDescriptor get(String name) {
+
+		LDPovPrimitiveDescriptor d = descriptors.get(name);
+		if (d == null) {
+			d = parse(name);
+			descriptors.putIfAbsent(name, d);
+		}
+		return d;
+	}
+
+
+
+	/**
+	 * Reads an unsigned integer
+	 * @return position after last digit, or -1 if there are no digits or too many
+	 */
+	private static int digits(String s, int pos) {
+
+		int i = pos;
+		while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+			i++;
+		}
+		if (i == pos || i - pos > 9)
+			return -1;
+		return i;
+	}
+
+
+
+	private static boolean isDat(String s, int pos) {
+
+		return s.startsWith(".dat", pos);
+	}
+
+
+
+	static LDPovPrimitiveDescriptor parse(String name) {
+
+		String s = name.toLowerCase();
+		if (s.equals("box.dat"))
+			return new LDPovPrimitiveDescriptor(Kind.BOX, 0, 0, 0, 0, '\0');
+		if (s.equals("stud.dat"))
+			return new LDPovPrimitiveDescriptor(Kind.STUD, 0, 0, 0, 0, '\0');
+		if (s.equals("stud2.dat"))
+			return new LDPovPrimitiveDescriptor(Kind.HOLLOW_STUD, 0, 0, 0, 0, '\0');
+		if (s.equals("stud3.dat"))
+			return new LDPovPrimitiveDescriptor(Kind.SOLID_TUBE, 0, 0, 0, 0, '\0');
+		if (s.equals("stud4.dat"))
+			return new LDPovPrimitiveDescriptor(Kind.TUBE, 0, 0, 0, 0, '\0');
+		if (s.equals("box5.dat"))
+			return new LDPovPrimitiveDescriptor(Kind.OPEN_BOX, 0, 0, 0, 0, '\0');
+		if (s.equals("rect.dat") || s.equals("rect1.dat") || s.equals("rect2a.dat") 
+				|| s.equals("rect2p.dat") || s.equals("rect3.dat"))
+			return new LDPovPrimitiveDescriptor(Kind.RECT, 0, 0, 0, 0, '\0');
+		if (s.startsWith("t")) {
+			// tNN[ioq]RRRR.dat
+			if (s.length() < 12 || !isDat(s, 8))
+				return NOTPRIMITIVE;
+			if (digits(s, 1) < 3 || digits(s, 4) != 8)
+				return NOTPRIMITIVE;
+			char type = s.charAt(3);
+			if (type != 'i' && type != 'o' && type != 'q')
+				return NOTPRIMITIVE;
+			int fraction = Integer.parseInt(s.substring(1, 3));
+			if (fraction == 0)
+				return NOTPRIMITIVE;
+			float minor = Integer.parseInt(s.substring(4, 8))/10000.0f;
+			return new LDPovPrimitiveDescriptor(Kind.TORUS, fraction, 0, 0, minor, type);
+		}
+		// n-m...
+		int i = digits(s, 0);
+		if (i < 0 || i >= s.length() || s.charAt(i) != '-')
+			return NOTPRIMITIVE;
+		int j = digits(s, i+1);
+		if (j < 0)
+			return NOTPRIMITIVE;
+		int fraction = Integer.parseInt(s.substring(0, i));
+		int total = Integer.parseInt(s.substring(i+1, j));
+		if (fraction == 0 || total == 0)
+			return NOTPRIMITIVE;
+		int k = j;
+		while (k < s.length() && s.charAt(k) >= 'a' && s.charAt(k) <= 'z') {
+			k++;
+		}
+		String type = s.substring(j, k);
+		if (type.equals("cyli") || type.equals("cylo")) {
+			if (s.startsWith("2", k))
+				k++;
+			if (isDat(s, k))
+				return new LDPovPrimitiveDescriptor(Kind.CYLINDER, fraction, total, 0, 0, '\0');
+			return NOTPRIMITIVE;
+		}
+		if (isDat(s, k)) {
+			if (type.equals("cyls"))
+				return new LDPovPrimitiveDescriptor(Kind.SLOPED_CYLINDER, fraction, total, 0, 0, '\0');
+			if (type.equals("cylc"))
+				return new LDPovPrimitiveDescriptor(Kind.CLOSED_CYLINDER, fraction, total, 0, 0, '\0');
+			if (type.equals("disc"))
+				return new LDPovPrimitiveDescriptor(Kind.DISC, fraction, total, 0, 0, '\0');
+			if (type.equals("ndis"))
+				return new LDPovPrimitiveDescriptor(Kind.NDISC, fraction, total, 0, 0, '\0');
+			if (type.equals("chrd"))
+				return new LDPovPrimitiveDescriptor(Kind.CHORD, fraction, total, 0, 0, '\0');
+			return NOTPRIMITIVE;
+		}
+		int l = digits(s, k);
+		if (l < 0 || !isDat(s, l))
+			return NOTPRIMITIVE;
+		int radius = Integer.parseInt(s.substring(k, l));
+		if (type.equals("ring") || type.equals("rin") || type.equals("ri") || type.equals("r")) {
+			return new LDPovPrimitiveDescriptor(Kind.RING, fraction, total, radius, 0, '\0');
+		}
+		if (type.equals("con") || type.equals("co")) {
+			return new LDPovPrimitiveDescriptor(Kind.CONE, fraction, total, radius, 0, '\0');
+		}
+		return NOTPRIMITIVE;
+	}
+
+
+
+	public Kind getKind() {
+		return kind;
+	}
+
+
+	/**
+	 * @return numerator of circle fraction, or denominator of torus fraction 1/n
+	 */
+	public int getFraction() {
+		return fraction;
+	}
+
+
+	/**
+	 * @return denominator of circle fraction, 0 for tori
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+
+	/**
+	 * @return ring internal radius or cone top radius
+	 */
+	public int getRadius() {
+		return radius;
+	}
+
+
+	/**
+	 * @return torus minor radius
+	 */
+	public float getMinorRadius() {
+		return minorRadius;
+	}
+
+
+	/**
+	 * @return torus type: 'i' inside, 'o' outside, 'q' complete
+	 */
+	public char getTorusType() {
+		return torusType;
+	}
+
+
+	@Override
+	public String toString() {
+		return "LDPovPrimitiveDescriptor [kind=" + kind + ", fraction=" + fraction
+				+ ", total=" + total + ", radius=" + radius + ", minorRadius="
+				+ minorRadius + ", torusType=" + torusType + "]";
+	}
+
+}
@@ -0,0 +1,55 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.IOException;
+
+
+/**
+ * Writes LDraw primitives as POV-Ray shapes, in place of their triangles.
+ *
+ * Declare is written once per export, when primitive is first used, and
+ * it must be in LDraw coordinates of primitive file: it is placed with
+ * transformation of primitive reference. Generators can be used by
+ * many threads at the same time.
+ *
+ * @see LDPovPrimitiveTable#addGenerator(LDPovPrimitiveGenerator)
+ * @author Mario Pascucci
+ *
+ */
+public interface LDPovPrimitiveGenerator {
+
+	/**
+	 * @param name primitive file name, lowercase, without "8\" or "48\" prefix
+	 * @return true if this generator writes the primitive
+	 */
+	boolean isGenerated(String name);
+
+
+	/**
+	 * Writes POV-Ray declare of a primitive, with comments if any
+	 * @param out output
+	 * @param declare POV-Ray identifier to declare
+	 * @param name primitive file name, lowercase, without "8\" or "48\" prefix
+	 * @throws IOException
+	 */
+	void writeDeclare(LDPovWriter out, String declare, String name) throws IOException;
+
+}
@@ -0,0 +1,119 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Generators of LDraw primitives used by an export.
+ *
+ * Standard primitives, see {@link LDPovPrimitiveDescriptor}, are always
+ * generated. User generators are asked before them, last added first,
+ * so they can replace a standard primitive. Primitives in substitution
+ * file are never generated.
+ *
+ * Generators must be added before export starts.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovPrimitiveTable {
+
+	private static final LDPovPrimitiveGenerator STANDARD = new LDPovStandardPrimitives();
+	// keys of tables with user generators
+	private static AtomicInteger keys = new AtomicInteger();
+
+	private List<LDPovPrimitiveGenerator> generators = new CopyOnWriteArrayList<LDPovPrimitiveGenerator>();
+	// 0 with standard generators only, so default tables share cached geometry
+	private volatile int key = 0;
+
+
+
+	/**
+	 * Adds a generator, asked before generators already added
+	 * @param g generator
+	 */
+	public void addGenerator(LDPovPrimitiveGenerator g) {
+
+		generators.add(0, g);
+		key = keys.incrementAndGet();
+	}
+
+
+
+	public void removeGenerator(LDPovPrimitiveGenerator g) {
+
+		if (generators.remove(g)) {
+			key = generators.isEmpty() ? 0 : keys.incrementAndGet();
+		}
+	}
+
+
+
+	/**
+	 * @return key of generators in table, changes when a generator is added or removed
+	 */
+	int getKey() {
+		return key;
+	}
+
+
+
+	/**
+	 * Returns generator for a primitive
+	 * @param name primitive file name, lowercase, without "8\" or "48\" prefix
+	 * @return generator, or null if primitive isn't generated
+	 */
+	LDPovPrimitiveGenerator get(String name) {
+
+		for (LDPovPrimitiveGenerator g : generators) {
+			if (g.isGenerated(name))
+				return g;
+		}
+		return STANDARD.isGenerated(name) ? STANDARD : null;
+	}
+
+
+
+	/**
+	 * Generates POV-Ray declare of a primitive
+	 * @param declare POV-Ray identifier to declare
+	 * @param name primitive file name, lowercase, without "8\" or "48\" prefix
+	 * @return declare text, or null if primitive isn't generated
+	 * @throws IOException
+	 */
+	String generate(String declare, String name) throws IOException {
+
+		LDPovPrimitiveGenerator g = get(name);
+		if (g == null)
+			return null;
+		StringWriter sw = new StringWriter();
+		LDPovWriter w = new LDPovWriter(sw);
+		g.writeDeclare(w, declare, name);
+		w.flush();
+		return sw.toString();
+	}
+
+}
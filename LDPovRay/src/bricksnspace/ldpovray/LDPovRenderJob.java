@@ -0,0 +1,396 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.ldrawlib.LDPrimitive;
+
+
+/**
+ * A model to render to an image with POV-Ray.
+ *
+ * Scene is exported with {@link LDPovRenderer} directly to standard input
+ * of a POV-Ray process, without an intermediate .pov file. Progress is
+ * read from POV-Ray messages.
+ *
+ * An animated job renders all frames with a single POV-Ray process,
+ * from a scene written once in a temporary file, because POV-Ray reads
+ * scene again for every frame. Frame images are named like POV-Ray does,
+ * see {@link #getFrameImage(int)}.
+ *
+ * Jobs are run by {@link LDPovRenderScheduler}.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovRenderJob {
+
+	public enum Status {
+		QUEUED,
+		RUNNING,
+		DONE,
+		FAILED,
+		CANCELLED
+	}
+
+	// lines of POV-Ray output kept for error reports
+	private static final int LOGLINES = 20;
+
+	private static Pattern progressPattern = Pattern.compile("Rendered\\s+(\\d+)\\s+of\\s+(\\d+)\\s+pixels");
+
+	private final List<LDPrimitive> model;
+	private final File image;
+	private int width = 800;
+	private int height = 600;
+	private boolean antialias = true;
+	private float zoomFactor = 1;
+	private Matrix3D viewMatrix = new Matrix3D();
+	private boolean instancing = false;
+	private boolean meshOutput = false;
+	private LDPovAnimation animation = null;
+
+	private volatile Status status = Status.QUEUED;
+	private volatile long pixels = 0;
+	private volatile long totalPixels = 0;
+	private volatile int exitCode = -1;
+	private volatile String error = null;
+	private Deque<String> log = new ArrayDeque<String>();
+	private List<LDPovRenderListener> listeners = new CopyOnWriteArrayList<LDPovRenderListener>();
+
+
+
+	/**
+	 * Creates a new job
+	 * @param model parts to render
+	 * @param image output PNG image
+	 */
+	public LDPovRenderJob(List<LDPrimitive> model, File image) {
+
+		this.model = model;
+		this.image = image;
+	}
+
+
+
+	public void setSize(int width, int height) {
+
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Invalid image size "+width+"x"+height);
+		this.width = width;
+		this.height = height;
+	}
+
+
+	public void setAntialias(boolean antialias) {
+		this.antialias = antialias;
+	}
+
+
+	public void setPerspective(float zoomFactor) {
+		this.zoomFactor = zoomFactor;
+	}
+
+
+	public void setViewMatrix(Matrix3D m) {
+		viewMatrix = m.getCopy();
+	}
+
+
+	public void setInstancing(boolean instancing) {
+		this.instancing = instancing;
+	}
+
+
+	public void setMeshOutput(boolean meshOutput) {
+		this.meshOutput = meshOutput;
+	}
+
+
+	/**
+	 * @param animation animation to render, null for a still image
+	 */
+	public void setAnimation(LDPovAnimation animation) {
+		this.animation = animation;
+	}
+
+
+	public LDPovAnimation getAnimation() {
+		return animation;
+	}
+
+
+	public void addListener(LDPovRenderListener l) {
+		listeners.add(l);
+	}
+
+
+	public void removeListener(LDPovRenderListener l) {
+		listeners.remove(l);
+	}
+
+
+	public File getImage() {
+		return image;
+	}
+
+
+	/**
+	 * Returns image of an animation frame: POV-Ray adds frame number to 
+	 * image name, with as many digits as last frame number
+	 * @param frame frame number, from 1
+	 * @return frame image, or image itself if job isn't animated
+	 */
+	public File getFrameImage(int frame) {
+
+		if (animation == null)
+			return image;
+		String name = image.getName();
+		int dot = name.lastIndexOf('.');
+		String base = dot > 0 ? name.substring(0, dot) : name;
+		String number = Integer.toString(frame);
+		int digits = Integer.toString(animation.getFrames()).length();
+		StringBuilder sb = new StringBuilder(base);
+		for (int i=number.length();i<digits;i++) {
+			sb.append('0');
+		}
+		sb.append(number).append(".png");
+		return new File(image.getParentFile(), sb.toString());
+	}
+
+
+	/**
+	 * @return last image written by job, last frame if job is animated
+	 */
+	File getLastImage() {
+
+		return animation == null ? image : getFrameImage(animation.getFrames());
+	}
+
+
+	public int getWidth() {
+		return width;
+	}
+
+
+	public int getHeight() {
+		return height;
+	}
+
+
+	public Status getStatus() {
+		return status;
+	}
+
+
+	/**
+	 * @return pixels rendered, as reported by POV-Ray
+	 */
+	public long getPixels() {
+		return pixels;
+	}
+
+
+	/**
+	 * @return total pixels to render, 0 if POV-Ray doesn't reported it yet
+	 */
+	public long getTotalPixels() {
+		return totalPixels;
+	}
+
+
+	/**
+	 * @return POV-Ray exit code, -1 if process isn't ended
+	 */
+	public int getExitCode() {
+		return exitCode;
+	}
+
+
+	/**
+	 * @return error description if job failed, null otherwise
+	 */
+	public String getError() {
+		return error;
+	}
+
+
+	/**
+	 * @return last lines of POV-Ray output
+	 */
+	public List<String> getLog() {
+
+		synchronized (log) {
+			return new ArrayList<String>(log);
+		}
+	}
+
+
+
+	/**
+	 * Returns POV-Ray command line for this job
+	 * @param executable POV-Ray executable
+	 * @param threads number of render threads
+	 * @param includeDir directory with include files
+	 * @param scene scene file, null if scene is written to standard input
+	 * @return command and arguments
+	 */
+	List<String> getCommand(String executable, int threads, File includeDir, File scene) {
+
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(executable);
+		cmd.add(scene == null ? "+I-" : "+I"+scene.getAbsolutePath());
+		cmd.add("+O"+image.getAbsolutePath());
+		cmd.add("+FN");
+		cmd.add("+W"+width);
+		cmd.add("+H"+height);
+		cmd.add("+WT"+threads);
+		cmd.add("+L"+includeDir.getAbsolutePath());
+		cmd.add(antialias ? "+A0.3" : "-A");
+		// no preview window
+		cmd.add("-D");
+		if (animation != null) {
+			cmd.add("+KFI1");
+			cmd.add("+KFF"+animation.getFrames());
+			cmd.add("+KI0");
+			cmd.add("+KF1");
+			if (animation.isCyclic()) {
+				cmd.add("+KC");
+			}
+		}
+		return cmd;
+	}
+
+
+
+	/**
+	 * Exports scene to a POV-Ray process input
+	 * @param r renderer that writes to process
+	 * @throws IOException
+	 */
+	void writeScene(LDPovRenderer r) throws IOException {
+
+		r.setPerspective(zoomFactor);
+		r.setViewMatrix(viewMatrix);
+		r.setInstancing(instancing);
+		r.setMeshOutput(meshOutput);
+		r.setAnimation(animation);
+		r.startRender();
+		r.addModel(model);
+	}
+
+
+
+	/**
+	 * Reads POV-Ray output, until process ends
+	 * @param in process output
+	 * @throws IOException
+	 */
+	void readOutput(InputStream in) throws IOException {
+
+		Reader r = new InputStreamReader(in, "UTF-8");
+		try {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = r.read()) >= 0) {
+				// POV-Ray updates progress with carriage return
+				if (c == '\n' || c == '\r') {
+					if (line.length() > 0) {
+						parseLine(line.toString());
+						line.setLength(0);
+					}
+				}
+				else {
+					line.append((char) c);
+				}
+			}
+			if (line.length() > 0) {
+				parseLine(line.toString());
+			}
+		}
+		finally {
+			r.close();
+		}
+	}
+
+
+
+	private void parseLine(String line) {
+
+		Matcher m = progressPattern.matcher(line);
+		if (m.find()) {
+			pixels = Long.parseLong(m.group(1));
+			totalPixels = Long.parseLong(m.group(2));
+			for (LDPovRenderListener l : listeners) {
+				l.renderProgress(this, pixels, totalPixels);
+			}
+			return;
+		}
+		synchronized (log) {
+			log.add(line);
+			if (log.size() > LOGLINES) {
+				log.poll();
+			}
+		}
+	}
+
+
+
+	void setStarted() {
+
+		status = Status.RUNNING;
+		for (LDPovRenderListener l : listeners) {
+			l.renderStarted(this);
+		}
+	}
+
+
+
+	void setFinished(Status s, int exitCode, String error) {
+
+		this.exitCode = exitCode;
+		this.error = error;
+		status = s;
+		for (LDPovRenderListener l : listeners) {
+			l.renderFinished(this);
+		}
+	}
+
+
+
+	@Override
+	public String toString() {
+		return "LDPovRenderJob [image=" + image + ", status=" + status
+				+ ", pixels=" + pixels + "/" + totalPixels + "]";
+	}
+
+}
@@ -0,0 +1,54 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+
+/**
+ * Receives state changes of render jobs.
+ *
+ * Methods are called from scheduler threads, not from the thread that
+ * submitted the job.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public interface LDPovRenderListener {
+
+	/**
+	 * Job is started, scene is going to be exported to POV-Ray
+	 * @param job render job
+	 */
+	public void renderStarted(LDPovRenderJob job);
+
+	/**
+	 * POV-Ray reported rendering progress
+	 * @param job render job
+	 * @param pixels pixels rendered
+	 * @param total pixels in image
+	 */
+	public void renderProgress(LDPovRenderJob job, long pixels, long total);
+
+	/**
+	 * Job is ended, see {@link LDPovRenderJob#getStatus()} for result
+	 * @param job render job
+	 */
+	public void renderFinished(LDPovRenderJob job);
+
+}
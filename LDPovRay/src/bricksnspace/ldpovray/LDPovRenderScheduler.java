@@ -0,0 +1,376 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Runs render jobs with local POV-Ray processes.
+ *
+ * Jobs are queued and run in submit order. Every POV-Ray process uses
+ * a fixed number of render threads, and no more jobs run at the same
+ * time than available cores allow.
+ *
+ * POV-Ray executable is "povray" in system path by default, it can be
+ * replaced with any program that accepts the same options, reads scene
+ * from standard input, or from a file for animations, and writes the image.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovRenderScheduler {
+
+	private String executable = "povray";
+	private File includeDir;
+	private int threadsPerJob;
+	private int maxJobs;
+	private ExecutorService pool;
+
+
+
+	/**
+	 * Creates a scheduler that runs one job at a time, with all available cores
+	 * @param includeDir directory for scene include files
+	 */
+	public LDPovRenderScheduler(File includeDir) {
+
+		this(includeDir, Runtime.getRuntime().availableProcessors());
+	}
+
+
+
+	/**
+	 * Creates a scheduler that runs as many jobs in parallel as available cores
+	 * allow, with a fixed number of render threads for every job
+	 * @param includeDir directory for scene include files
+	 * @param threadsPerJob POV-Ray render threads for every job
+	 */
+	public LDPovRenderScheduler(File includeDir, int threadsPerJob) {
+
+		this.includeDir = includeDir;
+		this.threadsPerJob = Math.max(1, threadsPerJob);
+		maxJobs = Math.max(1, Runtime.getRuntime().availableProcessors() / this.threadsPerJob);
+		pool = Executors.newFixedThreadPool(maxJobs);
+	}
+
+
+
+	/**
+	 * Sets POV-Ray executable
+	 * @param executable program name or path
+	 */
+	public void setExecutable(String executable) {
+
+		this.executable = executable;
+	}
+
+
+
+	public String getExecutable() {
+		return executable;
+	}
+
+
+	public int getThreadsPerJob() {
+		return threadsPerJob;
+	}
+
+
+	/**
+	 * @return max number of jobs running at the same time
+	 */
+	public int getMaxJobs() {
+		return maxJobs;
+	}
+
+
+
+	/**
+	 * Queues a job
+	 * @param job job to run
+	 * @return future completed when job ends, cancel it to stop POV-Ray
+	 */
+	public Future<LDPovRenderJob> submit(final LDPovRenderJob job) {
+
+		FutureTask<LDPovRenderJob> task = new FutureTask<LDPovRenderJob>(new Runnable() {
+			@Override
+			public void run() {
+				runJob(job);
+			}
+		}, job) {
+			@Override
+			protected void done() {
+				// cancelled before it starts
+				if (isCancelled() && job.getStatus() == LDPovRenderJob.Status.QUEUED) {
+					job.setFinished(LDPovRenderJob.Status.CANCELLED, -1, null);
+				}
+			}
+		};
+		pool.execute(task);
+		return task;
+	}
+
+
+
+	/**
+	 * Runs a job in current thread
+	 * @param job job to run
+	 */
+	void runJob(final LDPovRenderJob job) {
+
+		job.setStarted();
+		// an old image would hide a failed render
+		job.getLastImage().delete();
+		File scene = null;
+		if (job.getAnimation() != null) {
+			// POV-Ray reads scene for every frame, so it can't be read from a pipe
+			LDPovRenderer r = null;
+			try {
+				scene = File.createTempFile("ldpovray", ".pov");
+				r = LDPovRenderer.getRenderer(scene, includeDir);
+				job.writeScene(r);
+			} catch (IOException | RuntimeException e) {
+				closeRenderer(r);
+				if (scene != null) {
+					scene.delete();
+				}
+				job.setFinished(LDPovRenderJob.Status.FAILED, -1, "Scene export failed: "+e);
+				return;
+			}
+		}
+		try {
+			runProcess(job, scene);
+		}
+		finally {
+			if (scene != null) {
+				scene.delete();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Runs POV-Ray for a job
+	 * @param job job to run
+	 * @param scene scene file, null to write scene to POV-Ray input
+	 */
+	private void runProcess(final LDPovRenderJob job, File scene) {
+
+		ProcessBuilder pb = new ProcessBuilder(job.getCommand(executable, threadsPerJob, includeDir, scene));
+		pb.redirectErrorStream(true);
+		final Process p;
+		try {
+			p = pb.start();
+		} catch (IOException e) {
+			job.setFinished(LDPovRenderJob.Status.FAILED, -1, "Unable to start POV-Ray: "+e.getMessage());
+			return;
+		}
+		// output must be read while scene is written, or process can block
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					job.readOutput(p.getInputStream());
+				} catch (IOException e) {
+					// process ended
+				}
+			}
+		}, "povray-output");
+		reader.setDaemon(true);
+		reader.start();
+		IOException writeError = null;
+		PipeStream pipe = new PipeStream(p.getOutputStream());
+		LDPovRenderer r = null;
+		try {
+			if (scene == null) {
+				r = LDPovRenderer.getRenderer(pipe, includeDir);
+				job.writeScene(r);
+			}
+		} catch (IOException | RuntimeException e) {
+			if (e instanceof IOException && pipe.failed) {
+				// POV-Ray closed its input, exit code tells why
+				writeError = (IOException) e;
+			}
+			else {
+				// scene is incomplete, POV-Ray must not render it
+				p.destroy();
+				closeRenderer(r);
+				closeQuietly(pipe);
+				waitEnd(p, reader);
+				job.setFinished(LDPovRenderJob.Status.FAILED, -1, "Scene export failed: "+e);
+				return;
+			}
+		}
+		finally {
+			// POV-Ray waits for input until it is closed
+			closeQuietly(pipe);
+		}
+		try {
+			int exit = p.waitFor();
+			reader.join();
+			if (exit != 0) {
+				job.setFinished(LDPovRenderJob.Status.FAILED, exit, "POV-Ray exit code "+exit);
+			}
+			else if (writeError != null) {
+				job.setFinished(LDPovRenderJob.Status.FAILED, exit, "Scene export failed: "+writeError.getMessage());
+			}
+			else if (!job.getLastImage().isFile()) {
+				job.setFinished(LDPovRenderJob.Status.FAILED, exit, "No image written");
+			}
+			else {
+				job.setFinished(LDPovRenderJob.Status.DONE, exit, null);
+			}
+		} catch (InterruptedException e) {
+			p.destroy();
+			job.setFinished(LDPovRenderJob.Status.CANCELLED, -1, null);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+
+	/**
+	 * Waits for a killed process and its output reader
+	 */
+	private static void waitEnd(Process p, Thread reader) {
+
+		try {
+			p.waitFor();
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+
+	/**
+	 * Closes output of a renderer after a failed export
+	 * @param r renderer, can be null
+	 */
+	private static void closeRenderer(LDPovRenderer r) {
+
+		if (r == null)
+			return;
+		try {
+			r.close();
+		} catch (IOException e) {
+			// export already failed
+		}
+	}
+
+
+
+	private static void closeQuietly(OutputStream out) {
+
+		try {
+			out.close();
+		} catch (IOException e) {
+			// process already ended
+		}
+	}
+
+
+
+	/**
+	 * Process input, that tells if a write to process failed, so export 
+	 * errors can be told from POV-Ray closing its input
+	 */
+	private static class PipeStream extends FilterOutputStream {
+
+		volatile boolean failed = false;
+
+		PipeStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			try {
+				out.write(b);
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Stops accepting jobs, queued jobs are still run
+	 */
+	public void shutdown() {
+
+		pool.shutdown();
+	}
+
+
+
+	/**
+	 * Stops accepting jobs, cancels queued jobs and stops running POV-Ray processes
+	 */
+	public void shutdownNow() {
+
+		for (Runnable r : pool.shutdownNow()) {
+			if (r instanceof Future) {
+				((Future<?>) r).cancel(false);
+			}
+		}
+	}
+
+
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+
+		return pool.awaitTermination(timeout, unit);
+	}
+
+}
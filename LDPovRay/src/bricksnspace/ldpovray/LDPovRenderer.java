@@ -19,15 +19,29 @@
 
 package bricksnspace.ldpovray;
 
-import java.io.BufferedWriter;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
 import bricksnspace.j3dgeom.Matrix3D;
 import bricksnspace.ldrawlib.LDPrimitive;
@@ -42,39 +56,278 @@ import bricksnspace.ldrawlib.LDrawCommand;
  */
 public class LDPovRenderer {
 
-	private final static String POVHEADER = "jbbheader.inc";
-	private final static String POVPRIMITIVES = "jbbprimitives.inc";
-	private final static String POVFONT = "lego-font.ttf";
-	
-	BufferedWriter buffWriter;
+	// linear congruential generator of java.util.Random, for part jitter
+	private static final long RANDMULT = 0x5deece66dL;
+	private static final long RANDMASK = (1L << 48) - 1;
+	private static final double RANDSCALE = 1.0 / (1L << 53);
+
+	LDPovWriter buffWriter;
+	LDPovByteWriter byteWriter;
+	LDPovExportContext context;
 	boolean perspective = true;
 	float zoomFactor = 1;
 	Matrix3D viewMatrix = new Matrix3D();
+	boolean instancing = false;
+	boolean meshOutput = false;
+	int parallelism = 1;
+	// part id -> declared POV-Ray identifier, for instancing mode
+	Map<String,String> declaredParts = new HashMap<String,String>();
+	Set<String> usedDeclares = new HashSet<String>();
+	// part declares written, or to be written, in output
+	Set<String> exportDeclares = new HashSet<String>();
+	// rendered parts of previous export, null if incremental export is disabled
+	LDPovFragmentCache fragmentCache = null;
+	// generated primitives and part geometries already declared in output
+	Set<String> writtenGenerated = new HashSet<String>();
+	// parts kept to be written in a bounding hierarchy, null if disabled
+	LDPovBoundingTree boundingTree = null;
+	boolean frustumCulling = false;
+	boolean occlusionCulling = false;
+	int culledParts = 0;
+	long culledTriangles = 0;
+	// clock driven animation, null if scene is a still image
+	LDPovAnimation animation = null;
+	// view used for part geometry, model coordinates if animated
+	Matrix3D partView = viewMatrix;
+	float[] modelCenter = new float[3];
+	int animatedParts = 0;
+	int modelParts = 0;
+	// displacement of part being queued, see getJitter()
+	private float[] jitter = new float[3];
+	// step file being written, and bytes written in closed step files
+	private LDPovByteWriter stepWriter = null;
+	long stepBytes = 0;
+	LDPovExportStats stats = new LDPovExportStats();
+	List<LDPovExportListener> listeners = new CopyOnWriteArrayList<LDPovExportListener>();
 	//String lightSource = "light_source { <-5000, 9000, 10000> color rgb <0.8,0.8,0.8>  area_light <500, 0, 0>, <0, 0, 500>, 3, 3 adaptive 1 jitter }"; 
 	
-	private LDPovRenderer() {} ;
+	// include files are copied in output instead of referenced
+	boolean inlineIncludes = false;
+	// directory with include files
+	File includeDir = null;
+	
+	private LDPovRenderer(LDPovByteWriter out) {
+		
+		byteWriter = out;
+		buffWriter = new LDPovWriter(out);
+		context = new LDPovExportContext();
+		context.stats = stats;
+		context.listeners = listeners;
+	}
 	
 		
 	
+	/**
+	 * Returns a renderer that writes a .pov file, with include files in 
+	 * the same directory
+	 * @param path output file
+	 * @return renderer
+	 * @throws IOException
+	 */
 	public static LDPovRenderer getRenderer(File path) throws IOException {
 		
-		LDPovRenderer r = new LDPovRenderer();
-		r.buffWriter = new BufferedWriter(new OutputStreamWriter(
-				new FileOutputStream(path),"UTF-8"));
-		File outputDir = path.getParentFile();
-		r.generateHeaders(outputDir);
-		LDPOVRenderedPart.resetPrimitives();
+		return getRenderer(path, path.getAbsoluteFile().getParentFile());
+	}
+	
+	
+	
+	/**
+	 * Returns a renderer that writes a .pov file, with include files in 
+	 * a shared directory, used by many exports.
+	 * Scene references include files by name, so POV-Ray must be run with 
+	 * include directory in library path (+L option).
+	 * If file name ends with ".gz" scene is written gzip compressed, to
+	 * store it: POV-Ray can't read it as it is.
+	 * @param path output file
+	 * @param includeDir directory for include files, they are written if needed
+	 * @return renderer
+	 * @throws IOException
+	 */
+	public static LDPovRenderer getRenderer(File path, File includeDir) throws IOException {
+		
+		LDPovAssets.generate(includeDir);
+		OutputStream out = new FileOutputStream(path);
+		if (path.getName().toLowerCase().endsWith(".gz")) {
+			out = new GZIPOutputStream(out, 65536);
+		}
+		LDPovRenderer r = new LDPovRenderer(new LDPovByteWriter(out));
+		r.includeDir = includeDir;
+		return r; 
+	}
+	
+	
+	
+	/**
+	 * Returns a renderer that writes a self-contained scene to a stream.
+	 * Header and primitives are copied in output, with materials of colors
+	 * used by model, only the font used by stud logo must be in POV-Ray 
+	 * library path.
+	 * Stream is closed at end of export.
+	 * @param out output stream
+	 * @return renderer
+	 */
+	public static LDPovRenderer getRenderer(OutputStream out) {
+		
+		LDPovRenderer r = new LDPovRenderer(new LDPovByteWriter(out));
+		r.inlineIncludes = true;
+		return r; 
+	}
+	
+	
+	
+	/**
+	 * Returns a renderer that writes a self-contained scene to a channel.
+	 * @see #getRenderer(OutputStream)
+	 * @param out output channel
+	 * @return renderer
+	 */
+	public static LDPovRenderer getRenderer(WritableByteChannel out) {
+		
+		LDPovRenderer r = new LDPovRenderer(new LDPovByteWriter(out));
+		r.inlineIncludes = true;
+		return r; 
+	}
+	
+	
+	
+	/**
+	 * Returns a renderer that writes a scene to a stream, with include 
+	 * files in a shared directory. 
+	 * Scene references include files by name, so POV-Ray must be run with 
+	 * include directory in library path (+L option).
+	 * Stream is closed at end of export.
+	 * @param out output stream
+	 * @param includeDir directory for include files, they are written if needed
+	 * @return renderer
+	 * @throws IOException
+	 */
+	public static LDPovRenderer getRenderer(OutputStream out, File includeDir) throws IOException {
+		
+		LDPovRenderer r = new LDPovRenderer(new LDPovByteWriter(out));
+		r.includeDir = includeDir;
+		r.generateHeaders(includeDir);
+		return r; 
+	}
+	
+	
+	
+	/**
+	 * Returns a renderer that writes a scene to a channel, with include 
+	 * files in a shared directory.
+	 * @see #getRenderer(OutputStream, File)
+	 * @param out output channel
+	 * @param includeDir directory for include files, they are written if needed
+	 * @return renderer
+	 * @throws IOException
+	 */
+	public static LDPovRenderer getRenderer(WritableByteChannel out, File includeDir) throws IOException {
+		
+		LDPovRenderer r = new LDPovRenderer(new LDPovByteWriter(out));
+		r.includeDir = includeDir;
+		r.generateHeaders(includeDir);
 		return r; 
 	}
 	
 	
 	
+	/**
+	 * @return directory with include files, null if they are copied in output
+	 */
+	public File getIncludeDir() {
+		
+		return includeDir;
+	}
+	
+	
+	
+	/**
+	 * Writes header, materials, primitives and font files in a directory,
+	 * only if they are missing or changed.
+	 * @param path destination directory
+	 * @throws IOException
+	 */
 	public void generateHeaders(File path) throws IOException {
 		
-		Files.copy(this.getClass().getResourceAsStream("data/"+POVHEADER),Paths.get(path.getCanonicalPath(),POVHEADER) ,StandardCopyOption.REPLACE_EXISTING);
-		Files.copy(this.getClass().getResourceAsStream("data/"+POVPRIMITIVES),Paths.get(path.getCanonicalPath(),POVPRIMITIVES) ,StandardCopyOption.REPLACE_EXISTING);
-		Files.copy(this.getClass().getResourceAsStream("data/"+POVFONT),Paths.get(path.getCanonicalPath(),POVFONT) ,StandardCopyOption.REPLACE_EXISTING);
-		LDMaterials.generateMaterials(path);
+		LDPovAssets.generate(path);
+	}
+	
+	
+	
+	/**
+	 * Copies a text resource in output
+	 * @param name resource name
+	 * @throws IOException
+	 */
+	private void copyResource(String name) throws IOException {
+		
+		Reader in = new InputStreamReader(this.getClass().getResourceAsStream("data/"+name),"UTF-8");
+		try {
+			char[] buf = new char[8192];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				buffWriter.write(buf, 0, n);
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	
+	
+	/**
+	 * Writes header in output, with primitives in place of their include.
+	 * Materials include is left out, materials used are declared with parts
+	 * @throws IOException
+	 */
+	private void writeInlineHeader() throws IOException {
+		
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				this.getClass().getResourceAsStream("data/"+LDPovAssets.POVHEADER),"UTF-8"));
+		try {
+			String l;
+			while ((l = in.readLine()) != null) {
+				String t = l.trim();
+				if (t.equals("#include \""+LDMaterials.MATERIALSFILE+"\"")) {
+					// only materials used are declared, before first part that uses them
+					continue;
+				}
+				else if (t.equals("#include \""+LDPovAssets.POVPRIMITIVES+"\"")) {
+					copyResource(LDPovAssets.POVPRIMITIVES);
+				}
+				else {
+					buffWriter.write(l);
+					buffWriter.write('\n');
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	
+	
+	/**
+	 * Returns materials of LDraw colors, to set user defined materials 
+	 * before export starts
+	 * @return material table of this renderer
+	 */
+	public LDPovMaterialTable getMaterials() {
+		
+		return context.materials;
+	}
+	
+	
+	
+	/**
+	 * Returns generators of primitives written as POV-Ray shapes, to add
+	 * user generators before export starts
+	 * @return primitive table of this renderer
+	 */
+	public LDPovPrimitiveTable getPrimitives() {
+		
+		return context.primitives;
 	}
 	
 	
@@ -89,31 +342,835 @@ public class LDPovRenderer {
 	public void setViewMatrix(Matrix3D m) {
 		
 		viewMatrix = m.getCopy();
+		partView = viewMatrix;
+	}
+	
+	
+	
+	/**
+	 * Sets animation, that must be set before {@link #startRender()}. 
+	 * Animated scene has geometry in model coordinates, with view matrix 
+	 * and animation applied by POV-Ray for every frame, so a single scene
+	 * renders all frames. 
+	 * Bounding hierarchy and culling are not used in animated scenes.
+	 * @param animation animation, null for a still image
+	 */
+	public void setAnimation(LDPovAnimation animation) {
+		
+		this.animation = animation;
+	}
+	
+	
+	
+	public LDPovAnimation getAnimation() {
+		
+		return animation;
+	}
+	
+	
+
+	/**
+	 * Enable or disable part instancing.
+	 * With instancing enabled every distinct part is written once as a #declare
+	 * in part coordinates and every placement is an object with transformation 
+	 * matrix and color.
+	 * @param instancing true to enable
+	 */
+	public void setInstancing(boolean instancing) {
+		
+		this.instancing = instancing;
+	}
+	
+	
+	
+	/**
+	 * Enable or disable mesh output.
+	 * With mesh output enabled triangles of every part are written as mesh2 
+	 * objects with shared vertices, one for every color used in part.
+	 * @param meshOutput true to enable
+	 */
+	public void setMeshOutput(boolean meshOutput) {
+		
+		this.meshOutput = meshOutput;
+	}
+	
+	
+	
+	/**
+	 * Sets number of threads used to render parts.
+	 * Every part is rendered in its own buffer, and buffers are written in 
+	 * model order, so output doesn't depend on number of threads.
+	 * @param threads number of threads, 1 to render in caller thread
+	 */
+	public void setParallelism(int threads) {
+		
+		parallelism = Math.max(1, threads);
+	}
+	
+	
+	
+	/**
+	 * Enable or disable bounding hierarchy.
+	 * With bounding hierarchy enabled parts are grouped by position in 
+	 * nested unions with a bounding box, written after all declares. 
+	 * All rendered parts are kept in memory until end of model, so memory 
+	 * used grows with model size, while without hierarchy every part is 
+	 * written as soon as it is rendered.
+	 * POV-Ray uses these bounds only if it doesn't split unions and 
+	 * remove manual bounds (options -SU -UR). Render speed gain is not
+	 * measured yet, see LDPovBoundingTreeBenchmark.
+	 * @param hierarchy true to enable
+	 */
+	public void setBoundingHierarchy(boolean hierarchy) {
+		
+		boundingTree = hierarchy ? new LDPovBoundingTree() : null;
+	}
+	
+	
+	
+	/**
+	 * Sets level of detail by size of part on image, as a fraction of 
+	 * image height. Parts smaller than simplifySize are written without 
+	 * internal details (tubes under bricks and plates), parts smaller than 
+	 * boxSize are written as a box of part color.
+	 * With instancing only box level is used.
+	 * @param simplifySize size below which parts are simplified, 0 to disable
+	 * @param boxSize size below which parts are written as a box, 0 to disable
+	 */
+	public void setLevelOfDetail(float simplifySize, float boxSize) {
+		
+		context.lodSimplify = simplifySize;
+		context.lodBox = boxSize;
+	}
+	
+	
+	
+	/**
+	 * Enable or disable part geometry optimization.
+	 * With optimization enabled vertices within tolerance on every axis are welded,
+	 * triangles without area are dropped and adjacent coplanar triangles 
+	 * of the same color are written as a single polygon, see stats for 
+	 * objects saved. 0.001 is enough to weld vertices of LDraw files.
+	 * @param tolerance max difference of welded vertices on every axis in LDraw units, 0 to disable
+	 */
+	public void setGeometryOptimization(float tolerance) {
+		
+		context.optimizeTolerance = tolerance;
+	}
+	
+	
+	
+	/**
+	 * Enable or disable frustum culling.
+	 * With frustum culling enabled parts outside camera view are not written.
+	 * @param culling true to enable
+	 */
+	public void setFrustumCulling(boolean culling) {
+		
+		frustumCulling = culling;
+	}
+	
+	
+	
+	/**
+	 * Enable or disable occlusion culling.
+	 * With occlusion culling enabled parts with bounding box enclosed on all
+	 * sides by opaque parts are not written. It is an approximation, parts
+	 * seen through holes of neighbors are dropped too.
+	 * @param culling true to enable
+	 */
+	public void setOcclusionCulling(boolean culling) {
+		
+		occlusionCulling = culling;
+	}
+	
+	
+	
+	/**
+	 * @return number of parts not written because hidden
+	 */
+	public int getCulledParts() {
+		
+		return culledParts;
+	}
+	
+	
+	
+	/**
+	 * @return number of triangles in parts not written because hidden
+	 */
+	public long getCulledTriangles() {
+		
+		return culledTriangles;
+	}
+	
+	
+	
+	/**
+	 * Returns export stats, complete after {@link #addModel(List)}
+	 * @return stats of this export
+	 */
+	public LDPovExportStats getStats() {
+		
+		return stats;
+	}
+	
+	
+	
+	public void addListener(LDPovExportListener l) {
+		listeners.add(l);
+	}
+	
+	
+	public void removeListener(LDPovExportListener l) {
+		listeners.remove(l);
+	}
+	
+	
+	
+	/**
+	 * Sets cache for flattened part and sub-file geometry. 
+	 * By default all exports use {@link LDPovGeometryCache#getShared()}
+	 * @param cache geometry cache
+	 */
+	public void setGeometryCache(LDPovGeometryCache cache) {
+		
+		context.setGeometryCache(cache);
+	}
+	
+	
+	
+	public LDPovGeometryCache getGeometryCache() {
+		
+		return context.getGeometryCache();
+	}
+	
+	
+	
+	/**
+	 * Enables incremental export: parts not changed since export that used
+	 * the same cache are written without rendering them again.
+	 * Cache must not be used by other exports at the same time.
+	 * @param cache rendered parts of previous export, null to disable
+	 */
+	public void setFragmentCache(LDPovFragmentCache cache) {
+		
+		fragmentCache = cache;
+		if (cache != null) {
+			declaredParts = cache.declaredParts;
+			usedDeclares = cache.usedDeclares;
+			context.genDeclares = cache.genDeclares;
+		}
+	}
+	
+	
+	
+	public LDPovFragmentCache getFragmentCache() {
+		
+		return fragmentCache;
+	}
+	
+	
+	
+	/**
+	 * Export options that change part output, for fragment cache
+	 * @return options as text
+	 */
+	private String getExportOptions() {
+		
+		StringBuilder sb = new StringBuilder();
+		for (float f : LDPovGeometry.getMatrix(partView)) {
+			sb.append(f).append(',');
+		}
+		sb.append(zoomFactor).append(',').append(instancing).append(',').append(meshOutput)
+				.append(',').append(context.lodSimplify).append(',').append(context.lodBox).append(',').append(context.optimizeTolerance)
+				.append(',').append(context.getPrimitivesKey());
+		return sb.toString();
+	}
+	
+	
+	
+	/**
+	 * Returns POV-Ray identifier for geometry of a part, unique in output
+	 * @param ldrawId LDraw part id
+	 * @return identifier
+	 */
+	private String getDeclareName(String ldrawId) {
+		
+		String id = ldrawId.toLowerCase();
+		String declare = declaredParts.get(id);
+		if (declare == null) {
+			String base = LDPOVRenderedPart.getPartDeclareName(id);
+			declare = base;
+			int i = 1;
+			while (usedDeclares.contains(declare)) {
+				declare = base + "_" + i++;
+			}
+			declaredParts.put(id, declare);
+			usedDeclares.add(declare);
+		}
+		return declare;
+	}
+	
+	
+	
+	/**
+	 * Returns a new task to render a part, or part rendered by previous
+	 * export if it is in fragment cache
+	 * @param p part placement
+	 * @param ctx export context for task
+	 * @return task
+	 */
+	private LDPovPartTask getPartTask(LDPrimitive p, LDPovExportContext ctx) {
+		
+		String key = null;
+		String content = null;
+		LDPovPartTask cached = null;
+		if (fragmentCache != null) {
+			content = LDPovContentKey.get(ctx, p.getLdrawId());
+			key = LDPovFragmentCache.getKey(p, content);
+			cached = fragmentCache.get(key);
+		}
+		LDPovPartTask t;
+		if (!instancing) {
+			if (cached != null) {
+				return new LDPovPartTask(cached);
+			}
+			t = new LDPovPartTask(ctx, p, partView, meshOutput, null, false);
+			t.setKey(key, null);
+			t.setOffset(getJitter(p, jitter));
+			return t;
+		}
+		String declare = getDeclareName(p.getLdrawId());
+		String declareKey = fragmentCache == null ? null : LDPovFragmentCache.getDeclareKey(declare, content);
+		// part geometry is rendered by first part that uses it, if it isn't in cache
+		boolean available = exportDeclares.contains(declare) 
+				|| (fragmentCache != null && fragmentCache.getDeclare(declareKey) != null);
+		exportDeclares.add(declare);
+		if (cached != null && available) {
+			return new LDPovPartTask(cached);
+		}
+		t = new LDPovPartTask(ctx, p, partView, meshOutput, declare, !available);
+		t.setKey(key, declareKey);
+		t.setOffset(getJitter(p, jitter));
+		return t;
+	}
+	
+	
+	
+	private static LDPovPartTask getTaskResult(Future<LDPovPartTask> f) throws IOException {
+		
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Export interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	
+	
+	/**
+	 * Small random displacement of a part, to avoid coincident faces of adjacent parts.
+	 * Displacement depends only on part placement, so the same model gives 
+	 * always the same output.
+	 * @param p part placement
+	 * @param j destination for displacement x,y,z
+	 * @return j
+	 */
+	static float[] getJitter(LDPrimitive p, float[] j) {
+		
+		Matrix3D t = p.getTransformation();
+		long seed = p.getLdrawId().toLowerCase().hashCode();
+		seed = seed * 31 + p.getColorIndex();
+		seed = seed * 31 + Float.floatToIntBits(t.getA());
+		seed = seed * 31 + Float.floatToIntBits(t.getB());
+		seed = seed * 31 + Float.floatToIntBits(t.getC());
+		seed = seed * 31 + Float.floatToIntBits(t.getD());
+		seed = seed * 31 + Float.floatToIntBits(t.getE());
+		seed = seed * 31 + Float.floatToIntBits(t.getF());
+		seed = seed * 31 + Float.floatToIntBits(t.getG());
+		seed = seed * 31 + Float.floatToIntBits(t.getH());
+		seed = seed * 31 + Float.floatToIntBits(t.getI());
+		seed = seed * 31 + Float.floatToIntBits(t.getX());
+		seed = seed * 31 + Float.floatToIntBits(t.getY());
+		seed = seed * 31 + Float.floatToIntBits(t.getZ());
+		// the same sequence of java.util.Random nextDouble(), without a generator for every part
+		seed = (seed ^ RANDMULT) & RANDMASK;
+		for (int i=0;i<3;i++) {
+			seed = (seed * RANDMULT + 0xb) & RANDMASK;
+			long high = seed >>> 22;
+			seed = (seed * RANDMULT + 0xb) & RANDMASK;
+			long low = seed >>> 21;
+			j[i] = (float) (((high << 27) + low) * RANDSCALE * 0.6 - 0.3);
+		}
+		return j;
+	}
+	
+	
+
+	/**
+	 * Writes a rendered part, or keeps it for bounding hierarchy
+	 * @param t rendered part
+	 * @throws IOException
+	 */
+	private void writePart(LDPovPartTask t) throws IOException {
+		
+		long start = System.nanoTime();
+		if (fragmentCache != null) {
+			String declare = t.getDeclare();
+			if (declare != null && !t.hasDeclareText() && !writtenGenerated.contains(declare)) {
+				// part geometry rendered by a previous export
+				fragmentCache.getDeclare(t.getDeclareKey()).writeDeclares(buffWriter, writtenGenerated, context);
+			}
+			fragmentCache.put(t);
+		}
+		if (animation != null) {
+			t.writeDeclares(buffWriter, writtenGenerated, context);
+			animation.writePartStart(buffWriter, animatedParts++, modelParts);
+			t.writeObject(buffWriter);
+			animation.writePartEnd(buffWriter, t.getBounds(), modelCenter);
+		}
+		else if (boundingTree != null) {
+			t.writeDeclares(buffWriter, writtenGenerated, context);
+			boundingTree.add(t);
+		}
+		else {
+			t.write(buffWriter, writtenGenerated, context);
+		}
+		stats.add(t.getStats());
+		stats.ioNanos += System.nanoTime() - start;
 	}
 	
 	
+	
+	/**
+	 * Creates part tasks in output order
+	 */
+	private interface TaskSource {
 
+		/**
+		 * @param ctx export context for task
+		 * @return next task, null if there are no more parts
+		 */
+		LDPovPartTask next(LDPovExportContext ctx);
+	}
+	
+	
+	
+	/**
+	 * Sets camera for level of detail
+	 */
+	private void setupCamera() {
+		
+		if (context.lodSimplify > 0 || context.lodBox > 0) {
+			context.camera = new LDPovCamera(animation != null ? animation.getZoomFactor(zoomFactor) : zoomFactor);
+		}
+		else {
+			context.camera = null;
+		}
+	}
+	
+	
+	
+	/**
+	 * Renders and writes parts, serially or in parallel
+	 * @param source part tasks
+	 * @throws IOException
+	 */
+	private void renderParts(TaskSource source) throws IOException {
+		
+		LDPovPartTask t;
+		if (parallelism <= 1) {
+			while ((t = source.next(context)) != null) {
+				writePart(t.call());
+			}
+		}
+		else {
+			ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+			// parts rendered ahead of output, bounds memory used by buffers
+			int window = parallelism * 4;
+			Deque<Future<LDPovPartTask>> running = new ArrayDeque<Future<LDPovPartTask>>();
+			// contexts of running tasks, reused with their buffers when task is written
+			Deque<LDPovExportContext> contexts = new ArrayDeque<LDPovExportContext>();
+			Deque<LDPovExportContext> free = new ArrayDeque<LDPovExportContext>();
+			try {
+				LDPovExportContext ctx = context.fork();
+				while ((t = source.next(ctx)) != null) {
+					running.add(pool.submit(t));
+					contexts.add(ctx);
+					if (running.size() >= window) {
+						writePart(getTaskResult(running.poll()));
+						free.add(contexts.poll());
+					}
+					ctx = free.isEmpty() ? context.fork() : free.poll();
+				}
+				while (!running.isEmpty()) {
+					writePart(getTaskResult(running.poll()));
+				}
+			}
+			finally {
+				pool.shutdownNow();
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Writes bounding hierarchy, closes output and notifies listeners
+	 * @param start export start time
+	 * @throws IOException
+	 */
+	private void endRender(long start) throws IOException {
+		
+		long io = System.nanoTime();
+		if (boundingTree != null && animation == null) {
+			boundingTree.write(buffWriter, stats);
+		}
+		buffWriter.flush();
+		buffWriter.close();
+		long end = System.nanoTime();
+		stats.ioNanos += end - io;
+		stats.totalNanos += end - start;
+		stats.bytesWritten = byteWriter.getBytesWritten() + stepBytes;
+		for (LDPovExportListener el : listeners) {
+			el.exportFinished(stats);
+		}
+	}
+	
+	
+	
+	/**
+	 * Closes output without completing scene, after a failed export. 
+	 * Output already closed by a completed export is left as it is.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		
+		try {
+			buffWriter.close();
+		}
+		finally {
+			byteWriter.close();
+		}
+	}
+	
+	
+	
+	/**
+	 * Counts parts of an animated model and finds model center, as 
+	 * average of part positions in model coordinates
+	 * @param l model parts
+	 */
+	private void setModelCenter(List<LDPrimitive> l) {
+		
+		float[] c = new float[3];
+		int n = 0;
+		for (LDPrimitive p : l) {
+			if (p.getType() != LDrawCommand.REFERENCE) 
+				continue;
+			Matrix3D t = p.getTransformation();
+			// LDraw to POV-Ray axis change
+			c[0] -= t.getX();
+			c[1] -= t.getY();
+			c[2] -= t.getZ();
+			n++;
+		}
+		if (n > 0) {
+			c[0] /= n;
+			c[1] /= n;
+			c[2] /= n;
+		}
+		modelCenter = c;
+		modelParts = n;
+		animatedParts = 0;
+	}
+	
+	
+	
 	public void addModel(List<LDPrimitive> l) throws IOException {
 		
-		for (LDPrimitive p:l){
-			float x = (float) (Math.random()*0.6 - 0.3);
-			float y = (float) (Math.random()*0.6 - 0.3);
-			float z = (float) (Math.random()*0.6 - 0.3);
-			if (p.getType() == LDrawCommand.REFERENCE) {
-				LDPOVRenderedPart.newRenderedPart(p.moveTo(x, y, z), buffWriter,viewMatrix);
+		long start = System.nanoTime();
+		if (animation != null) {
+			// geometry in model coordinates, view is applied for every frame
+			partView = new Matrix3D();
+			setModelCenter(l);
+		}
+		if (fragmentCache != null) {
+			fragmentCache.startExport(getExportOptions());
+		}
+		if (animation == null) {
+			l = cull(l);
+		}
+		setupCamera();
+		renderParts(getTaskSource(l));
+		if (fragmentCache != null) {
+			fragmentCache.finishExport();
+		}
+		endRender(start);
+	}
+	
+	
+	
+	/**
+	 * Writes a model as a sequence of building steps, for building 
+	 * instructions. Parts of every step are rendered once and written in 
+	 * their own include file, <i>name</i>_<i>n</i>.inc in include directory, 
+	 * and scene of every step, <i>name</i>_<i>n</i>.pov in the same directory, 
+	 * only includes files of steps up to it, so a step costs its own parts 
+	 * and not the whole model built so far. 
+	 * Step scenes have the same header and camera of output, that gets 
+	 * complete model. Culling is done step by step, a part hidden by parts 
+	 * of its step stays hidden in later steps.
+	 * Renderer must have include files in a directory, and animation isn't used.
+	 * @param steps parts added by every step, in building order
+	 * @param name base name of step files
+	 * @return scene of every step, in building order
+	 * @throws IOException
+	 */
+	public List<File> addSteps(List<List<LDPrimitive>> steps, String name) throws IOException {
+		
+		if (includeDir == null) 
+			throw new IllegalStateException("Step export needs include files in a directory");
+		if (animation != null) 
+			throw new IllegalStateException("Step export can't be animated");
+		long start = System.nanoTime();
+		if (fragmentCache != null) {
+			fragmentCache.startExport(getExportOptions());
+		}
+		setupCamera();
+		List<File> scenes = new ArrayList<File>();
+		StringBuilder includes = new StringBuilder();
+		LDPovWriter output = buffWriter;
+		try {
+			for (int i=0;i<steps.size();i++) {
+				String step = getStepName(name, i+1, steps.size());
+				openStepFile(new File(includeDir, step+".inc"));
+				buffWriter.write("// Step ");
+				buffWriter.writeInt(i+1);
+				buffWriter.write("\n\n");
+				renderParts(getTaskSource(cull(steps.get(i))));
+				if (boundingTree != null) {
+					boundingTree.write(buffWriter, stats);
+				}
+				closeStepFile();
+				includes.append("#include \"").append(step).append(".inc\"\n");
+				File scene = new File(includeDir, step+".pov");
+				openStepFile(scene);
+				writeSceneHeader();
+				buffWriter.write(includes.toString());
+				closeStepFile();
+				scenes.add(scene);
 			}
 		}
+		finally {
+			if (buffWriter != output) {
+				buffWriter.close();
+			}
+			buffWriter = output;
+		}
+		buffWriter.write(includes.toString());
+		if (fragmentCache != null) {
+			fragmentCache.finishExport();
+		}
+		endRender(start);
+		return scenes;
+	}
+	
+	
+	
+	/**
+	 * @return name of a step file, without extension, with step number 
+	 * padded to the same length for all steps
+	 */
+	private static String getStepName(String name, int step, int count) {
+		
+		String number = Integer.toString(step);
+		int digits = Integer.toString(count).length();
+		StringBuilder sb = new StringBuilder(name).append('_');
+		for (int i=number.length();i<digits;i++) {
+			sb.append('0');
+		}
+		return sb.append(number).toString();
+	}
+	
+	
+	
+	/**
+	 * Sends output to a step file, until {@link #closeStepFile()}
+	 * @param f step file
+	 * @throws IOException
+	 */
+	private void openStepFile(File f) throws IOException {
+		
+		stepWriter = new LDPovByteWriter(new FileOutputStream(f));
+		buffWriter = new LDPovWriter(stepWriter);
+	}
+	
+	
+	
+	private void closeStepFile() throws IOException {
+		
+		long start = System.nanoTime();
 		buffWriter.flush();
 		buffWriter.close();
+		stepBytes += stepWriter.getBytesWritten();
+		stats.ioNanos += System.nanoTime() - start;
+	}
+	
+	
+	
+	/**
+	 * Drops hidden parts, if culling is enabled
+	 * @param l model parts
+	 * @return parts to write
+	 * @throws IOException
+	 */
+	private List<LDPrimitive> cull(List<LDPrimitive> l) throws IOException {
+		
+		if (!frustumCulling && !occlusionCulling) 
+			return l;
+		LDPovCuller culler = new LDPovCuller();
+		culler.setFrustum(frustumCulling);
+		culler.setOcclusion(occlusionCulling);
+		List<LDPrimitive> visible = culler.cull(context, l, viewMatrix, zoomFactor);
+		culledParts += culler.getFrustumCulled() + culler.getOcclusionCulled();
+		culledTriangles += culler.getTrianglesCulled();
+		return visible;
+	}
+	
+	
+	
+	/**
+	 * @param l model parts
+	 * @return tasks for parts in list, in model order
+	 */
+	private TaskSource getTaskSource(List<LDPrimitive> l) {
+		
+		final Iterator<LDPrimitive> parts = l.iterator();
+		return new TaskSource() {
+			@Override
+			public LDPovPartTask next(LDPovExportContext ctx) {
+				while (parts.hasNext()) {
+					LDPrimitive p = parts.next();
+					if (p.getType() == LDrawCommand.REFERENCE) {
+						return getPartTask(p, ctx);
+					}
+				}
+				return null;
+			}
+		};
+	}
+	
+	
+	
+	/**
+	 * Flattens a model to a scene archive, with current view. 
+	 * Output of this renderer isn't used. 
+	 * @param l model parts
+	 * @return archive, with placements for current view and perspective
+	 * @throws IOException
+	 */
+	public LDPovSceneArchive getArchive(List<LDPrimitive> l) throws IOException {
+		
+		LDPovSceneArchive a = new LDPovSceneArchive(perspective, zoomFactor);
+		try {
+			for (LDPrimitive p : l) {
+				if (p.getType() != LDrawCommand.REFERENCE) 
+					continue;
+				getJitter(p, context.offset);
+				a.addInstance(p.getLdrawId(), LDPOVRenderedPart.getGeometry(context, p.getLdrawId(), false),
+						LDPOVRenderedPart.getPlacement(context, p, viewMatrix), p.getColorIndex());
+			}
+		}
+		finally {
+			context.offset[0] = context.offset[1] = context.offset[2] = 0;
+		}
+		return a;
+	}
+	
+	
+	
+	/**
+	 * Writes a scene archive, as addModel does for a model. Parts are 
+	 * always written as instances of declared geometry. 
+	 * Camera must be set before {@link #startRender()} like for original 
+	 * export, see {@link LDPovSceneArchive#getZoomFactor()}.
+	 * @param a scene archive
+	 * @throws IOException
+	 */
+	public void addArchive(final LDPovSceneArchive a) throws IOException {
+		
+		long start = System.nanoTime();
+		setupCamera();
+		renderParts(new TaskSource() {
+			int index = 0;
+
+			@Override
+			public LDPovPartTask next(LDPovExportContext ctx) {
+				if (index >= a.getPartCount()) 
+					return null;
+				int i = index++;
+				String id = a.getId(i);
+				String declare = getDeclareName(id);
+				boolean newDeclare = exportDeclares.add(declare);
+				return new LDPovPartTask(ctx, a.getGeometry(i), id, a.getPlacement(i), a.getColor(i),
+						meshOutput, declare, newDeclare);
+			}
+		});
+		endRender(start);
 	}
 	
 	
 	
 	public void startRender() throws IOException {
 		
-		buffWriter.write("#version 3.7;\n#include \"jbbheader.inc\"\n");
+		long start = System.nanoTime();
+		context.startExport();
+		context.materials.startExport(inlineIncludes);
+		writeSceneHeader();
+		stats.ioNanos += System.nanoTime() - start;
+	}
+	
+	
+	
+	/**
+	 * Writes scene header, materials and camera
+	 * @throws IOException
+	 */
+	private void writeSceneHeader() throws IOException {
+		
+		buffWriter.write("#version 3.7;\n");
+		if (inlineIncludes) {
+			writeInlineHeader();
+		}
+		else {
+			buffWriter.write("#include \""+LDPovAssets.POVHEADER+"\"\n");
+			context.materials.writeUserMaterials(buffWriter);
+		}
 		buffWriter.write('\n');
-		if (perspective) {
+		if (animation != null) {
+			animation.writeDeclares(buffWriter, viewMatrix, zoomFactor);
+		}
+		if (perspective && animation != null) {
+			buffWriter.write(
+					"camera {\n" +
+					"  perspective\n" +
+					"  location <0,0,800.0*LDZoom>\n" +
+					"  look_at <0,0,0>\n" +
+					"  up <0,1,0>\n" +
+					"}\n\n");			
+		}
+		else if (perspective) {
 			buffWriter.write(
 					"camera {\n" +
 					"  perspective\n" +
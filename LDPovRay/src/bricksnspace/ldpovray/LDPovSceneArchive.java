@@ -0,0 +1,420 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Exported scene in a compact binary form, that can be written to POV-Ray
+ * without LDraw library with {@link LDPovRenderer#addArchive(LDPovSceneArchive)}.
+ *
+ * Archive has flattened geometry of every distinct part and a table of
+ * part instances, with placement already in POV-Ray coordinates. Names
+ * and colors are written once in tables. Triangle vertices are rounded to
+ * 1/10000 of LDraw unit and written as variable length differences from
+ * previous vertex, other values are written as floats.
+ *
+ * Archive is written to a stream as it is, wrap stream in a
+ * GZIPOutputStream to compress it.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovSceneArchive {
+
+	// "LDPA"
+	private static final int MAGIC = 0x4c445041;
+	private static final int VERSION = 1;
+	// vertex rounding, steps for LDraw unit
+	private static final float QUANT = 10000;
+
+	private boolean perspective;
+	private float zoomFactor;
+	// part ids and geometries, by geometry index
+	private List<String> ids = new ArrayList<String>();
+	private List<LDPovGeometry> geometries = new ArrayList<LDPovGeometry>();
+	private Map<String,Integer> geometryIndex = new HashMap<String,Integer>();
+	// instances: geometry index, color and placement (12 floats)
+	private int[] instanceGeometry = new int[16];
+	private int[] instanceColor = new int[16];
+	private float[] instanceMatrix = new float[16*12];
+	private int instanceCount = 0;
+
+
+
+	LDPovSceneArchive(boolean perspective, float zoomFactor) {
+
+		this.perspective = perspective;
+		this.zoomFactor = zoomFactor;
+	}
+
+
+
+	public boolean isPerspective() {
+		return perspective;
+	}
+
+
+	public float getZoomFactor() {
+		return zoomFactor;
+	}
+
+
+	/**
+	 * @return number of part instances
+	 */
+	public int getPartCount() {
+		return instanceCount;
+	}
+
+
+	/**
+	 * @return number of distinct parts
+	 */
+	public int getGeometryCount() {
+		return geometries.size();
+	}
+
+
+
+	/**
+	 * Adds a part instance
+	 * @param ldrawId LDraw part id
+	 * @param g part geometry, not inverted
+	 * @param m part placement in POV-Ray coordinates, 12 floats
+	 * @param color LDraw color
+	 */
+	void addInstance(String ldrawId, LDPovGeometry g, float[] m, int color) {
+
+		String id = ldrawId.toLowerCase();
+		Integer gi = geometryIndex.get(id);
+		if (gi == null) {
+			gi = geometries.size();
+			geometryIndex.put(id, gi);
+			ids.add(id);
+			geometries.add(g);
+		}
+		if (instanceCount == instanceColor.length) {
+			int size = instanceCount * 2;
+			instanceGeometry = Arrays.copyOf(instanceGeometry, size);
+			instanceColor = Arrays.copyOf(instanceColor, size);
+			instanceMatrix = Arrays.copyOf(instanceMatrix, size*12);
+		}
+		instanceGeometry[instanceCount] = gi;
+		instanceColor[instanceCount] = color;
+		System.arraycopy(m, 0, instanceMatrix, instanceCount*12, 12);
+		instanceCount++;
+	}
+
+
+
+	String getId(int instance) {
+		return ids.get(instanceGeometry[instance]);
+	}
+
+
+	LDPovGeometry getGeometry(int instance) {
+		return geometries.get(instanceGeometry[instance]);
+	}
+
+
+	int getColor(int instance) {
+		return instanceColor[instance];
+	}
+
+
+	float[] getPlacement(int instance) {
+
+		float[] m = new float[12];
+		System.arraycopy(instanceMatrix, instance*12, m, 0, 12);
+		return m;
+	}
+
+
+
+	private static void writeVarint(DataOutputStream out, int v) throws IOException {
+
+		while ((v & ~0x7f) != 0) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+
+
+	private static int readVarint(DataInputStream in) throws IOException {
+
+		int v = 0;
+		for (int shift=0;shift<35;shift+=7) {
+			int b = in.readUnsignedByte();
+			v |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("Malformed scene archive");
+	}
+
+
+
+	/**
+	 * Reads a table size or an item count
+	 * @param max max allowed value
+	 * @throws IOException if value is negative or greater than max
+	 */
+	private static int readCount(DataInputStream in, int max) throws IOException {
+
+		int v = readVarint(in);
+		if (v < 0 || v > max) {
+			throw new IOException("Malformed scene archive");
+		}
+		return v;
+	}
+
+
+
+	/**
+	 * Reads an index in a table
+	 * @param size table size
+	 * @throws IOException if index is outside table
+	 */
+	private static int readIndex(DataInputStream in, int size) throws IOException {
+
+		int v = readVarint(in);
+		if (v < 0 || v >= size) {
+			throw new IOException("Malformed scene archive");
+		}
+		return v;
+	}
+
+
+
+	private static void writeSigned(DataOutputStream out, int v) throws IOException {
+
+		writeVarint(out, (v << 1) ^ (v >> 31));
+	}
+
+
+
+	private static int readSigned(DataInputStream in) throws IOException {
+
+		int v = readVarint(in);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+
+
+	private static int intern(Map<String,Integer> table, List<String> list, String s) {
+
+		Integer i = table.get(s);
+		if (i == null) {
+			i = list.size();
+			table.put(s, i);
+			list.add(s);
+		}
+		return i;
+	}
+
+
+
+	private static int intern(Map<Integer,Integer> table, List<Integer> list, int c) {
+
+		Integer i = table.get(c);
+		if (i == null) {
+			i = list.size();
+			table.put(c, i);
+			list.add(c);
+		}
+		return i;
+	}
+
+
+
+	/**
+	 * Writes archive to a stream, stream is not closed
+	 * @param os output stream
+	 * @throws IOException
+	 */
+	public void write(OutputStream os) throws IOException {
+
+		// string and color tables first
+		Map<String,Integer> stringIndex = new HashMap<String,Integer>();
+		List<String> strings = new ArrayList<String>();
+		Map<Integer,Integer> colorIndex = new HashMap<Integer,Integer>();
+		List<Integer> colors = new ArrayList<Integer>();
+		for (String id : ids) {
+			intern(stringIndex, strings, id);
+		}
+		for (LDPovGeometry g : geometries) {
+			for (int i=0;i<g.getPrimitiveCount();i++) {
+				intern(stringIndex, strings, g.getPrimitives()[i]);
+				intern(colorIndex, colors, g.getPrimitiveColors()[i]);
+			}
+			for (int i=0;i<g.getTriangleCount();i++) {
+				intern(colorIndex, colors, g.getTriangleColors()[i]);
+			}
+		}
+		for (int i=0;i<instanceCount;i++) {
+			intern(colorIndex, colors, instanceColor[i]);
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeBoolean(perspective);
+		out.writeFloat(zoomFactor);
+		writeVarint(out, strings.size());
+		for (String s : strings) {
+			out.writeUTF(s);
+		}
+		writeVarint(out, colors.size());
+		for (int c : colors) {
+			out.writeInt(c);
+		}
+		writeVarint(out, geometries.size());
+		for (int gi=0;gi<geometries.size();gi++) {
+			LDPovGeometry g = geometries.get(gi);
+			writeVarint(out, stringIndex.get(ids.get(gi)));
+			writeVarint(out, g.getTriangleCount());
+			float[] t = g.getTriangles();
+			int[] last = new int[3];
+			for (int i=0;i<g.getTriangleCount()*9;i++) {
+				int q = Math.round(t[i] * QUANT);
+				writeSigned(out, q - last[i%3]);
+				last[i%3] = q;
+			}
+			for (int i=0;i<g.getTriangleCount();i++) {
+				writeVarint(out, colorIndex.get(g.getTriangleColors()[i]));
+			}
+			writeVarint(out, g.getPrimitiveCount());
+			float[] pm = g.getPrimitiveMatrix();
+			for (int i=0;i<g.getPrimitiveCount();i++) {
+				writeVarint(out, stringIndex.get(g.getPrimitives()[i]));
+				out.writeBoolean(g.getGenerated()[i]);
+				writeVarint(out, colorIndex.get(g.getPrimitiveColors()[i]));
+				for (int k=0;k<12;k++) {
+					out.writeFloat(pm[i*12+k]);
+				}
+				for (float f : g.getPrimitiveBounds()[i]) {
+					out.writeFloat(f);
+				}
+			}
+			out.writeBoolean(g.isSingular());
+		}
+		writeVarint(out, instanceCount);
+		for (int i=0;i<instanceCount;i++) {
+			writeVarint(out, instanceGeometry[i]);
+			writeVarint(out, colorIndex.get(instanceColor[i]));
+			for (int k=0;k<12;k++) {
+				out.writeFloat(instanceMatrix[i*12+k]);
+			}
+		}
+		out.flush();
+	}
+
+
+
+	/**
+	 * Reads an archive written by {@link #write(OutputStream)}, stream is not closed
+	 * @param is input stream
+	 * @return archive
+	 * @throws IOException if stream isn't a scene archive, it is truncated or
+	 * it has an index outside its tables
+	 */
+	public static LDPovSceneArchive read(InputStream is) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a scene archive");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported scene archive version "+version);
+		}
+		LDPovSceneArchive a = new LDPovSceneArchive(in.readBoolean(), in.readFloat());
+		String[] strings = new String[readCount(in, Integer.MAX_VALUE)];
+		for (int i=0;i<strings.length;i++) {
+			strings[i] = in.readUTF();
+		}
+		int[] colors = new int[readCount(in, Integer.MAX_VALUE)];
+		for (int i=0;i<colors.length;i++) {
+			colors[i] = in.readInt();
+		}
+		int geometryCount = readCount(in, Integer.MAX_VALUE);
+		for (int gi=0;gi<geometryCount;gi++) {
+			String id = strings[readIndex(in, strings.length)];
+			LDPovGeometry.Builder gb = new LDPovGeometry.Builder();
+			int triangles = readCount(in, Integer.MAX_VALUE / 9);
+			float[] t = new float[triangles*9];
+			int[] last = new int[3];
+			for (int i=0;i<t.length;i++) {
+				last[i%3] += readSigned(in);
+				t[i] = last[i%3] / QUANT;
+			}
+			for (int i=0;i<triangles;i++) {
+				gb.addTriangle(t, i*9, colors[readIndex(in, colors.length)]);
+			}
+			int primitives = readCount(in, Integer.MAX_VALUE);
+			float[] m = new float[12];
+			for (int i=0;i<primitives;i++) {
+				String name = strings[readIndex(in, strings.length)];
+				boolean gen = in.readBoolean();
+				int color = colors[readIndex(in, colors.length)];
+				for (int k=0;k<12;k++) {
+					m[k] = in.readFloat();
+				}
+				float[] b = new float[6];
+				for (int k=0;k<6;k++) {
+					b[k] = in.readFloat();
+				}
+				gb.addPrimitive(name, gen, m, color, b);
+			}
+			if (in.readBoolean()) {
+				gb.setSingular();
+			}
+			a.geometryIndex.put(id, gi);
+			a.ids.add(id);
+			a.geometries.add(gb.build());
+		}
+		int instances = readCount(in, Integer.MAX_VALUE);
+		float[] m = new float[12];
+		for (int i=0;i<instances;i++) {
+			int gi = readIndex(in, geometryCount);
+			int color = colors[readIndex(in, colors.length)];
+			for (int k=0;k<12;k++) {
+				m[k] = in.readFloat();
+			}
+			a.addInstance(a.ids.get(gi), a.geometries.get(gi), m, color);
+		}
+		return a;
+	}
+
+}
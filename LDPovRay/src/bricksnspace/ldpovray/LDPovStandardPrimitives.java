@@ -0,0 +1,269 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.IOException;
+import java.util.Locale;
+
+
+/**
+ * Generator of standard LDraw primitives, from names parsed by
+ * {@link LDPovPrimitiveDescriptor}.
+ *
+ * Circle primitives are a full POV-Ray shape, clipped by planes to
+ * circle fraction, so they are exact at any resolution.
+ *
+ * @author Mario Pascucci
+ *
+ */
+class LDPovStandardPrimitives implements LDPovPrimitiveGenerator {
+
+	private static final String CYLINDER = "cylinder { <0, 0, 0>, <0, 1, 0>, 1 open }";
+	private static final String SLOPED_CYLINDER = "cylinder { <0, 0, 0>, <0, 2, 0>, 1 open }";
+	private static final String SLOPE = "plane { <1,1,0>, 1/sqrt(2) }";
+	private static final String CLOSED_CYLINDER = "cylinder { <0, 0, 0>, <0, 1, 0>, 1 }";
+	private static final String DISC = "disc { <0, 0, 0>, <0, 1, 0>, 1 }";
+	private static final String SQUARE = "polygon { 5, <-1,0,-1>, <1,0,-1>, <1,0,1>, <-1,0,1>, <-1,0,-1> }";
+	private static final String NOTDISC = "cylinder { <0, -1, 0>, <0, 1, 0>, 1 inverse }";
+	// box5.dat faces: bottom at y 1 and sides
+	private static final String[] OPEN_BOX = {
+		"polygon { 5, <-1,1,-1>, <1,1,-1>, <1,1,1>, <-1,1,1>, <-1,1,-1> }",
+		"polygon { 5, <-1,0,-1>, <1,0,-1>, <1,1,-1>, <-1,1,-1>, <-1,0,-1> }",
+		"polygon { 5, <-1,0,1>, <1,0,1>, <1,1,1>, <-1,1,1>, <-1,0,1> }",
+		"polygon { 5, <-1,0,-1>, <-1,0,1>, <-1,1,1>, <-1,1,-1>, <-1,0,-1> }",
+		"polygon { 5, <1,0,-1>, <1,0,1>, <1,1,1>, <1,1,-1>, <1,0,-1> }"
+	};
+
+
+
+	@Override
+	public boolean isGenerated(String name) {
+
+		return LDPovPrimitiveDescriptor.get(name).getKind() != LDPovPrimitiveDescriptor.Kind.NONE;
+	}
+
+
+
+	@Override
+	public void writeDeclare(LDPovWriter out, String declare, String name) throws IOException {
+
+		LDPovPrimitiveDescriptor d = LDPovPrimitiveDescriptor.get(name);
+		switch (d.getKind()) {
+		case CYLINDER:
+			writeSector(out, declare, CYLINDER, null, d);
+			break;
+		case SLOPED_CYLINDER:
+			writeSector(out, declare, SLOPED_CYLINDER, SLOPE, d);
+			break;
+		case CLOSED_CYLINDER:
+			writeSector(out, declare, CLOSED_CYLINDER, null, d);
+			break;
+		case DISC:
+			writeSector(out, declare, DISC, null, d);
+			break;
+		case NDISC:
+			writeSector(out, declare, SQUARE, NOTDISC, d);
+			break;
+		case CHORD:
+			writeChord(out, declare, d);
+			break;
+		case RING:
+			writeSector(out, declare, String.format(Locale.US,"disc { <0, 0, 0>, <0, 1, 0>, %d, %d }",
+					d.getRadius()+1,d.getRadius()), null, d);
+			break;
+		case CONE:
+			writeSector(out, declare, String.format(Locale.US,"cone { <0, 0, 0>, %d, <0, 1, 0>, %d open }",
+					d.getRadius()+1,d.getRadius()), null, d);
+			break;
+		case TORUS:
+			writeTorus(out, declare, d);
+			break;
+		case BOX:
+			out.write(String.format(Locale.US,"#declare %s=object {\n",declare));
+			out.write("  box { <-1, -1, -1>, <1, 1, 1> }\n}\n\n");
+			break;
+		case OPEN_BOX:
+			out.write(String.format(Locale.US,"#declare %s=union {\n",declare));
+			for (String face : OPEN_BOX) {
+				out.write("  "+face+"\n");
+			}
+			out.write("}\n\n");
+			break;
+		case RECT:
+			out.write(String.format(Locale.US,"#declare %s=object {\n",declare));
+			out.write("  "+SQUARE+"\n}\n\n");
+			break;
+		case STUD:
+			writeStud(out, declare, 6, 0);
+			break;
+		case HOLLOW_STUD:
+			writeStud(out, declare, 6, 4);
+			break;
+		case SOLID_TUBE:
+			writeStud(out, declare, 4, 0);
+			break;
+		case TUBE:
+			// inner cylinder goes past tube ends, to avoid coincident surfaces
+			out.write(String.format(Locale.US,"#declare %s=difference {\n",declare));
+			out.write("  cylinder { <0, -4, 0>, <0, 0, 0>, 8 }\n");
+			out.write("  cylinder { <0, -4.1, 0>, <0, 0.1, 0>, 6 }\n}\n\n");
+			break;
+		default:
+			throw new IllegalArgumentException("Not a standard primitive: "+name);
+		}
+	}
+
+
+
+	/**
+	 * Writes a shape around y axis clipped to circle fraction, starting
+	 * from x axis toward z axis
+	 * @param out output
+	 * @param declare POV-Ray identifier
+	 * @param shape full shape
+	 * @param clip other clipping object, null if none
+	 * @param d primitive descriptor
+	 * @throws IOException
+	 */
+	private static void writeSector(LDPovWriter out, String declare, String shape, String clip,
+			LDPovPrimitiveDescriptor d) throws IOException {
+
+		int fraction = d.getFraction();
+		int total = d.getTotal();
+		String extra = clip == null ? "" : " "+clip;
+		if (total/fraction >= 2) {
+			double angle = (Math.PI * 2 * fraction / total) + (Math.PI / 2);
+			double vx = Math.cos(angle);
+			double vz = Math.sin(angle);
+			out.write(String.format(Locale.US,"#declare %s=object {\n",declare));
+			out.write("  "+shape+"\n");
+			out.write(String.format(Locale.US,"  clipped_by {\n    plane { -z, 0 }\n    plane { <%f,0,%f>, 0 }\n",vx,vz));
+			if (clip != null) {
+				out.write("    "+clip+"\n");
+			}
+			out.write("  }\n}\n\n");
+		}
+		else if (total == fraction) {
+			out.write(String.format(Locale.US,"#declare %s=object {\n",declare));
+			out.write("  "+shape+"\n");
+			if (clip != null) {
+				out.write("  clipped_by { "+clip+" }\n");
+			}
+			out.write("}\n\n");
+		}
+		else {
+			// more than half circle, union of two halves
+			double angle = (Math.PI * 2 * fraction / total) + (Math.PI / 2);
+			double vx = Math.cos(angle);
+			double vz = Math.sin(angle);
+			out.write(String.format(Locale.US,"#declare %s=union{\n  object {\n",declare));
+			out.write("    "+shape+"\n");
+			out.write("    clipped_by {\n    plane { -z, 0 }\n");
+			if (clip != null) {
+				out.write("    "+clip+"\n");
+			}
+			out.write("    }\n  }\n");
+			out.write("  object {\n    "+shape+"\n");
+			out.write(String.format(Locale.US,"    clipped_by { plane { z, 0 } plane { <%f,0,%f>, 0 }%s }\n  }\n}\n\n",vx,vz,extra));
+		}
+	}
+
+
+
+	/**
+	 * Writes a stud or a stud tube: open cylinder 4 LDU high from y -4 to 0,
+	 * closed at y -4
+	 * @param out output
+	 * @param declare POV-Ray identifier
+	 * @param outer outer radius
+	 * @param inner inner radius, 0 if stud is solid
+	 * @throws IOException
+	 */
+	private static void writeStud(LDPovWriter out, String declare, int outer, int inner) throws IOException {
+
+		out.write(String.format(Locale.US,"#declare %s=union {\n",declare));
+		out.write(String.format(Locale.US,"  cylinder { <0, -4, 0>, <0, 0, 0>, %d open }\n",outer));
+		if (inner > 0) {
+			out.write(String.format(Locale.US,"  cylinder { <0, -4, 0>, <0, 0, 0>, %d open }\n",inner));
+			out.write(String.format(Locale.US,"  disc { <0, -4, 0>, <0, 1, 0>, %d, %d }\n}\n\n",outer,inner));
+		}
+		else {
+			out.write(String.format(Locale.US,"  disc { <0, -4, 0>, <0, 1, 0>, %d }\n}\n\n",outer));
+		}
+	}
+
+
+
+	/**
+	 * Disc between arc and chord: disc clipped by the plane through chord
+	 */
+	private static void writeChord(LDPovWriter out, String declare, LDPovPrimitiveDescriptor d) throws IOException {
+
+		double half = Math.PI * d.getFraction() / d.getTotal();
+		double nx = Math.cos(half);
+		double nz = Math.sin(half);
+		out.write(String.format(Locale.US,"#declare %s=object {\n",declare));
+		out.write("  "+DISC+"\n");
+		out.write(String.format(Locale.US,"  clipped_by { plane { <%f,0,%f>, %f } }\n}\n\n",-nx,-nz,-nx));
+	}
+
+
+
+	private static void writeTorus(LDPovWriter out, String declare, LDPovPrimitiveDescriptor d) throws IOException {
+
+		char type = d.getTorusType();
+		int fraction = d.getFraction();
+		float rMinor = d.getMinorRadius();
+		if (fraction >= 2) {
+			double angle = (Math.PI * 2 / fraction) + (Math.PI / 2);
+			double vx = Math.cos(angle);
+			double vz = Math.sin(angle);
+			out.write(String.format(Locale.US,"#declare %s=object {\n",declare));
+			out.write("  torus { 1, ");
+			out.writeFixed(rMinor, 6);
+			out.write(" hollow }\n");
+			if (type == 'i') {
+				out.write(String.format(Locale.US, "  clipped_by { plane { -y,0 } plane { <%f,0,%f>,0 } plane { -z,0} cylinder { <0,-1,0>,<0,1,0>, 1 } }\n}\n\n", vx,vz ));
+			}
+			else if (type == 'o') {
+				out.write(String.format(Locale.US, "  clipped_by { plane { -y,0 } plane { <%f,0,%f>,0 } plane { -z,0} cylinder { <0,-1,0>,<0,1,0>, 1 inverse } }\n}\n\n", vx,vz ));
+			}
+			else {
+				out.write(String.format(Locale.US, "  clipped_by { plane { <%f,0,%f>,0 } plane { -z,0} }\n}\n\n", vx,vz ));
+			}
+		}
+		else {
+			out.write(String.format(Locale.US,"#declare %s=object {\n",declare));
+			out.write("    torus { 1, ");
+			out.writeFixed(rMinor, 6);
+			out.write(" hollow }\n");
+			if (type == 'i') {
+				out.write("  clipped_by { plane { -y,0 } cylinder { <0,-1,0>,<0,1,0>, 1 } }\n}\n\n");
+			}
+			else if (type == 'o') {
+				out.write("  clipped_by { plane { -y,0 } cylinder { <0,-1,0>,<0,1,0>, 1 inverse } }\n}\n\n");
+			}
+			else {
+				out.write("}\n\n");
+			}
+		}
+	}
+
+}
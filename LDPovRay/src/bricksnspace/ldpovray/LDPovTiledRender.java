@@ -0,0 +1,571 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.ldrawlib.LDPrimitive;
+import bricksnspace.ldrawlib.LDrawColor;
+import bricksnspace.ldrawlib.LDrawColorType;
+import bricksnspace.ldrawlib.LDrawCommand;
+
+
+/**
+ * Renders a model as image tiles in parallel POV-Ray processes.
+ *
+ * Scene is exported once to a .pov file, every tile is rendered from
+ * the same scene with partial frame options (+SR +ER +SC +EC), and tiles
+ * are assembled in a single PNG image.
+ *
+ * Tiles are split where render is expected to be slower: every part
+ * adds cost where it is projected on image, and transparent parts cost
+ * more than opaque ones. Most expensive tile is split in two tiles
+ * with the same cost, until the requested number of tiles is reached.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovTiledRender {
+
+	// cost grid cells for every image side
+	private static final int GRID = 64;
+	// background cost for every grid cell
+	private static final float BASECOST = 1;
+	private static final float PARTCOST = 8;
+	private static final float TRANSCOST = 32;
+	// approximate part radius, in LDraw units, to spread part cost
+	private static final float PARTRADIUS = 20;
+	// minimum tile side, in pixels
+	private static final int MINTILE = 16;
+
+
+	/**
+	 * A rectangular part of image, rows and columns are 1-based and
+	 * inclusive, like POV-Ray partial frame options.
+	 */
+	public static class Tile {
+
+		private int startRow;
+		private int endRow;
+		private int startCol;
+		private int endCol;
+		private float cost;
+
+		Tile(int startRow, int endRow, int startCol, int endCol, float cost) {
+			this.startRow = startRow;
+			this.endRow = endRow;
+			this.startCol = startCol;
+			this.endCol = endCol;
+			this.cost = cost;
+		}
+
+		public int getStartRow() {
+			return startRow;
+		}
+
+		public int getEndRow() {
+			return endRow;
+		}
+
+		public int getStartCol() {
+			return startCol;
+		}
+
+		public int getEndCol() {
+			return endCol;
+		}
+
+		public int getWidth() {
+			return endCol - startCol + 1;
+		}
+
+		public int getHeight() {
+			return endRow - startRow + 1;
+		}
+
+		/**
+		 * @return estimated render cost, in arbitrary units
+		 */
+		public float getCost() {
+			return cost;
+		}
+
+		/**
+		 * @return POV-Ray options to render only this tile
+		 */
+		public List<String> getOptions() {
+
+			List<String> o = new ArrayList<String>();
+			o.add("+SR"+startRow);
+			o.add("+ER"+endRow);
+			o.add("+SC"+startCol);
+			o.add("+EC"+endCol);
+			return o;
+		}
+
+		@Override
+		public String toString() {
+			return "Tile [rows=" + startRow + "-" + endRow + ", cols=" + startCol
+					+ "-" + endCol + ", cost=" + cost + "]";
+		}
+	}
+
+
+	private final List<LDPrimitive> model;
+	private final File workDir;
+	private final File image;
+	private File includeDir;
+	private int width = 800;
+	private int height = 600;
+	private boolean antialias = true;
+	private float zoomFactor = 1;
+	private Matrix3D viewMatrix = new Matrix3D();
+	private boolean instancing = false;
+	private boolean meshOutput = false;
+	private String executable = "povray";
+
+	// estimated render cost for every grid cell, by rows
+	private float[] cost;
+
+
+
+	/**
+	 * Creates a tiled render
+	 * @param model parts to render
+	 * @param workDir directory for scene, include files and tile images
+	 * @param image output PNG image
+	 */
+	public LDPovTiledRender(List<LDPrimitive> model, File workDir, File image) {
+
+		this.model = model;
+		this.workDir = workDir;
+		this.image = image;
+		includeDir = workDir;
+	}
+
+
+
+	public void setSize(int width, int height) {
+
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Invalid image size "+width+"x"+height);
+		this.width = width;
+		this.height = height;
+		cost = null;
+	}
+
+
+	public void setAntialias(boolean antialias) {
+		this.antialias = antialias;
+	}
+
+
+	public void setPerspective(float zoomFactor) {
+		this.zoomFactor = zoomFactor;
+		cost = null;
+	}
+
+
+	public void setViewMatrix(Matrix3D m) {
+		viewMatrix = m.getCopy();
+		cost = null;
+	}
+
+
+	public void setInstancing(boolean instancing) {
+		this.instancing = instancing;
+	}
+
+
+	public void setMeshOutput(boolean meshOutput) {
+		this.meshOutput = meshOutput;
+	}
+
+
+	/**
+	 * Sets a shared directory for include files, by default include files
+	 * are in work directory
+	 * @param includeDir directory for include files
+	 */
+	public void setIncludeDir(File includeDir) {
+		this.includeDir = includeDir;
+	}
+
+
+	/**
+	 * Sets POV-Ray executable, default is "povray" in system path
+	 * @param executable program name or path
+	 */
+	public void setExecutable(String executable) {
+		this.executable = executable;
+	}
+
+
+	/**
+	 * @return scene file shared by all tiles
+	 */
+	public File getSceneFile() {
+		return new File(workDir, "scene.pov");
+	}
+
+
+	/**
+	 * @param n tile index
+	 * @return image file for a tile
+	 */
+	public File getTileFile(int n) {
+		return new File(workDir, "tile"+n+".png");
+	}
+
+
+
+	/**
+	 * Estimates render cost on a grid over image
+	 */
+	private void computeCost() {
+
+		cost = new float[GRID*GRID];
+		for (int i=0;i<cost.length;i++) {
+			cost[i] = BASECOST;
+		}
+		Matrix3D view = viewMatrix.scale(-1, -1, -1);
+		LDPovCamera camera = new LDPovCamera(zoomFactor);
+		float[] pt = new float[2];
+		float cellW = (float) width / GRID;
+		float cellH = (float) height / GRID;
+		for (LDPrimitive p : model) {
+			if (p.getType() != LDrawCommand.REFERENCE)
+				continue;
+			Matrix3D t = p.getTransformation().transform(view);
+			float d = camera.project(t.getX(), t.getY(), t.getZ(), width, height, pt);
+			if (d <= 0)
+				continue;
+			// part radius on image, in pixels
+			float r = PARTRADIUS / d * height;
+			int c0 = (int) Math.floor((pt[0] - r) / cellW);
+			int c1 = (int) Math.floor((pt[0] + r) / cellW);
+			int r0 = (int) Math.floor((pt[1] - r) / cellH);
+			int r1 = (int) Math.floor((pt[1] + r) / cellH);
+			if (c1 < 0 || r1 < 0 || c0 >= GRID || r0 >= GRID)
+				continue;
+			c0 = Math.max(c0, 0);
+			r0 = Math.max(r0, 0);
+			c1 = Math.min(c1, GRID-1);
+			r1 = Math.min(r1, GRID-1);
+			float w = (isTransparent(p.getColorIndex()) ? TRANSCOST : PARTCOST)
+					/ ((c1-c0+1) * (r1-r0+1));
+			for (int row=r0;row<=r1;row++) {
+				for (int col=c0;col<=c1;col++) {
+					cost[row*GRID+col] += w;
+				}
+			}
+		}
+	}
+
+
+
+	private static boolean isTransparent(int color) {
+
+		LDrawColor c = LDrawColor.getById(color);
+		if (c == null)
+			return false;
+		return c.getType() == LDrawColorType.TRANSPARENT || c.getColor().getAlpha() < 255;
+	}
+
+
+
+	/**
+	 * Estimated cost of a rectangle of pixels, 0-based, end excluded
+	 */
+	private float getCost(int x0, int y0, int x1, int y1) {
+
+		float cellW = (float) width / GRID;
+		float cellH = (float) height / GRID;
+		int c0 = (int) (x0 / cellW), c1 = Math.min(GRID-1, (int) ((x1-1) / cellW));
+		int r0 = (int) (y0 / cellH), r1 = Math.min(GRID-1, (int) ((y1-1) / cellH));
+		float sum = 0;
+		for (int r=r0;r<=r1;r++) {
+			float h = Math.min(y1, (r+1)*cellH) - Math.max(y0, r*cellH);
+			if (h <= 0)
+				continue;
+			for (int c=c0;c<=c1;c++) {
+				float w = Math.min(x1, (c+1)*cellW) - Math.max(x0, c*cellW);
+				if (w > 0) {
+					sum += cost[r*GRID+c] * w * h / (cellW * cellH);
+				}
+			}
+		}
+		return sum;
+	}
+
+
+
+	private Tile newTile(int x0, int y0, int x1, int y1) {
+
+		return new Tile(y0+1, y1, x0+1, x1, getCost(x0, y0, x1, y1));
+	}
+
+
+
+	/**
+	 * Splits a tile in two tiles with about the same cost, along longer side
+	 * @return two tiles, or null if tile is too small
+	 */
+	private Tile[] split(Tile t) {
+
+		int x0 = t.startCol-1, x1 = t.endCol, y0 = t.startRow-1, y1 = t.endRow;
+		boolean vertical = t.getWidth() >= t.getHeight();
+		int lo = (vertical ? x0 : y0) + MINTILE;
+		int hi = (vertical ? x1 : y1) - MINTILE;
+		if (lo > hi) {
+			vertical = !vertical;
+			lo = (vertical ? x0 : y0) + MINTILE;
+			hi = (vertical ? x1 : y1) - MINTILE;
+			if (lo > hi)
+				return null;
+		}
+		// cost of first half grows with split position
+		float half = t.cost / 2;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			float c = vertical ? getCost(x0, y0, mid, y1) : getCost(x0, y0, x1, mid);
+			if (c < half) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		if (vertical) {
+			return new Tile[] { newTile(x0, y0, lo, y1), newTile(lo, y0, x1, y1) };
+		}
+		return new Tile[] { newTile(x0, y0, x1, lo), newTile(x0, lo, x1, y1) };
+	}
+
+
+
+	/**
+	 * Splits image in tiles, with finer tiles where render is expected
+	 * to be slower
+	 * @param count number of tiles
+	 * @return tiles, most expensive first
+	 */
+	public List<Tile> getTiles(int count) {
+
+		if (cost == null) {
+			computeCost();
+		}
+		Comparator<Tile> byCost = new Comparator<Tile>() {
+			@Override
+			public int compare(Tile a, Tile b) {
+				return Float.compare(b.cost, a.cost);
+			}
+		};
+		PriorityQueue<Tile> queue = new PriorityQueue<Tile>(Math.max(1, count), byCost);
+		List<Tile> tiles = new ArrayList<Tile>();
+		queue.add(newTile(0, 0, width, height));
+		while (!queue.isEmpty() && queue.size() + tiles.size() < count) {
+			Tile t = queue.poll();
+			Tile[] s = split(t);
+			if (s == null) {
+				tiles.add(t);
+			}
+			else {
+				queue.add(s[0]);
+				queue.add(s[1]);
+			}
+		}
+		tiles.addAll(queue);
+		Collections.sort(tiles, byCost);
+		return tiles;
+	}
+
+
+
+	/**
+	 * Exports scene to scene file, and include files if needed
+	 * @throws IOException
+	 */
+	public void writeScene() throws IOException {
+
+		LDPovRenderer r = LDPovRenderer.getRenderer(getSceneFile(), includeDir);
+		r.setPerspective(zoomFactor);
+		r.setViewMatrix(viewMatrix);
+		r.setInstancing(instancing);
+		r.setMeshOutput(meshOutput);
+		r.startRender();
+		r.addModel(model);
+	}
+
+
+
+	/**
+	 * Returns POV-Ray command line to render a tile from scene file
+	 * @param n tile index, for tile image name
+	 * @param t tile
+	 * @param threads POV-Ray render threads
+	 * @return command and arguments
+	 */
+	public List<String> getCommand(int n, Tile t, int threads) {
+
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(executable);
+		cmd.add("+I"+getSceneFile().getAbsolutePath());
+		cmd.add("+O"+getTileFile(n).getAbsolutePath());
+		cmd.add("+FN");
+		cmd.add("+W"+width);
+		cmd.add("+H"+height);
+		cmd.addAll(t.getOptions());
+		cmd.add("+WT"+threads);
+		cmd.add("+L"+includeDir.getAbsolutePath());
+		cmd.add(antialias ? "+A0.3" : "-A");
+		cmd.add("-D");
+		return cmd;
+	}
+
+
+
+	/**
+	 * Renders a tile in current thread
+	 */
+	private void renderTile(int n, Tile t, int threads) throws IOException, InterruptedException {
+
+		File f = getTileFile(n);
+		f.delete();
+		ProcessBuilder pb = new ProcessBuilder(getCommand(n, t, threads));
+		pb.redirectErrorStream(true);
+		Process p = pb.start();
+		try {
+			p.getOutputStream().close();
+			// POV-Ray output isn't used, but it must be read
+			InputStream in = p.getInputStream();
+			byte[] buf = new byte[4096];
+			while (in.read(buf) >= 0) {
+				// discard
+			}
+			in.close();
+			int exit = p.waitFor();
+			if (exit != 0) {
+				throw new IOException("POV-Ray exit code "+exit+" for "+t);
+			}
+			if (!f.isFile()) {
+				throw new IOException("No image written for "+t);
+			}
+		}
+		finally {
+			p.destroy();
+		}
+	}
+
+
+
+	/**
+	 * Assembles tile images in output image
+	 * @param tiles rendered tiles, in the same order used to render them
+	 * @throws IOException
+	 */
+	public void stitch(List<Tile> tiles) throws IOException {
+
+		BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int n = 0;
+		for (Tile t : tiles) {
+			BufferedImage img = ImageIO.read(getTileFile(n++));
+			if (img == null)
+				throw new IOException("Unreadable image for "+t);
+			// full frame image with only tile rendered, or tile only
+			int x = img.getWidth() == width ? t.startCol-1 : 0;
+			int y = img.getHeight() == height ? t.startRow-1 : 0;
+			if (x + t.getWidth() > img.getWidth() || y + t.getHeight() > img.getHeight())
+				throw new IOException("Wrong image size for "+t);
+			int[] rgb = img.getRGB(x, y, t.getWidth(), t.getHeight(), null, 0, t.getWidth());
+			out.setRGB(t.startCol-1, t.startRow-1, t.getWidth(), t.getHeight(), rgb, 0, t.getWidth());
+		}
+		if (!ImageIO.write(out, "png", image))
+			throw new IOException("No PNG writer available");
+	}
+
+
+
+	/**
+	 * Writes scene, renders tiles in parallel and assembles output image.
+	 * Tile images are deleted when done.
+	 * @param tileCount number of tiles
+	 * @param workers number of POV-Ray processes running at the same time
+	 * @param threads render threads for every process
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void render(int tileCount, int workers, final int threads) throws IOException, InterruptedException {
+
+		if (!workDir.isDirectory() && !workDir.mkdirs())
+			throw new IOException("Unable to create directory "+workDir);
+		writeScene();
+		List<Tile> tiles = getTiles(tileCount);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, workers));
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		try {
+			// most expensive tiles first, for better balance
+			for (int i=0;i<tiles.size();i++) {
+				final int n = i;
+				final Tile t = tiles.get(i);
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException, InterruptedException {
+						renderTile(n, t, threads);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : results) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw new IOException(e.getCause());
+				}
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		stitch(tiles);
+		for (int i=0;i<tiles.size();i++) {
+			getTileFile(i).delete();
+		}
+	}
+
+}
@@ -0,0 +1,252 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+
+/**
+ * A buffered writer for POV-Ray scripts that writes numbers
+ * without intermediate strings.
+ *
+ * Decimal output is the same of {@code String.format(Locale.US,"%.nf")}
+ * (rounding half-up), but digits are written directly in a reusable buffer.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovWriter extends BufferedWriter {
+
+	// max float handled without String.format, 2^40
+	private static final float MAXFAST = 1099511627776.0f;
+
+	private static final long[] POW10 = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L };
+
+	// float decimals for POV-Ray geometry
+	public static final int DECIMALS = 5;
+
+	private char[] num = new char[64];
+
+
+
+	public LDPovWriter(Writer out) {
+
+		super(out);
+	}
+
+
+
+	public LDPovWriter(Writer out, int size) {
+
+		super(out, size);
+	}
+
+
+
+	/**
+	 * Formats a float in buffer, like String.format(Locale.US,"%.nf")
+	 *
+	 * If trim is true there are no trailing decimal zeroes, no decimal point
+	 * if number is an integer and no sign for a negative number rounded to zero
+	 * @param buf destination buffer, must have room for 48 chars
+	 * @param pos position in buffer where number starts
+	 * @param n float to format
+	 * @param decimals number of decimals (0-6)
+	 * @param trim true to remove trailing zeroes
+	 * @return position in buffer after last char written
+	 */
+	static int formatFloat(char[] buf, int pos, float n, int decimals, boolean trim) {
+
+		if (Float.isNaN(n) || Float.isInfinite(n) || Math.abs(n) >= MAXFAST || decimals > 6) {
+			// rare, slow path
+			String s = String.format(Locale.US, "%."+decimals+"f", n);
+			if (trim && s.indexOf('.') >= 0) {
+				int l = s.length();
+				while (s.charAt(l-1) == '0')
+					l--;
+				if (s.charAt(l-1) == '.')
+					l--;
+				s = s.substring(0, l);
+				if (s.equals("-0"))
+					s = "0";
+			}
+			s.getChars(0, s.length(), buf, pos);
+			return pos + s.length();
+		}
+		int bits = Float.floatToRawIntBits(n);
+		boolean neg = bits < 0;
+		int exp = (bits >> 23) & 0xff;
+		long m = bits & 0x7fffff;
+		int e;
+		if (exp == 0) {
+			// denormalized
+			e = -149;
+		}
+		else {
+			m |= 0x800000;
+			e = exp - 150;
+		}
+		// float value is exactly m*2^e, so we need m*10^decimals*2^e rounded half-up
+		long scaled = m * POW10[decimals];
+		long q;
+		if (e >= 0) {
+			q = scaled << e;
+		}
+		else if (e > -63) {
+			int s = -e;
+			q = scaled >> s;
+			if ((scaled & ((1L << s) - 1)) >= (1L << (s - 1))) {
+				q++;
+			}
+		}
+		else {
+			q = 0;
+		}
+		long intPart = q / POW10[decimals];
+		long frac = q % POW10[decimals];
+		if (neg && !(trim && q == 0)) {
+			buf[pos++] = '-';
+		}
+		// integer part
+		int start = pos;
+		do {
+			buf[pos++] = (char) ('0' + intPart % 10);
+			intPart /= 10;
+		} while (intPart > 0);
+		for (int i=start,j=pos-1;i<j;i++,j--) {
+			char c = buf[i];
+			buf[i] = buf[j];
+			buf[j] = c;
+		}
+		if (decimals == 0 || (trim && frac == 0)) {
+			return pos;
+		}
+		int d = decimals;
+		if (trim) {
+			while (frac % 10 == 0) {
+				frac /= 10;
+				d--;
+			}
+		}
+		buf[pos++] = '.';
+		for (int i=pos+d-1;i>=pos;i--) {
+			buf[i] = (char) ('0' + frac % 10);
+			frac /= 10;
+		}
+		return pos + d;
+	}
+
+
+
+	/**
+	 * nicely formats a float for LDraw files standard
+	 * - a leading space
+	 * - no trailing decimal zeroes
+	 * - max 5 decimals
+	 * @param n float to format
+	 * @return formatted float
+	 */
+	public static String fF(float n) {
+
+		char[] b = new char[64];
+		b[0] = ' ';
+		int l = formatFloat(b, 1, n, DECIMALS, true);
+		return new String(b, 0, l);
+	}
+
+
+
+	/**
+	 * Writes a float as {@link #fF(float)} does
+	 * @param n float to write
+	 * @throws IOException
+	 */
+	public void writeFloat(float n) throws IOException {
+
+		num[0] = ' ';
+		int l = formatFloat(num, 1, n, DECIMALS, true);
+		write(num, 0, l);
+	}
+
+
+
+	/**
+	 * Writes a float with fixed decimals, as String.format(Locale.US,"%.nf") does
+	 * @param n float to write
+	 * @param decimals number of decimals
+	 * @throws IOException
+	 */
+	public void writeFixed(float n, int decimals) throws IOException {
+
+		int l = formatFloat(num, 0, n, decimals, false);
+		write(num, 0, l);
+	}
+
+
+
+	/**
+	 * Writes an integer in decimal
+	 * @param n integer to write
+	 * @throws IOException
+	 */
+	public void writeInt(int n) throws IOException {
+
+		if (n == Integer.MIN_VALUE) {
+			write(Integer.toString(n));
+			return;
+		}
+		int pos = 0;
+		if (n < 0) {
+			num[pos++] = '-';
+			n = -n;
+		}
+		int start = pos;
+		do {
+			num[pos++] = (char) ('0' + n % 10);
+			n /= 10;
+		} while (n > 0);
+		for (int i=start,j=pos-1;i<j;i++,j--) {
+			char c = num[i];
+			num[i] = num[j];
+			num[j] = c;
+		}
+		write(num, 0, pos);
+	}
+
+
+
+	/**
+	 * Writes a vector as "&lt; x, y, z&gt;" with floats formatted like {@link #fF(float)}
+	 * @throws IOException
+	 */
+	public void writeVector(float x, float y, float z) throws IOException {
+
+		write('<');
+		writeFloat(x);
+		write(',');
+		writeFloat(y);
+		write(',');
+		writeFloat(z);
+		write('>');
+	}
+}
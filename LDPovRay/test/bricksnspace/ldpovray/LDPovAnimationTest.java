@@ -0,0 +1,132 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+package bricksnspace.ldpovray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import bricksnspace.ldrawlib.LDPrimitive;
+
+
+/**
+ * Tests of animation declares and animated parts in exported scene.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovAnimationTest {
+
+
+
+	private static String export(List<LDPrimitive> model, LDPovAnimation animation) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		LDPovRenderer r = LDPovRenderer.getRenderer(out);
+		r.setAnimation(animation);
+		r.startRender();
+		r.addModel(model);
+		return out.toString("US-ASCII");
+	}
+
+
+
+	/**
+	 * Camera keys become a spline of rotations and a spline of zoom 
+	 * factors, LDView rotates model along camera spline
+	 */
+	@Test
+	public void cameraKeysAreSplines() throws IOException {
+
+		LDPovAnimation a = new LDPovAnimation();
+		a.addCameraKey(0, 0, 0, 0, 1);
+		a.addCameraKey(1, 0, 180, 0, 1);
+		a.addCameraKey(0.5f, 30, 90, 0, 2);
+		String pov = export(LDPovTestModels.getGrid(2), a);
+		assertTrue(pov.contains("#declare LDCameraPath = spline {\n  linear_spline\n" 
+				+ "   0, < 0, 0, 0>\n   0.5, < 30, 90, 0>\n   1, < 0, 180, 0>\n}\n"));
+		assertTrue(pov.contains("#declare LDZoomPath = spline {\n  linear_spline\n" 
+				+ "   0, < 1, 0, 0>\n   0.5, < 2, 0, 0>\n   1, < 1, 0, 0>\n}\n"));
+		assertTrue(pov.contains("#declare LDZoom = LDZoomPath(clock).x;\n"));
+		assertTrue(pov.contains("#declare LDView = transform {\n  matrix < 1, 0, 0,  0, 1, 0,  0, 0, 1,  0, 0, 0>\n" 
+				+ "  rotate LDCameraPath(clock)\n}\n"));
+		assertTrue(pov.contains("location <0,0,800.0*LDZoom>"));
+		// every part is moved by view, and is always visible
+		assertEquals(2, LDPovTestModels.count(pov, "union {\n// Part:"));
+		assertEquals(2, LDPovTestModels.count(pov, "  transform { LDView }\n}\n"));
+		assertFalse(pov.contains("#if"));
+		assertFalse(pov.contains("*LDExplode"));
+	}
+
+
+
+	/**
+	 * A single key gives a constant spline, POV-Ray needs at least two keys
+	 */
+	@Test
+	public void singleKeyIsConstant() throws IOException {
+
+		LDPovAnimation a = new LDPovAnimation();
+		a.addExplodeKey(0.5f, 40);
+		String pov = export(LDPovTestModels.getGrid(2), a);
+		assertTrue(pov.contains("#declare LDExplodePath = spline {\n  linear_spline\n" 
+				+ "   0.5, < 40, 0, 0>\n   1, < 40, 0, 0>\n}\n"));
+		// no camera keys: fixed view, with renderer zoom
+		assertTrue(pov.contains("#declare LDCameraPath = spline {\n  linear_spline\n" 
+				+ "   0, < 0, 0, 0>\n   1, < 0, 0, 0>\n}\n"));
+	}
+
+
+
+	/**
+	 * Parts are moved away from model center by explode distance, and 
+	 * appear at their build time
+	 */
+	@Test
+	public void explodeAndBuild() throws IOException {
+
+		LDPovAnimation a = LDPovAnimation.getTurntable(10, 1);
+		a.addExplodeKey(0, 40);
+		a.addExplodeKey(1, 0);
+		a.setBuild(0, 0.5f);
+		a.setPartTime(2, 0.9f);
+		String pov = export(LDPovTestModels.getGrid(3), a);
+		assertTrue(pov.contains("#declare LDExplodePath = spline {\n  linear_spline\n" 
+				+ "   0, < 40, 0, 0>\n   1, < 0, 0, 0>\n}\n"));
+		assertTrue(pov.contains("#declare LDExplode = LDExplodePath(clock).x;\n"));
+		// parts are spread from build start to end, unless time is set
+		int p0 = pov.indexOf("#if (clock >=  0)\nunion {\n");
+		int p1 = pov.indexOf("#if (clock >=  0.25)\nunion {\n");
+		int p2 = pov.indexOf("#if (clock >=  0.9)\nunion {\n");
+		assertTrue(p0 >= 0 && p1 > p0 && p2 > p1);
+		assertEquals(3, LDPovTestModels.count(pov, "#if (clock >="));
+		// parts are off center, every one is exploded
+		assertEquals(3, LDPovTestModels.count(pov, "*LDExplode\n  transform { LDView }\n}\n#end\n"));
+		assertEquals(3, LDPovTestModels.count(pov, "#end\n"));
+	}
+
+}
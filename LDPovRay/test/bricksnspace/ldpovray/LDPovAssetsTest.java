@@ -0,0 +1,82 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+package bricksnspace.ldpovray;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+
+/**
+ * Tests of support files written with scenes.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovAssetsTest {
+
+
+
+	/**
+	 * Files are written once, and again only when missing or changed
+	 */
+	@Test
+	public void unchangedFilesAreSkipped() throws IOException {
+
+		File dir = LDPovTestModels.newTempDir();
+		try {
+			long written = LDPovAssets.getWritten();
+			long skipped = LDPovAssets.getSkipped();
+			LDPovAssets.generate(dir);
+			assertEquals(4, LDPovAssets.getWritten() - written);
+			LDPovAssets.generate(dir);
+			assertEquals(4, LDPovAssets.getWritten() - written);
+			assertEquals(4, LDPovAssets.getSkipped() - skipped);
+			File materials = new File(dir, LDMaterials.MATERIALSFILE);
+			byte[] content = Files.readAllBytes(materials.toPath());
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			LDPovWriter w = new LDPovWriter(new LDPovByteWriter(out));
+			LDMaterials.writeMaterials(w);
+			w.close();
+			assertArrayEquals(out.toByteArray(), content);
+			// changed file with the same length
+			content[content.length-1] = 'x';
+			Files.write(materials.toPath(), content);
+			materials.setLastModified(materials.lastModified() - 10000);
+			LDPovAssets.generate(dir);
+			assertEquals(5, LDPovAssets.getWritten() - written);
+			assertArrayEquals(out.toByteArray(), Files.readAllBytes(materials.toPath()));
+			new File(dir, LDPovAssets.POVHEADER).delete();
+			LDPovAssets.generate(dir);
+			assertEquals(6, LDPovAssets.getWritten() - written);
+		}
+		finally {
+			LDPovTestModels.delete(dir);
+		}
+	}
+
+}
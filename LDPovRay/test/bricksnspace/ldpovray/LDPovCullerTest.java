@@ -0,0 +1,147 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+package bricksnspace.ldpovray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.ldrawlib.LDPrimitive;
+
+
+/**
+ * Tests of frustum and occlusion culling, with test cubes 20 LDU wide.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovCullerTest {
+
+	private static final int OPAQUE = 4;
+	private static final int TRANSPARENT = 36;
+
+
+
+	/**
+	 * Returns a cube at origin with six cubes touching its faces
+	 * @param transparent index of a transparent neighbor, -1 if none
+	 */
+	private static List<LDPrimitive> getEnclosed(int transparent) {
+
+		List<LDPrimitive> model = new ArrayList<LDPrimitive>();
+		model.add(LDPovTestModels.getCube(OPAQUE, 0, 0, 0));
+		for (int i=0;i<6;i++) {
+			float[] p = new float[3];
+			p[i % 3] = i < 3 ? -20 : 20;
+			model.add(LDPovTestModels.getCube(i == transparent ? TRANSPARENT : OPAQUE, p[0], p[1], p[2]));
+		}
+		return model;
+	}
+
+
+
+	private static List<LDPrimitive> cull(LDPovCuller culler, List<LDPrimitive> model) throws IOException {
+
+		return culler.cull(new LDPovExportContext(), model, new Matrix3D(), 1);
+	}
+
+
+
+	@Test
+	public void enclosedPartIsCulled() throws IOException {
+
+		List<LDPrimitive> model = getEnclosed(-1);
+		LDPovCuller culler = new LDPovCuller();
+		culler.setOcclusion(true);
+		List<LDPrimitive> visible = cull(culler, model);
+		assertEquals(1, culler.getOcclusionCulled());
+		assertEquals(12, culler.getTrianglesCulled());
+		assertEquals(model.subList(1, model.size()), visible);
+	}
+
+
+
+	/**
+	 * A part inside a larger part isn't enclosed by its sides
+	 */
+	@Test
+	public void partInCockpitIsKept() throws IOException {
+
+		LDPovTestModels.define();
+		List<LDPrimitive> model = new ArrayList<LDPrimitive>();
+		// minifig
+		model.add(LDPrimitive.newPart(OPAQUE, LDPovTestModels.CUBE, false, 
+				new Matrix3D(0.5f, 0, 0, 0, 0.5f, 0, 0, 0, 0.5f, 0, 0, 0)));
+		// cockpit
+		model.add(LDPrimitive.newPart(OPAQUE, LDPovTestModels.CUBE, false, 
+				new Matrix3D(3, 0, 0, 0, 3, 0, 0, 0, 3, 0, 0, 0)));
+		LDPovCuller culler = new LDPovCuller();
+		culler.setOcclusion(true);
+		assertSame(model, cull(culler, model));
+		assertEquals(0, culler.getOcclusionCulled());
+	}
+
+
+
+	@Test
+	public void transparentNeighborDoesNotOcclude() throws IOException {
+
+		for (int i=0;i<6;i++) {
+			List<LDPrimitive> model = getEnclosed(i);
+			LDPovCuller culler = new LDPovCuller();
+			culler.setOcclusion(true);
+			assertSame(model, cull(culler, model));
+		}
+	}
+
+
+
+	@Test
+	public void partOutsideViewIsCulled() throws IOException {
+
+		List<LDPrimitive> model = new ArrayList<LDPrimitive>();
+		model.add(LDPovTestModels.getCube(OPAQUE, 0, 0, 0));
+		// camera is 800 LDU away, image is 4/3 of distance wide
+		model.add(LDPovTestModels.getCube(OPAQUE, 2000, 0, 0));
+		model.add(LDPovTestModels.getCube(OPAQUE, 0, -1000, 0));
+		// behind camera
+		model.add(LDPovTestModels.getCube(OPAQUE, 0, 0, -1000));
+		// partly in view
+		model.add(LDPovTestModels.getCube(OPAQUE, 530, 0, 0));
+		LDPovCuller culler = new LDPovCuller();
+		culler.setFrustum(true);
+		List<LDPrimitive> visible = cull(culler, model);
+		assertEquals(3, culler.getFrustumCulled());
+		assertEquals(2, visible.size());
+		assertTrue(visible.contains(model.get(0)));
+		assertTrue(visible.contains(model.get(4)));
+		assertFalse(visible.contains(model.get(1)));
+	}
+
+}
@@ -0,0 +1,183 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+package bricksnspace.ldpovray;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+
+/**
+ * Tests of part geometry optimization.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovGeometryOptimizerTest {
+
+	private static final float TOLERANCE = 0.001f;
+	private static final float[] IDENTITY = new float[] { 1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0 };
+	private static final float[] QUAD = new float[] { 
+		0, 0, 0, 10, 0, 0, 10, 0, 10, 0, 0, 10 
+	};
+
+
+
+	private static LDPovGeometry optimize(LDPovGeometry.Builder gb) {
+
+		return LDPovGeometryOptimizer.optimize(gb.build(), TOLERANCE, new LDPovExportStats());
+	}
+
+
+
+	/**
+	 * Returns polygon points in file coordinates
+	 */
+	private static float[] getPoints(LDPovGeometry g, int polygon) {
+
+		int n = g.getPolygonSize()[polygon];
+		float[] m = new float[12];
+		System.arraycopy(g.getPolygonMatrix(), polygon*12, m, 0, 12);
+		float[] points = new float[n*3];
+		float[] p = new float[3];
+		for (int k=0;k<n;k++) {
+			LDPovGeometry.getPolygonPoint(m, g.getPolygonPoints(), (g.getPolygonStart()[polygon]+k)*2, p);
+			System.arraycopy(p, 0, points, k*3, 3);
+		}
+		return points;
+	}
+
+
+
+	@Test
+	public void quadIsPolygon() {
+
+		LDPovGeometry.Builder gb = new LDPovGeometry.Builder();
+		gb.addQuad(QUAD, 4);
+		LDPovGeometry g = optimize(gb);
+		assertEquals(0, g.getTriangleCount());
+		assertEquals(1, g.getPolygonCount());
+		assertEquals(4, g.getPolygonSize()[0]);
+		assertEquals(4, g.getPolygonColors()[0]);
+		assertArrayEquals(QUAD, getPoints(g, 0), TOLERANCE);
+	}
+
+
+
+	/**
+	 * Two triangles sharing a side, with vertices that differ less than 
+	 * tolerance, are welded and merged
+	 */
+	@Test
+	public void trianglesAreMerged() {
+
+		LDPovGeometry.Builder gb = new LDPovGeometry.Builder();
+		gb.addTriangle(new float[] { 0, 0, 0, 10, 0, 0, 10, 0, 10 }, 0, 4);
+		gb.addTriangle(new float[] { 0.0002f, 0, 0, 10, 0, 10.0002f, 0, 0, 10 }, 0, 4);
+		LDPovGeometry g = optimize(gb);
+		assertEquals(0, g.getTriangleCount());
+		assertEquals(1, g.getPolygonCount());
+		assertArrayEquals(QUAD, getPoints(g, 0), TOLERANCE);
+	}
+
+
+
+	@Test
+	public void oppositeWindingIsNotMerged() {
+
+		LDPovGeometry.Builder gb = new LDPovGeometry.Builder();
+		gb.addTriangle(new float[] { 0, 0, 0, 10, 0, 0, 10, 0, 10 }, 0, 4);
+		gb.addTriangle(new float[] { 0, 0, 0, 0, 0, 10, 10, 0, 10 }, 0, 4);
+		LDPovGeometry g = optimize(gb);
+		assertEquals(2, g.getTriangleCount());
+		assertEquals(0, g.getPolygonCount());
+	}
+
+
+
+	@Test
+	public void nonCoplanarIsNotMerged() {
+
+		LDPovGeometry.Builder gb = new LDPovGeometry.Builder();
+		gb.addTriangle(new float[] { 0, 0, 0, 10, 0, 0, 10, 0, 10 }, 0, 4);
+		gb.addTriangle(new float[] { 0, 0, 0, 10, 0, 10, 0, 1, 10 }, 0, 4);
+		LDPovGeometry g = optimize(gb);
+		assertEquals(2, g.getTriangleCount());
+		assertEquals(0, g.getPolygonCount());
+	}
+
+
+
+	@Test
+	public void differentColorIsNotMerged() {
+
+		LDPovGeometry.Builder gb = new LDPovGeometry.Builder();
+		gb.addTriangle(new float[] { 0, 0, 0, 10, 0, 0, 10, 0, 10 }, 0, 4);
+		gb.addTriangle(new float[] { 0, 0, 0, 10, 0, 10, 0, 0, 10 }, 0, 0);
+		LDPovGeometry g = optimize(gb);
+		assertEquals(2, g.getTriangleCount());
+		assertEquals(0, g.getPolygonCount());
+	}
+
+
+
+	/**
+	 * Polygons are written to mesh as a fan of triangles from first point,
+	 * with polygon winding
+	 */
+	@Test
+	public void meshIsFan() throws IOException {
+
+		// pentagon, as a fan of three triangles
+		float[] p = new float[] { 0, 0, 0, 10, 0, 0, 15, 0, 8, 5, 0, 15, -5, 0, 8 };
+		LDPovGeometry.Builder gb = new LDPovGeometry.Builder();
+		for (int i=1;i<4;i++) {
+			gb.addTriangle(new float[] { p[0], p[1], p[2], p[i*3], p[i*3+1], p[i*3+2], 
+					p[i*3+3], p[i*3+4], p[i*3+5] }, 0, 4);
+		}
+		LDPovGeometry g = optimize(gb);
+		assertEquals(1, g.getPolygonCount());
+		assertEquals(5, g.getPolygonSize()[0]);
+		float[] points = getPoints(g, 0);
+		LDPovExportContext ctx = new LDPovExportContext();
+		ctx.mesh = ctx.getMesh();
+		LDPOVRenderedPart.renderPart(ctx, g, 4, IDENTITY);
+		assertEquals(1, ctx.mesh.getGroups().size());
+		LDPovMesh.Group mg = ctx.mesh.getGroups().get(0);
+		assertEquals(5, mg.getVertexCount());
+		assertEquals(3, mg.getFaceCount());
+		float[] v = mg.getVertex();
+		int[] f = mg.getFace();
+		for (int i=0;i<3;i++) {
+			for (int k=0;k<3;k++) {
+				// triangle i of fan is point 0, i+1, i+2
+				int point = k == 0 ? 0 : i + k;
+				for (int c=0;c<3;c++) {
+					assertEquals(points[point*3+c], v[f[i*3+k]*3+c], TOLERANCE);
+				}
+			}
+		}
+	}
+
+}
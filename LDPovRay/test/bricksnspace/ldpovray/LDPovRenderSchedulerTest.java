@@ -0,0 +1,378 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import bricksnspace.ldrawlib.LDPrimitive;
+
+
+/**
+ * Tests of render scheduler, with a shell script in place of POV-Ray.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovRenderSchedulerTest {
+
+	// POV-Ray render threads for every job
+	private static final int THREADS = 2;
+
+	private File dir;
+	private LDPovRenderScheduler scheduler;
+
+
+
+	@Before
+	public void setUp() throws IOException {
+
+		assumeTrue(File.separatorChar == '/');
+		dir = LDPovTestModels.newTempDir();
+		scheduler = new LDPovRenderScheduler(dir, THREADS);
+	}
+
+
+
+	@After
+	public void tearDown() throws InterruptedException {
+
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		if (dir != null) {
+			LDPovTestModels.delete(dir);
+		}
+	}
+
+
+
+	/**
+	 * Stand-in for POV-Ray that reads scene, reports progress in two steps, 
+	 * as POV-Ray does, and writes an image
+	 */
+	private File getRenderScript() throws IOException {
+
+		return LDPovTestModels.newScript(new File(dir, "render.sh"),
+				"for a in \"$@\"; do case \"$a\" in +O*) out=\"${a#+O}\";; esac; done",
+				"cat > /dev/null",
+				"printf 'Parsing\\nRendered 50 of 100 pixels\\r'",
+				"sleep 0.2",
+				"printf 'Rendered 100 of 100 pixels\\n'",
+				"echo image > \"$out\"");
+	}
+
+
+
+	private LDPovRenderJob newJob(String name) {
+
+		return new LDPovRenderJob(LDPovTestModels.getGrid(10), new File(dir, name+".png"));
+	}
+
+
+
+	@Test(timeout = 30000)
+	public void progressReachesListeners() throws Exception {
+
+		scheduler.setExecutable(getRenderScript().getAbsolutePath());
+		LDPovRenderJob job = newJob("progress");
+		final List<String> events = new ArrayList<String>();
+		job.addListener(new LDPovRenderListener() {
+			@Override
+			public synchronized void renderStarted(LDPovRenderJob job) {
+				events.add("started");
+			}
+
+			@Override
+			public synchronized void renderProgress(LDPovRenderJob job, long pixels, long total) {
+				events.add(pixels+"/"+total);
+			}
+
+			@Override
+			public synchronized void renderFinished(LDPovRenderJob job) {
+				events.add("finished");
+			}
+		});
+		scheduler.submit(job).get();
+		assertEquals(job.getError(), LDPovRenderJob.Status.DONE, job.getStatus());
+		assertEquals(100, job.getPixels());
+		assertEquals(100, job.getTotalPixels());
+		assertTrue(job.getLog().contains("Parsing"));
+		assertEquals("[started, 50/100, 100/100, finished]", events.toString());
+	}
+
+
+
+	@Test(timeout = 60000)
+	public void runningJobsAreLimitedByCores() throws Exception {
+
+		int expected = Math.max(1, Runtime.getRuntime().availableProcessors() / THREADS);
+		assertEquals(expected, scheduler.getMaxJobs());
+		scheduler.setExecutable(getRenderScript().getAbsolutePath());
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		LDPovRenderListener counter = new LDPovRenderListener() {
+			@Override
+			public void renderStarted(LDPovRenderJob job) {
+				int n = running.incrementAndGet();
+				synchronized (maxRunning) {
+					maxRunning.set(Math.max(maxRunning.get(), n));
+				}
+			}
+
+			@Override
+			public void renderProgress(LDPovRenderJob job, long pixels, long total) {
+			}
+
+			@Override
+			public void renderFinished(LDPovRenderJob job) {
+				running.decrementAndGet();
+			}
+		};
+		List<Future<LDPovRenderJob>> results = new ArrayList<Future<LDPovRenderJob>>();
+		for (int i=0;i<expected*3;i++) {
+			LDPovRenderJob job = newJob("job"+i);
+			job.addListener(counter);
+			results.add(scheduler.submit(job));
+		}
+		for (Future<LDPovRenderJob> f : results) {
+			assertEquals(LDPovRenderJob.Status.DONE, f.get().getStatus());
+		}
+		assertTrue("Jobs running at the same time: "+maxRunning.get(), maxRunning.get() <= expected);
+		if (expected > 1) {
+			assertTrue("Jobs never run in parallel", maxRunning.get() > 1);
+		}
+	}
+
+
+
+	/**
+	 * Stand-in for POV-Ray that reads scene and then leaves a mark, it must 
+	 * be killed before it reaches end of input if scene is incomplete
+	 */
+	private File getMarkScript(File mark) throws IOException {
+
+		return LDPovTestModels.newScript(new File(dir, "mark.sh"),
+				"cat > /dev/null",
+				"echo rendered > '"+mark.getAbsolutePath()+"'");
+	}
+
+
+
+	/**
+	 * Checks a job failed in export, and process was killed without 
+	 * reading an incomplete scene
+	 */
+	private void checkExportFailure(LDPovRenderScheduler s, LDPovRenderJob job, File mark) throws Exception {
+
+		s.submit(job).get();
+		assertEquals(LDPovRenderJob.Status.FAILED, job.getStatus());
+		assertTrue(job.getError(), job.getError().startsWith("Scene export failed"));
+		Thread.sleep(300);
+		assertFalse("Process read incomplete scene", mark.exists());
+	}
+
+
+
+	@Test(timeout = 30000)
+	public void exportErrorStopsProcess() throws Exception {
+
+		// include files can't be written in a regular file
+		File notDir = new File(dir, "notadir");
+		assertTrue(notDir.createNewFile());
+		LDPovRenderScheduler s = new LDPovRenderScheduler(notDir, THREADS);
+		try {
+			File mark = new File(dir, "mark");
+			s.setExecutable(getMarkScript(mark).getAbsolutePath());
+			checkExportFailure(s, newJob("ioerror"), mark);
+		}
+		finally {
+			s.shutdownNow();
+		}
+	}
+
+
+
+	@Test(timeout = 30000)
+	public void exportExceptionStopsProcess() throws Exception {
+
+		File mark = new File(dir, "mark");
+		scheduler.setExecutable(getMarkScript(mark).getAbsolutePath());
+		List<LDPrimitive> model = LDPovTestModels.getGrid(10);
+		// export fails after scene header is written
+		model.add(null);
+		checkExportFailure(scheduler, new LDPovRenderJob(model, new File(dir, "exception.png")), mark);
+	}
+
+
+
+	@Test(timeout = 30000)
+	public void animationExportErrorFails() throws Exception {
+
+		scheduler.setExecutable(getRenderScript().getAbsolutePath());
+		List<LDPrimitive> model = LDPovTestModels.getGrid(10);
+		model.add(null);
+		LDPovRenderJob job = new LDPovRenderJob(model, new File(dir, "animation.png"));
+		job.setAnimation(LDPovAnimation.getTurntable(2, 1));
+		scheduler.submit(job).get();
+		assertEquals(LDPovRenderJob.Status.FAILED, job.getStatus());
+		assertTrue(job.getError(), job.getError().startsWith("Scene export failed"));
+	}
+
+
+
+	/**
+	 * Stand-in for POV-Ray animation: logs its arguments, copies scene and 
+	 * writes a frame image for every frame, with frame number as POV-Ray does
+	 */
+	private File getAnimationScript(File args, File scene) throws IOException {
+
+		return LDPovTestModels.newScript(new File(dir, "animation.sh"),
+				"for a in \"$@\"; do",
+				"  echo \"$a\" >> '"+args.getAbsolutePath()+"'",
+				"  case \"$a\" in +I*) in=\"${a#+I}\";; +O*) out=\"${a#+O}\";; +KFF*) last=\"${a#+KFF}\";; esac",
+				"done",
+				"cp \"$in\" '"+scene.getAbsolutePath()+"'",
+				"i=1",
+				"while [ $i -le $last ]; do",
+				"  echo image > \"$(printf \"%s%0${#last}d.png\" \"${out%.png}\" $i)\"",
+				"  i=$((i+1))",
+				"done");
+	}
+
+
+
+	@Test(timeout = 30000)
+	public void animationRendersFrames() throws Exception {
+
+		File args = new File(dir, "args");
+		File scene = new File(dir, "scene.pov");
+		scheduler.setExecutable(getAnimationScript(args, scene).getAbsolutePath());
+		LDPovRenderJob job = newJob("turntable");
+		job.setAnimation(LDPovAnimation.getTurntable(12, 1));
+		scheduler.submit(job).get();
+		assertEquals(job.getError(), LDPovRenderJob.Status.DONE, job.getStatus());
+		List<String> cmd = Files.readAllLines(args.toPath(), StandardCharsets.US_ASCII);
+		// scene is read from a file, once for every frame
+		assertFalse(cmd.contains("+I-"));
+		assertTrue(cmd.contains("+KFI1"));
+		assertTrue(cmd.contains("+KFF12"));
+		assertTrue(cmd.contains("+KI0"));
+		assertTrue(cmd.contains("+KF1"));
+		// turntable loops
+		assertTrue(cmd.contains("+KC"));
+		String pov = new String(Files.readAllBytes(scene.toPath()), StandardCharsets.US_ASCII);
+		assertTrue(pov.contains("rotate LDCameraPath(clock)"));
+		assertEquals(new File(dir, "turntable01.png"), job.getFrameImage(1));
+		assertEquals(new File(dir, "turntable12.png"), job.getFrameImage(12));
+		for (int i=1;i<=12;i++) {
+			assertTrue(job.getFrameImage(i).isFile());
+		}
+		// temporary scene is deleted
+		for (String a : cmd) {
+			if (a.startsWith("+I")) {
+				assertFalse(new File(a.substring(2)).exists());
+			}
+		}
+	}
+
+
+
+	@Test(timeout = 30000)
+	public void stillImageHasNoClock() throws Exception {
+
+		File args = new File(dir, "args");
+		scheduler.setExecutable(LDPovTestModels.newScript(new File(dir, "still.sh"),
+				"for a in \"$@\"; do",
+				"  echo \"$a\" >> '"+args.getAbsolutePath()+"'",
+				"  case \"$a\" in +O*) out=\"${a#+O}\";; esac",
+				"done",
+				"cat > /dev/null",
+				"echo image > \"$out\"").getAbsolutePath());
+		LDPovRenderJob job = newJob("still");
+		scheduler.submit(job).get();
+		assertEquals(job.getError(), LDPovRenderJob.Status.DONE, job.getStatus());
+		assertEquals(job.getImage(), job.getFrameImage(1));
+		List<String> cmd = Files.readAllLines(args.toPath(), StandardCharsets.US_ASCII);
+		assertTrue(cmd.contains("+I-"));
+		for (String a : cmd) {
+			assertFalse(a, a.startsWith("+K"));
+		}
+	}
+
+
+
+	@Test(timeout = 30000)
+	public void cancelStopsProcess() throws Exception {
+
+		// writes a line every 100 ms until it is killed
+		final File beat = new File(dir, "beat");
+		scheduler.setExecutable(LDPovTestModels.newScript(new File(dir, "hang.sh"),
+				"cat > /dev/null",
+				"while true; do echo beat >> '"+beat.getAbsolutePath()+"'; sleep 0.1; done").getAbsolutePath());
+		LDPovRenderJob job = newJob("cancel");
+		final CountDownLatch finished = new CountDownLatch(1);
+		job.addListener(new LDPovRenderListener() {
+			@Override
+			public void renderStarted(LDPovRenderJob job) {
+			}
+
+			@Override
+			public void renderProgress(LDPovRenderJob job, long pixels, long total) {
+			}
+
+			@Override
+			public void renderFinished(LDPovRenderJob job) {
+				finished.countDown();
+			}
+		});
+		Future<LDPovRenderJob> f = scheduler.submit(job);
+		while (beat.length() == 0) {
+			Thread.sleep(50);
+		}
+		assertTrue(f.cancel(true));
+		finished.await();
+		assertEquals(LDPovRenderJob.Status.CANCELLED, job.getStatus());
+		// last sleep of killed script can still be running
+		Thread.sleep(300);
+		long length = beat.length();
+		Thread.sleep(500);
+		assertEquals("Process still running", length, beat.length());
+	}
+
+}
@@ -0,0 +1,400 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.ldrawlib.LDPrimitive;
+import bricksnspace.ldrawlib.LDrawColor;
+
+
+/**
+ * Tests of model export.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovRendererTest {
+
+
+
+	/**
+	 * Exports running at the same time share geometry cache, declare names 
+	 * and materials, but every output must be the same of a serial export. 
+	 * Half of exports render parts in parallel too.
+	 */
+	@Test
+	public void concurrentExportsMatchSerial() throws Exception {
+
+		final List<LDPrimitive> model = LDPovTestModels.getGrid(2000);
+		int threads = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (final boolean instancing : new boolean[] { false, true }) {
+				byte[] serial = export(model, instancing, 1);
+				final CountDownLatch start = new CountDownLatch(threads);
+				List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+				for (int i=0;i<threads;i++) {
+					final int parallelism = i % 2 == 0 ? 1 : 4;
+					results.add(pool.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws Exception {
+							start.countDown();
+							start.await();
+							return export(model, instancing, parallelism);
+						}
+					}));
+				}
+				for (Future<byte[]> f : results) {
+					assertArrayEquals("Instancing "+instancing, serial, f.get());
+				}
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+
+
+	/**
+	 * A sub-model edited between exports, or a model that reuses the name
+	 * of another model's sub-model, must not get geometry cached for old 
+	 * content
+	 */
+	@Test
+	public void editedSubModelIsExportedAgain() throws IOException {
+
+		String sub = "ldpovtest_edited_sub.dat";
+		LDPovTestModels.setFile(sub, LDPovTestModels.getCube(16, 0, 0, 0));
+		LDPovTestModels.setFile("ldpovtest_edited_top.dat", 
+				LDPrimitive.newPart(16, sub, false, new Matrix3D()));
+		List<LDPrimitive> model = LDPovTestModels.getPart("ldpovtest_edited_top.dat");
+		model.addAll(LDPovTestModels.getPart(sub));
+		for (boolean instancing : new boolean[] { false, true }) {
+			byte[] first = export(model, instancing, 1);
+			LDPovTestModels.setFile(sub, LDPovTestModels.getCube(16, 0, 0, 0), LDPovTestModels.getCube(16, 40, 0, 0));
+			byte[] edited = export(model, instancing, 1);
+			assertFalse(Arrays.equals(first, edited));
+			assertArrayEquals(export(model, instancing, 1, new LDPovGeometryCache(LDPovGeometryCache.DEFAULT_MAXSIZE)), edited);
+			LDPovTestModels.setFile(sub, LDPovTestModels.getCube(16, 0, 0, 0));
+			assertArrayEquals(first, export(model, instancing, 1));
+		}
+	}
+
+
+
+	/**
+	 * Export with fragment cache after a part is moved and a sub-model is 
+	 * edited must be the same of a full export
+	 */
+	@Test
+	public void fragmentCacheMatchesFullExport() throws IOException {
+
+		String sub = "ldpovtest_fragment_sub.dat";
+		for (boolean instancing : new boolean[] { false, true }) {
+			LDPovTestModels.setFile(sub, LDPovTestModels.getCube(16, 0, 0, 0));
+			List<LDPrimitive> model = LDPovTestModels.getGrid(27);
+			model.add(LDPrimitive.newPart(4, sub, false, new Matrix3D(1, 0, 0, 0, 1, 0, 0, 0, 1, 0, -60, 0)));
+			model.add(LDPrimitive.newPart(1, sub, false, new Matrix3D(1, 0, 0, 0, 1, 0, 0, 0, 1, 30, -60, 0)));
+			LDPovFragmentCache fragments = new LDPovFragmentCache();
+			byte[] first = export(model, instancing, fragments);
+			assertArrayEquals(export(model, instancing, null), first);
+			// move a part and edit sub-model
+			LDPrimitive moved = model.get(5);
+			model.set(5, LDPrimitive.newPart(moved.getColorIndex(), moved.getLdrawId(), false, 
+					new Matrix3D(1, 0, 0, 0, 1, 0, 0, 0, 1, 200, 0, 0)));
+			LDPovTestModels.setFile(sub, LDPovTestModels.getCube(16, 0, 0, 0), LDPovTestModels.getCube(16, 0, -30, 0));
+			byte[] edited = export(model, instancing, fragments);
+			assertFalse(Arrays.equals(first, edited));
+			assertArrayEquals("Instancing "+instancing, export(model, instancing, null), edited);
+		}
+	}
+
+
+
+	/**
+	 * A part in CURRENT color gets main color material, as instance too,
+	 * and EDGE color faces get the color of their part
+	 */
+	@Test
+	public void currentColorGetsMainMaterial() throws IOException {
+
+		String edge = "ldpovtest_edge.dat";
+		LDPovTestModels.setFile(edge, LDPrimitive.newTriangle(LDrawColor.EDGE, 0, 0, 0, 10, 0, 0, 0, 10, 0));
+		String main = "  material { "+LDrawColor.getById(LDrawColor.CURRENT).getName()+" }\n}";
+		String red = "  material { "+LDrawColor.getById(4).getName()+" }\n}";
+		for (boolean instancing : new boolean[] { false, true }) {
+			List<LDPrimitive> model = new ArrayList<LDPrimitive>();
+			model.add(LDPovTestModels.getCube(LDrawColor.CURRENT, 0, 0, 0));
+			String pov = new String(export(model, instancing, null), "US-ASCII");
+			assertTrue("Instancing "+instancing, pov.contains("// Part: "));
+			String part = pov.substring(pov.lastIndexOf("// Part: ")).trim();
+			assertTrue("Instancing "+instancing, part.endsWith(main));
+			model.set(0, LDPrimitive.newPart(4, edge, false, new Matrix3D()));
+			pov = new String(export(model, instancing, null), "US-ASCII");
+			part = pov.substring(pov.lastIndexOf("// Part: ")).trim();
+			assertTrue("Instancing "+instancing, part.endsWith(red));
+			if (instancing) {
+				// face in declare gets color of instance
+				assertFalse(pov.substring(0, pov.lastIndexOf("// Part: ")).contains(red));
+			}
+		}
+	}
+
+
+
+	/**
+	 * Exports a model with a fragment cache
+	 * @param fragments fragment cache, or null for a full export
+	 */
+	private static byte[] export(List<LDPrimitive> model, boolean instancing, 
+			LDPovFragmentCache fragments) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		LDPovRenderer r = LDPovRenderer.getRenderer(out);
+		r.setFragmentCache(fragments);
+		r.setInstancing(instancing);
+		r.setMeshOutput(true);
+		r.startRender();
+		r.addModel(model);
+		return out.toByteArray();
+	}
+
+
+
+	private static byte[] export(List<LDPrimitive> model, boolean instancing, int parallelism) throws IOException {
+
+		return export(model, instancing, parallelism, LDPovGeometryCache.getShared());
+	}
+
+
+
+	private static byte[] export(List<LDPrimitive> model, boolean instancing, int parallelism, 
+			LDPovGeometryCache cache) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		LDPovRenderer r = LDPovRenderer.getRenderer(out);
+		r.setGeometryCache(cache);
+		r.setInstancing(instancing);
+		r.setMeshOutput(true);
+		r.setParallelism(parallelism);
+		r.startRender();
+		r.addModel(model);
+		return out.toByteArray();
+	}
+
+
+
+	/**
+	 * Sub-files are flattened without recursion, a long chain of 
+	 * references doesn't overflow stack
+	 */
+	@Test
+	public void deepReferenceChain() throws IOException {
+
+		LDPovRenderer r = LDPovRenderer.getRenderer(nullStream());
+		r.startRender();
+		r.addModel(LDPovTestModels.getPart(LDPovTestModels.getChain(10000)));
+		// chain files and cube
+		assertEquals(10001, r.getStats().getMaxDepth());
+		assertEquals(12, r.getStats().getTriangles());
+		assertEquals(0, r.getStats().getWarnings());
+	}
+
+
+
+	@Test(timeout = 10000)
+	public void circularReference() throws IOException {
+
+		final List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+		LDPovRenderer r = LDPovRenderer.getRenderer(nullStream());
+		r.addListener(new LDPovExportListener() {
+			@Override
+			public void primitiveGenerated(String name) {
+			}
+
+			@Override
+			public void exportWarning(String message) {
+				warnings.add(message);
+			}
+
+			@Override
+			public void exportFinished(LDPovExportStats stats) {
+			}
+		});
+		r.startRender();
+		r.addModel(LDPovTestModels.getPart(LDPovTestModels.LOOP_A));
+		assertEquals(1, r.getStats().getWarnings());
+		assertEquals("Circular reference to "+LDPovTestModels.LOOP_A+" in "+LDPovTestModels.LOOP_B, warnings.get(0));
+		// triangles of both files, once
+		assertEquals(2, r.getStats().getTriangles());
+	}
+
+
+
+	/**
+	 * Memory allocated by export for every part must not grow with model 
+	 * size, so a model of any size costs the same to the garbage collector 
+	 * for every part.
+	 */
+	@Test
+	public void allocationPerPartIsFlat() throws IOException {
+
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			assumeTrue(false);
+		}
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(mx.isThreadAllocatedMemorySupported());
+		mx.setThreadAllocatedMemoryEnabled(true);
+		// warm up geometry cache and JIT
+		getAllocatedPerPart(mx, 1000);
+		double small = getAllocatedPerPart(mx, 1000);
+		double medium = getAllocatedPerPart(mx, 10000);
+		double large = getAllocatedPerPart(mx, 100000);
+		String msg = "Bytes per part: 1k "+small+", 10k "+medium+", 100k "+large;
+		assertTrue(msg, medium < small * 1.1);
+		assertTrue(msg, large < small * 1.1);
+	}
+
+
+
+	/**
+	 * Exports a grid model in current thread
+	 * @param mx thread bean, with allocated memory enabled
+	 * @param parts parts in model
+	 * @return bytes allocated by export for every part
+	 */
+	private static double getAllocatedPerPart(com.sun.management.ThreadMXBean mx, int parts) throws IOException {
+
+		List<LDPrimitive> model = LDPovTestModels.getGrid(parts);
+		long thread = Thread.currentThread().getId();
+		long start = mx.getThreadAllocatedBytes(thread);
+		LDPovRenderer r = LDPovRenderer.getRenderer(nullStream());
+		r.startRender();
+		r.addModel(model);
+		return (mx.getThreadAllocatedBytes(thread) - start) / (double) parts;
+	}
+
+
+
+	private static String read(File f) throws IOException {
+
+		return new String(Files.readAllBytes(f.toPath()), StandardCharsets.US_ASCII);
+	}
+
+
+
+	/**
+	 * Every step writes its parts once, in its own include file, and 
+	 * declares only parts not declared by previous steps. Step scenes 
+	 * include steps up to them, and output includes all steps
+	 */
+	@Test
+	public void stepsAreCumulative() throws IOException {
+
+		String other = "ldpovtest_step_part.dat";
+		LDPovTestModels.setFile(other, LDPovTestModels.getCube(16, 0, 0, 0), LDPovTestModels.getCube(16, 0, -20, 0));
+		List<List<LDPrimitive>> steps = new ArrayList<List<LDPrimitive>>();
+		steps.add(Arrays.asList(LDPovTestModels.getCube(4, 0, 0, 0)));
+		steps.add(Arrays.asList(LDPovTestModels.getCube(4, 30, 0, 0), 
+				LDPrimitive.newPart(36, other, false, new Matrix3D(1, 0, 0, 0, 1, 0, 0, 0, 1, 60, 0, 0))));
+		steps.add(Arrays.asList(LDPovTestModels.getCube(36, 90, 0, 0), LDPovTestModels.getCube(4, 120, 0, 0)));
+		File dir = LDPovTestModels.newTempDir();
+		try {
+			File model = new File(dir, "model.pov");
+			LDPovRenderer r = LDPovRenderer.getRenderer(model);
+			r.setInstancing(true);
+			r.startRender();
+			List<File> scenes = r.addSteps(steps, "step");
+			r.close();
+			assertEquals(Arrays.asList(new File(dir, "step_1.pov"), new File(dir, "step_2.pov"), 
+					new File(dir, "step_3.pov")), scenes);
+			String cubeDeclare = "#declare "+LDPOVRenderedPart.getPartDeclareName(LDPovTestModels.CUBE)+"=";
+			String otherDeclare = "#declare "+LDPOVRenderedPart.getPartDeclareName(other)+"=";
+			String includes = "";
+			for (int i=0;i<steps.size();i++) {
+				String inc = read(new File(dir, "step_"+(i+1)+".inc"));
+				// parts of step, and only them
+				assertEquals(steps.get(i).size(), LDPovTestModels.count(inc, "// Part: "));
+				assertEquals(steps.get(i).size(), LDPovTestModels.count(inc, "\nobject { LDPART_"));
+				// declares in step that uses them first
+				assertEquals(i == 0 ? 1 : 0, LDPovTestModels.count(inc, cubeDeclare));
+				assertEquals(i == 1 ? 1 : 0, LDPovTestModels.count(inc, otherDeclare));
+				includes += "#include \"step_"+(i+1)+".inc\"\n";
+				String pov = read(scenes.get(i));
+				assertTrue(pov.startsWith("#version 3.7;\n"));
+				assertTrue(pov.contains("camera {"));
+				assertTrue(pov.endsWith(includes));
+				assertEquals(i+1, LDPovTestModels.count(pov, "#include \"step_"));
+				assertFalse(pov.contains("// Part: "));
+			}
+			String pov = read(model);
+			assertTrue(pov.endsWith(includes));
+			assertEquals(5, r.getStats().getParts());
+		}
+		finally {
+			LDPovTestModels.delete(dir);
+		}
+	}
+
+
+
+	/**
+	 * Returns a stream that drops all output
+	 */
+	static OutputStream nullStream() {
+
+		return new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+	}
+
+}
@@ -0,0 +1,175 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+package bricksnspace.ldpovray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import bricksnspace.ldrawlib.LDPrimitive;
+
+
+/**
+ * Tests of scene archive.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovSceneArchiveTest {
+
+
+
+	/**
+	 * Returns scene without comments, part comments of archive have no 
+	 * LDraw line
+	 */
+	private static String getScene(byte[] pov) throws IOException {
+
+		StringBuilder sb = new StringBuilder();
+		for (String l : new String(pov, "US-ASCII").split("\n")) {
+			if (!l.startsWith("//") && !l.isEmpty()) {
+				sb.append(l).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+
+
+	/**
+	 * Archive written and read again exports the same scene of model
+	 */
+	@Test
+	public void archiveMatchesModel() throws IOException {
+
+		List<LDPrimitive> model = LDPovTestModels.getGrid(100);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		LDPovRenderer r = LDPovRenderer.getRenderer(out);
+		r.setInstancing(true);
+		r.startRender();
+		r.addModel(model);
+		byte[] expected = out.toByteArray();
+
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		LDPovSceneArchive a = LDPovRenderer.getRenderer(LDPovRendererTest.nullStream()).getArchive(model);
+		assertEquals(100, a.getPartCount());
+		assertEquals(1, a.getGeometryCount());
+		a.write(archive);
+		a = LDPovSceneArchive.read(new ByteArrayInputStream(archive.toByteArray()));
+		assertEquals(100, a.getPartCount());
+		out.reset();
+		r = LDPovRenderer.getRenderer(out);
+		r.startRender();
+		r.addArchive(a);
+		assertEquals(getScene(expected), getScene(out.toByteArray()));
+	}
+
+
+
+	/**
+	 * Returns an archive with a single geometry of a triangle, and a 
+	 * single instance
+	 * @param string index of geometry id
+	 * @param triangleColor index of triangle color
+	 * @param primitiveName index of primitive name
+	 * @param primitiveColor index of primitive color
+	 * @param geometry index of instance geometry
+	 * @param instanceColor index of instance color
+	 */
+	private static byte[] getArchive(int string, int triangleColor, int primitiveName, int primitiveColor, 
+			int geometry, int instanceColor) throws IOException {
+
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(b);
+		out.writeInt(0x4c445041);
+		out.writeInt(1);
+		out.writeBoolean(false);
+		out.writeFloat(1);
+		// strings
+		out.write(2);
+		out.writeUTF("part.dat");
+		out.writeUTF("stud.dat");
+		// colors
+		out.write(1);
+		out.writeInt(4);
+		// geometry
+		out.write(1);
+		out.write(string);
+		out.write(1);
+		for (int i=0;i<9;i++) {
+			out.write(i % 4 == 0 ? 2 : 0);
+		}
+		out.write(triangleColor);
+		out.write(1);
+		out.write(primitiveName);
+		out.writeBoolean(true);
+		out.write(primitiveColor);
+		for (int k=0;k<18;k++) {
+			out.writeFloat(1);
+		}
+		out.writeBoolean(false);
+		// instances
+		out.write(1);
+		out.write(geometry);
+		out.write(instanceColor);
+		for (int k=0;k<12;k++) {
+			out.writeFloat(1);
+		}
+		out.flush();
+		return b.toByteArray();
+	}
+
+
+
+	@Test
+	public void badIndexIsRejected() throws IOException {
+
+		LDPovSceneArchive a = LDPovSceneArchive.read(new ByteArrayInputStream(getArchive(0, 0, 1, 0, 0, 0)));
+		assertEquals(1, a.getPartCount());
+		assertEquals("part.dat", a.getId(0));
+		assertEquals(4, a.getColor(0));
+		int[][] bad = new int[][] {
+			{ 2, 0, 1, 0, 0, 0 },
+			{ 0, 1, 1, 0, 0, 0 },
+			{ 0, 0, 2, 0, 0, 0 },
+			{ 0, 0, 1, 1, 0, 0 },
+			{ 0, 0, 1, 0, 1, 0 },
+			{ 0, 0, 1, 0, 0, 1 },
+		};
+		for (int[] i : bad) {
+			try {
+				LDPovSceneArchive.read(new ByteArrayInputStream(getArchive(i[0], i[1], i[2], i[3], i[4], i[5])));
+				fail("Bad index accepted");
+			}
+			catch (IOException e) {
+				assertEquals("Malformed scene archive", e.getMessage());
+			}
+		}
+	}
+
+}
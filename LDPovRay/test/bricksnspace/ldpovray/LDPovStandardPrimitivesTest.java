@@ -0,0 +1,341 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+package bricksnspace.ldpovray;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+
+/**
+ * Tests of standard primitive generators: POV-Ray shapes must have the 
+ * bounds of triangles in LDraw library file, because culling and level 
+ * of detail use library geometry.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovStandardPrimitivesTest {
+
+	private static final float TOLERANCE = 1e-4f;
+
+	private static final Pattern VECTOR = Pattern.compile("<\\s*([-0-9.]+)\\s*,\\s*([-0-9.]+)\\s*,\\s*([-0-9.]+)\\s*>");
+	private static final Pattern CYLINDER = Pattern.compile("cylinder \\{ (<[^>]*>), (<[^>]*>), ([0-9.]+)");
+	private static final Pattern CONE = Pattern.compile("cone \\{ (<[^>]*>), ([0-9.]+), (<[^>]*>), ([0-9.]+)");
+	private static final Pattern DISC = Pattern.compile("disc \\{ (<[^>]*>), <0, 1, 0>, ([0-9.]+)");
+	private static final Pattern BOX = Pattern.compile("box \\{ (<[^>]*>), (<[^>]*>)");
+	private static final Pattern POLYGON = Pattern.compile("polygon \\{ [0-9]+((, <[^>]*>)+)");
+	private static final Pattern TORUS = Pattern.compile("torus \\{ ([0-9.]+), ([0-9.]+)");
+
+
+
+	@Test
+	public void cylinder() throws IOException {
+
+		checkBounds("4-4cyli.dat", -1, 0, -1, 1, 1, 1);
+	}
+
+
+
+	@Test
+	public void slopedCylinder() throws IOException {
+
+		// top is at y = 1 - x
+		checkBounds("4-4cyls.dat", -1, 0, -1, 1, 2, 1);
+	}
+
+
+
+	@Test
+	public void closedCylinder() throws IOException {
+
+		checkBounds("4-4cylc.dat", -1, 0, -1, 1, 1, 1);
+	}
+
+
+
+	@Test
+	public void disc() throws IOException {
+
+		checkBounds("4-4disc.dat", -1, 0, -1, 1, 0, 1);
+	}
+
+
+
+	@Test
+	public void notDisc() throws IOException {
+
+		checkBounds("4-4ndis.dat", -1, 0, -1, 1, 0, 1);
+	}
+
+
+
+	@Test
+	public void chord() throws IOException {
+
+		// shape is clipped to arc
+		checkContains("1-4chrd.dat", 0, 0, 0, 1, 0, 1);
+	}
+
+
+
+	@Test
+	public void ring() throws IOException {
+
+		checkBounds("4-4ring3.dat", -4, 0, -4, 4, 0, 4);
+	}
+
+
+
+	@Test
+	public void cone() throws IOException {
+
+		checkBounds("4-4con3.dat", -4, 0, -4, 4, 1, 4);
+	}
+
+
+
+	@Test
+	public void torus() throws IOException {
+
+		// shape is clipped to quarter
+		checkContains("t04q4000.dat", 0, -0.4f, 0, 1.4f, 0.4f, 1.4f);
+	}
+
+
+
+	@Test
+	public void box() throws IOException {
+
+		checkBounds("box.dat", -1, -1, -1, 1, 1, 1);
+	}
+
+
+
+	@Test
+	public void openBox() throws IOException {
+
+		checkBounds("box5.dat", -1, 0, -1, 1, 1, 1);
+		String sdl = getDeclare("box5.dat");
+		// no face at y 0
+		assertTrue(sdl, !sdl.contains("<-1,0,-1>, <1,0,-1>, <1,0,1>"));
+	}
+
+
+
+	@Test
+	public void rect() throws IOException {
+
+		for (String name : new String[] { "rect.dat", "rect1.dat", "rect2a.dat", "rect2p.dat", "rect3.dat" }) {
+			checkBounds(name, -1, 0, -1, 1, 0, 1);
+		}
+	}
+
+
+
+	@Test
+	public void stud() throws IOException {
+
+		checkBounds("stud.dat", -6, -4, -6, 6, 0, 6);
+		checkBounds("stud2.dat", -6, -4, -6, 6, 0, 6);
+	}
+
+
+
+	@Test
+	public void studTube() throws IOException {
+
+		checkBounds("stud3.dat", -4, -4, -4, 4, 0, 4);
+		checkBounds("stud4.dat", -8, -4, -8, 8, 0, 8);
+	}
+
+
+
+	/**
+	 * Checks that shapes have the bounds of library triangles
+	 * @param name primitive
+	 * @param b bounds of triangles in library file, min x,y,z and max x,y,z
+	 */
+	private static void checkBounds(String name, float... b) throws IOException {
+
+		String sdl = getDeclare(name);
+		float[] s = getBounds(sdl);
+		for (int i=0;i<6;i++) {
+			assertTrue(name+": "+Arrays.toString(s)+"\n"+sdl, Math.abs(s[i] - b[i]) < TOLERANCE);
+		}
+	}
+
+
+
+	/**
+	 * Checks that shapes, before clipping, contain library triangles
+	 * @param name primitive
+	 * @param b bounds of triangles in library file, min x,y,z and max x,y,z
+	 */
+	private static void checkContains(String name, float... b) throws IOException {
+
+		String sdl = getDeclare(name);
+		float[] s = getBounds(sdl);
+		for (int i=0;i<3;i++) {
+			assertTrue(name+": "+Arrays.toString(s)+"\n"+sdl, s[i] <= b[i] + TOLERANCE);
+			assertTrue(name+": "+Arrays.toString(s)+"\n"+sdl, s[i+3] >= b[i+3] - TOLERANCE);
+		}
+	}
+
+
+
+	private static String getDeclare(String name) throws IOException {
+
+		LDPovStandardPrimitives g = new LDPovStandardPrimitives();
+		assertTrue(name, g.isGenerated(name));
+		StringWriter sw = new StringWriter();
+		LDPovWriter w = new LDPovWriter(sw);
+		g.writeDeclare(w, "LDTEST", name);
+		w.flush();
+		return sw.toString();
+	}
+
+
+
+	/**
+	 * Returns bounds of shapes in a declare, without clipping objects. 
+	 * Cylinders, cones and discs are around y axis, as generators write them.
+	 * Only first shape of a difference is used.
+	 * @return min x,y,z and max x,y,z
+	 */
+	private static float[] getBounds(String sdl) {
+
+		String s = removeClipping(sdl);
+		float[] b = new float[] { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, 
+				-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		boolean difference = s.contains("=difference");
+		int first = Integer.MAX_VALUE;
+		float[] firstBounds = null;
+		Matcher m = CYLINDER.matcher(s);
+		while (m.find()) {
+			float r = Float.parseFloat(m.group(3));
+			float[] b1 = getCircleBounds(getVector(m.group(1)), r);
+			extend(b1, getCircleBounds(getVector(m.group(2)), r));
+			if (m.start() < first) {
+				first = m.start();
+				firstBounds = b1;
+			}
+			extend(b, b1);
+		}
+		m = CONE.matcher(s);
+		while (m.find()) {
+			extend(b, getCircleBounds(getVector(m.group(1)), Float.parseFloat(m.group(2))));
+			extend(b, getCircleBounds(getVector(m.group(3)), Float.parseFloat(m.group(4))));
+		}
+		m = DISC.matcher(s);
+		while (m.find()) {
+			extend(b, getCircleBounds(getVector(m.group(1)), Float.parseFloat(m.group(2))));
+		}
+		m = BOX.matcher(s);
+		while (m.find()) {
+			float[] p = getVector(m.group(1));
+			extend(b, new float[] { p[0], p[1], p[2], p[0], p[1], p[2] });
+			p = getVector(m.group(2));
+			extend(b, new float[] { p[0], p[1], p[2], p[0], p[1], p[2] });
+		}
+		m = POLYGON.matcher(s);
+		while (m.find()) {
+			Matcher v = VECTOR.matcher(m.group(1));
+			while (v.find()) {
+				float[] p = getVector(v.group());
+				extend(b, new float[] { p[0], p[1], p[2], p[0], p[1], p[2] });
+			}
+		}
+		m = TORUS.matcher(s);
+		while (m.find()) {
+			float major = Float.parseFloat(m.group(1));
+			float minor = Float.parseFloat(m.group(2));
+			float r = major + minor;
+			extend(b, new float[] { -r, -minor, -r, r, minor, r });
+		}
+		if (difference) {
+			return firstBounds;
+		}
+		return b;
+	}
+
+
+
+	/**
+	 * Removes clipped_by blocks
+	 */
+	private static String removeClipping(String sdl) {
+
+		StringBuilder sb = new StringBuilder(sdl);
+		int i;
+		while ((i = sb.indexOf("clipped_by")) >= 0) {
+			int depth = 0;
+			int j = sb.indexOf("{", i);
+			do {
+				char c = sb.charAt(j++);
+				if (c == '{') {
+					depth++;
+				}
+				else if (c == '}') {
+					depth--;
+				}
+			} while (depth > 0);
+			sb.delete(i, j);
+		}
+		return sb.toString();
+	}
+
+
+
+	private static float[] getVector(String s) {
+
+		Matcher m = VECTOR.matcher(s);
+		assertTrue(s, m.matches());
+		return new float[] { Float.parseFloat(m.group(1)), Float.parseFloat(m.group(2)), Float.parseFloat(m.group(3)) };
+	}
+
+
+
+	/**
+	 * Bounds of a circle around y axis
+	 */
+	private static float[] getCircleBounds(float[] c, float r) {
+
+		return new float[] { c[0]-r, c[1], c[2]-r, c[0]+r, c[1], c[2]+r };
+	}
+
+
+
+	private static void extend(float[] b, float[] b1) {
+
+		for (int i=0;i<3;i++) {
+			b[i] = Math.min(b[i], b1[i]);
+			b[i+3] = Math.max(b[i+3], b1[i+3]);
+		}
+	}
+
+}
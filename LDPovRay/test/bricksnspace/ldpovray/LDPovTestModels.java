@@ -0,0 +1,252 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.ldrawlib.LDPrimitive;
+import bricksnspace.ldrawlib.LDrawPart;
+
+
+/**
+ * Synthetic LDraw parts and models, temporary files and stand-ins for 
+ * POV-Ray, so tests don't need an LDraw library or POV-Ray installed.
+ *
+ * @author Mario Pascucci
+ *
+ */
+class LDPovTestModels {
+
+	// a cube of 12 triangles, from -10 to 10 on every axis
+	static final String CUBE = "ldpovtest_cube.dat";
+	// files referencing each other, see getLoop()
+	static final String LOOP_A = "ldpovtest_loopa.dat";
+	static final String LOOP_B = "ldpovtest_loopb.dat";
+	// grid step of generated models, cubes don't touch
+	private static final float STEP = 30;
+	// cube corners, index bits are x,y,z
+	private static final float[][] CORNERS = new float[8][];
+	// two triangles for every face, as corner indexes
+	private static final int[] FACES = {
+		0,1,3, 0,3,2,  4,6,7, 4,7,5,
+		0,4,5, 0,5,1,  2,3,7, 2,7,6,
+		0,2,6, 0,6,4,  1,5,7, 1,7,3
+	};
+	private static boolean defined = false;
+	// depths of chains already defined
+	private static Set<Integer> chains = new HashSet<Integer>();
+
+
+
+	/**
+	 * Defines test parts, if not already defined
+	 */
+	static synchronized void define() {
+
+		if (defined) 
+			return;
+		for (int i=0;i<8;i++) {
+			CORNERS[i] = new float[] { (i & 4) == 0 ? -10 : 10, (i & 2) == 0 ? -10 : 10, (i & 1) == 0 ? -10 : 10 };
+		}
+		LDrawPart cube = LDrawPart.newCustomPart(CUBE);
+		for (int i=0;i<FACES.length;i+=3) {
+			float[] a = CORNERS[FACES[i]], b = CORNERS[FACES[i+1]], c = CORNERS[FACES[i+2]];
+			cube.addPart(LDPrimitive.newTriangle(16, a[0], a[1], a[2], b[0], b[1], b[2], c[0], c[1], c[2]));
+		}
+		LDrawPart a = LDrawPart.newCustomPart(LOOP_A);
+		a.addPart(LDPrimitive.newTriangle(16, 0, 0, 0, 1, 0, 0, 0, 1, 0));
+		a.addPart(LDPrimitive.newPart(16, LOOP_B, false, new Matrix3D()));
+		LDrawPart b = LDrawPart.newCustomPart(LOOP_B);
+		b.addPart(LDPrimitive.newTriangle(16, 0, 0, 0, 1, 0, 0, 0, 0, 1));
+		b.addPart(LDPrimitive.newPart(16, LOOP_A, false, new Matrix3D()));
+		defined = true;
+	}
+
+
+
+	/**
+	 * Defines a chain of files, every file references the next one and 
+	 * last file has a single cube
+	 * @param depth references in chain, from first file to last
+	 * @return first file of chain
+	 */
+	static synchronized String getChain(int depth) {
+
+		define();
+		String first = "ldpovtest_chain"+depth+"_0.dat";
+		if (chains.add(depth)) {
+			for (int i=0;i<depth;i++) {
+				LDrawPart p = LDrawPart.newCustomPart("ldpovtest_chain"+depth+"_"+i+".dat");
+				p.addPart(LDPrimitive.newPart(16, "ldpovtest_chain"+depth+"_"+(i+1)+".dat", false, new Matrix3D()));
+			}
+			LDrawPart last = LDrawPart.newCustomPart("ldpovtest_chain"+depth+"_"+depth+".dat");
+			last.addPart(LDPrimitive.newPart(16, CUBE, false, new Matrix3D()));
+		}
+		return first;
+	}
+
+
+
+	/**
+	 * Defines a model file, replacing a file with the same name if any
+	 * @param ldrawId file name
+	 * @param lines file content
+	 */
+	static void setFile(String ldrawId, LDPrimitive... lines) {
+
+		define();
+		LDrawPart p = LDrawPart.newCustomPart(ldrawId);
+		for (LDPrimitive l : lines) {
+			p.addPart(l);
+		}
+	}
+
+
+
+	/**
+	 * Returns a cube placed at a position
+	 */
+	static LDPrimitive getCube(int color, float x, float y, float z) {
+
+		define();
+		return LDPrimitive.newPart(color, CUBE, false, new Matrix3D(1, 0, 0, 0, 1, 0, 0, 0, 1, x, y, z));
+	}
+
+
+
+	/**
+	 * Returns a model with a single part
+	 * @param ldrawId part file
+	 * @return model
+	 */
+	static List<LDPrimitive> getPart(String ldrawId) {
+
+		define();
+		List<LDPrimitive> model = new ArrayList<LDPrimitive>();
+		model.add(LDPrimitive.newPart(4, ldrawId, false, new Matrix3D()));
+		return model;
+	}
+
+
+
+	/**
+	 * Returns a model that is a cubic grid of test cubes, of alternate 
+	 * solid and transparent red
+	 * @param parts parts in model
+	 * @return model
+	 */
+	static List<LDPrimitive> getGrid(int parts) {
+
+		define();
+		int side = (int) Math.ceil(Math.cbrt(parts));
+		List<LDPrimitive> model = new ArrayList<LDPrimitive>(parts);
+		for (int i=0;i<parts;i++) {
+			int x = i % side, y = i / side % side, z = i / side / side;
+			Matrix3D m = new Matrix3D(1, 0, 0, 0, 1, 0, 0, 0, 1, x * STEP, y * STEP, z * STEP);
+			model.add(LDPrimitive.newPart(i % 2 == 0 ? 4 : 36, CUBE, false, m));
+		}
+		return model;
+	}
+
+
+
+
+	/**
+	 * Counts occurrences of a string in exported text
+	 * @param text exported scene
+	 * @param s string to find
+	 * @return occurrences, overlapping ones are counted too
+	 */
+	static int count(String text, String s) {
+
+		int n = 0;
+		for (int i=text.indexOf(s);i>=0;i=text.indexOf(s, i+1)) {
+			n++;
+		}
+		return n;
+	}
+
+
+
+	/**
+	 * Creates an empty temporary directory
+	 * @return directory
+	 * @throws IOException
+	 */
+	static File newTempDir() throws IOException {
+
+		File dir = File.createTempFile("ldpovtest", "");
+		dir.delete();
+		if (!dir.mkdir()) 
+			throw new IOException("Unable to create "+dir);
+		return dir;
+	}
+
+
+
+	/**
+	 * Deletes a file, or a directory with its content
+	 * @param f file or directory
+	 */
+	static void delete(File f) {
+
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File c : files) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+
+
+
+	/**
+	 * Writes an executable shell script, used in place of POV-Ray
+	 * @param f script file
+	 * @param lines script, without "#!/bin/sh" line
+	 * @return f
+	 * @throws IOException
+	 */
+	static File newScript(File f, String... lines) throws IOException {
+
+		OutputStream out = new FileOutputStream(f);
+		try {
+			out.write("#!/bin/sh\n".getBytes("US-ASCII"));
+			for (String l : lines) {
+				out.write((l+"\n").getBytes("US-ASCII"));
+			}
+		}
+		finally {
+			out.close();
+		}
+		f.setExecutable(true);
+		return f;
+	}
+
+}
@@ -0,0 +1,222 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests of tiled render, with a program that writes tiles of a single 
+ * color in place of POV-Ray.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovTiledRenderTest {
+
+	private static final int WIDTH = 160;
+	private static final int HEIGHT = 120;
+	// color of pixels outside tile in full frame images
+	private static final int OUTSIDE = 0xff00ff;
+
+	private File dir;
+
+
+
+	@Before
+	public void setUp() throws IOException {
+
+		dir = LDPovTestModels.newTempDir();
+	}
+
+
+
+	@After
+	public void tearDown() {
+
+		LDPovTestModels.delete(dir);
+	}
+
+
+
+	/**
+	 * Color of a tile, from its first row and column
+	 */
+	private static int getColor(int startRow, int startCol) {
+
+		return startRow << 12 | startCol;
+	}
+
+
+
+	private LDPovTiledRender newRender(String image) {
+
+		LDPovTiledRender r = new LDPovTiledRender(LDPovTestModels.getGrid(100), dir, new File(dir, image));
+		r.setSize(WIDTH, HEIGHT);
+		return r;
+	}
+
+
+
+	/**
+	 * Renders with a stand-in for POV-Ray and checks every output pixel 
+	 * comes from its tile
+	 * @param fullFrame true if tile images have full frame size, false if they have tile size
+	 */
+	private void checkStitch(boolean fullFrame) throws Exception {
+
+		// same way POV-Ray is started, a script that runs FakePovRay
+		assumeTrue(File.separatorChar == '/');
+		File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+		File script = LDPovTestModels.newScript(new File(dir, "povray.sh"), 
+				"exec '"+java.getAbsolutePath()+"' -Djava.awt.headless=true -cp '"+System.getProperty("java.class.path")
+				+"' '"+FakePovRay.class.getName()+"' "+(fullFrame ? "full" : "tile")+" \"$@\"");
+		String name = fullFrame ? "full.png" : "tile.png";
+		LDPovTiledRender r = newRender(name);
+		r.setExecutable(script.getAbsolutePath());
+		List<LDPovTiledRender.Tile> tiles = r.getTiles(12);
+		assertEquals(12, tiles.size());
+		r.render(12, 4, 1);
+		BufferedImage img = ImageIO.read(new File(dir, name));
+		assertEquals(WIDTH, img.getWidth());
+		assertEquals(HEIGHT, img.getHeight());
+		int covered = 0;
+		for (LDPovTiledRender.Tile t : tiles) {
+			int color = getColor(t.getStartRow(), t.getStartCol());
+			for (int y=t.getStartRow()-1;y<t.getEndRow();y++) {
+				for (int x=t.getStartCol()-1;x<t.getEndCol();x++) {
+					assertEquals("Pixel "+x+","+y+" of "+t, color, img.getRGB(x, y) & 0xffffff);
+					covered++;
+				}
+			}
+		}
+		assertEquals(WIDTH * HEIGHT, covered);
+		for (int i=0;i<tiles.size();i++) {
+			assertFalse(r.getTileFile(i).exists());
+		}
+	}
+
+
+
+	@Test(timeout = 60000)
+	public void stitchFullFrameTiles() throws Exception {
+
+		checkStitch(true);
+	}
+
+
+
+	@Test(timeout = 60000)
+	public void stitchTileSizedImages() throws Exception {
+
+		checkStitch(false);
+	}
+
+
+
+	/**
+	 * Asking more tiles than image allows, tiles are split until a side 
+	 * reaches minimum size, 16 pixels
+	 */
+	@Test
+	public void splitStopsAtMinimumSide() {
+
+		LDPovTiledRender r = newRender("split.png");
+		List<LDPovTiledRender.Tile> tiles = r.getTiles(10000);
+		assertTrue(tiles.size() < 10000);
+		int area = 0;
+		for (LDPovTiledRender.Tile t : tiles) {
+			// a side of 32 pixels or more can still be split
+			assertTrue(t.toString(), t.getWidth() >= 16 && t.getWidth() < 32);
+			assertTrue(t.toString(), t.getHeight() >= 16 && t.getHeight() < 32);
+			area += t.getWidth() * t.getHeight();
+		}
+		assertEquals(WIDTH * HEIGHT, area);
+	}
+
+
+
+	/**
+	 * Stand-in for POV-Ray: writes a tile filled with a color computed from 
+	 * tile position. In "full" mode image has full frame size, with pixels 
+	 * outside tile of another color, in "tile" mode image has tile size.
+	 */
+	public static class FakePovRay {
+
+		public static void main(String[] args) throws IOException {
+
+			String out = null;
+			int width = 0, height = 0, startRow = 1, endRow = 0, startCol = 1, endCol = 0;
+			for (String a : args) {
+				if (a.startsWith("+O"))
+					out = a.substring(2);
+				else if (a.startsWith("+WT"))
+					continue;
+				else if (a.startsWith("+W"))
+					width = Integer.parseInt(a.substring(2));
+				else if (a.startsWith("+H"))
+					height = Integer.parseInt(a.substring(2));
+				else if (a.startsWith("+SR"))
+					startRow = Integer.parseInt(a.substring(3));
+				else if (a.startsWith("+ER"))
+					endRow = Integer.parseInt(a.substring(3));
+				else if (a.startsWith("+SC"))
+					startCol = Integer.parseInt(a.substring(3));
+				else if (a.startsWith("+EC"))
+					endCol = Integer.parseInt(a.substring(3));
+			}
+			int color = getColor(startRow, startCol);
+			BufferedImage img;
+			if (args[0].equals("full")) {
+				img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+				for (int y=0;y<height;y++) {
+					for (int x=0;x<width;x++) {
+						boolean inside = y >= startRow-1 && y < endRow && x >= startCol-1 && x < endCol;
+						img.setRGB(x, y, inside ? color : OUTSIDE);
+					}
+				}
+			}
+			else {
+				img = new BufferedImage(endCol-startCol+1, endRow-startRow+1, BufferedImage.TYPE_INT_RGB);
+				for (int y=0;y<img.getHeight();y++) {
+					for (int x=0;x<img.getWidth();x++) {
+						img.setRGB(x, y, color);
+					}
+				}
+			}
+			ImageIO.write(img, "png", new File(out));
+		}
+	}
+
+}
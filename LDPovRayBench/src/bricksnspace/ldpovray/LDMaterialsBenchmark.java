@@ -0,0 +1,96 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Materials file generation, for all colors known to LDraw library.
+ *
+ * LDraw color table must be loaded, or materials are empty.
+ *
+ * @author Mario Pascucci
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LDMaterialsBenchmark {
+
+	private File dir;
+
+
+
+	@Setup
+	public void setup() throws IOException {
+
+		dir = File.createTempFile("ldpovbench", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+
+
+	@TearDown
+	public void tearDown() {
+
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+
+
+	@Benchmark
+	public void writeMaterials() throws IOException {
+
+		LDPovWriter out = new LDPovWriter(LDPovBenchmarks.nullWriter());
+		LDMaterials.writeMaterials(out);
+		out.close();
+	}
+
+
+
+	@Benchmark
+	public void generateMaterials() throws IOException {
+
+		LDMaterials.generateMaterials(dir);
+	}
+
+}
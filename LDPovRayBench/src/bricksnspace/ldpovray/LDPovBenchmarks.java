@@ -0,0 +1,166 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.ldrawlib.LDPrimitive;
+import bricksnspace.ldrawlib.LDrawCommand;
+import bricksnspace.ldrawlib.LDrawPart;
+
+
+/**
+ * Runs all export benchmarks.
+ *
+ * Benchmarks are in LDPovRay package, to reach package private code.
+ * Results are in ops/s, with allocated bytes per operation from GC
+ * profiler (gc.alloc.rate.norm). An optional argument is a regular
+ * expression to select benchmarks.
+ *
+ * JMH jars are found with JMH_HOME classpath variable, annotation
+ * processing must be enabled to generate benchmark code.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPovBenchmarks {
+
+	// grid step of generated models, LDraw units
+	private static final float STEP = 40;
+
+
+
+	/**
+	 * Returns a writer that drops all output
+	 */
+	static Writer nullWriter() {
+
+		return new Writer() {
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+
+
+	/**
+	 * Returns a stream that drops all output
+	 */
+	static OutputStream nullStream() {
+
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+			}
+		};
+	}
+
+
+
+	/**
+	 * Returns a model that is a grid of copies of a library part, read from
+	 * LDraw library that must be already initialized. Part is set with
+	 * system property "ldpovray.bench.part", default "3001.dat"; model parts
+	 * are copies of its first sub-file reference, placed at origin and then
+	 * moved on grid.
+	 * @param parts parts in model
+	 * @return model
+	 */
+	static List<LDPrimitive> getGridModel(int parts) {
+
+		String id = System.getProperty("ldpovray.bench.part", "3001.dat");
+		LDPrimitive proto = null;
+		for (LDPrimitive p : LDrawPart.getPart(id).getPrimitives()) {
+			if (p.getType() == LDrawCommand.REFERENCE) {
+				proto = p.setTransform(new Matrix3D());
+				break;
+			}
+		}
+		if (proto == null) {
+			throw new IllegalStateException("No sub-file reference in part "+id);
+		}
+		int side = (int) Math.ceil(Math.cbrt(parts));
+		List<LDPrimitive> model = new ArrayList<LDPrimitive>(parts);
+		for (int i=0;i<parts;i++) {
+			int x = i % side, y = i / side % side, z = i / side / side;
+			model.add(proto.moveTo((x - side/2) * STEP, (y - side/2) * STEP, (z - side/2) * STEP));
+		}
+		return model;
+	}
+
+
+
+	/**
+	 * Returns reference model, an LDraw model file found by library set
+	 * with system property "ldpovray.bench.model". Without it, model is a 
+	 * grid of 10000 parts.
+	 * @return model parts
+	 */
+	static List<LDPrimitive> getReferenceModel() {
+
+		String id = System.getProperty("ldpovray.bench.model");
+		if (id == null) {
+			return getGridModel(10000);
+		}
+		List<LDPrimitive> model = new ArrayList<LDPrimitive>();
+		for (LDPrimitive p : LDrawPart.getPart(id).getPrimitives()) {
+			if (p.getType() == LDrawCommand.REFERENCE) {
+				model.add(p);
+			}
+		}
+		return model;
+	}
+
+
+
+	public static void main(String[] args) throws RunnerException {
+
+		Options opt = new OptionsBuilder()
+				.include(args.length > 0 ? args[0] : LDPovBenchmarks.class.getPackage().getName()+".*Benchmark")
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opt).run();
+	}
+
+}
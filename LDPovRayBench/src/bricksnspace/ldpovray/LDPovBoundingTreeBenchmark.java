@@ -0,0 +1,131 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bricksnspace.ldrawlib.LDPrimitive;
+
+
+/**
+ * Export of reference model with and without bounding hierarchy, see
+ * {@link LDPovBenchmarks#getReferenceModel()}.
+ *
+ * Besides export time, output size in bytes, parts for every bounding
+ * union and peak heap used by export are printed at start of every trial.
+ * With hierarchy every part is kept in memory until end of model, so peak
+ * heap grows with model size.
+ *
+ * Only export is measured here. POV-Ray uses union bounds only with 
+ * options -SU -UR, and parse and trace time of written scene with and 
+ * without these options have not been measured yet: render speed gain 
+ * of bounding hierarchy is unproven.
+ *
+ * @author Mario Pascucci
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LDPovBoundingTreeBenchmark {
+
+	@Param({"false", "true"})
+	public boolean hierarchy;
+
+	@Param({"false", "true"})
+	public boolean instancing;
+
+	private List<LDPrimitive> model;
+	private File includeDir;
+
+
+
+	@Setup
+	public void setup() throws IOException {
+
+		model = LDPovBenchmarks.getReferenceModel();
+		includeDir = File.createTempFile("ldpovbench", "");
+		includeDir.delete();
+		includeDir.mkdir();
+		LDPovAssets.generate(includeDir);
+		System.gc();
+		for (MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+			p.resetPeakUsage();
+		}
+		LDPovExportStats s = export().getStats();
+		// sum of pool peaks, an upper bound of peak heap
+		long peak = 0;
+		for (MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (p.getType() == MemoryType.HEAP) {
+				peak += p.getPeakUsage().getUsed();
+			}
+		}
+		System.out.println("Parts: "+s.getParts()+", bounding unions: "+s.getBoundingUnions()
+				+", parts per union: "+(s.getBoundingUnions() == 0 ? 0 : s.getParts() / (double) s.getBoundingUnions())
+				+", output bytes: "+s.getBytesWritten()+", peak heap bytes: "+peak);
+	}
+
+
+
+	@TearDown
+	public void tearDown() {
+
+		for (File f : includeDir.listFiles()) {
+			f.delete();
+		}
+		includeDir.delete();
+	}
+
+
+
+	@Benchmark
+	public LDPovRenderer export() throws IOException {
+
+		LDPovRenderer r = LDPovRenderer.getRenderer(LDPovBenchmarks.nullStream(), includeDir);
+		r.setInstancing(instancing);
+		r.setBoundingHierarchy(hierarchy);
+		r.startRender();
+		r.addModel(model);
+		return r;
+	}
+
+}
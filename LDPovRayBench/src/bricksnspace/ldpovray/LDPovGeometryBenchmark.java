@@ -0,0 +1,192 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bricksnspace.ldrawlib.LDrawColor;
+
+
+/**
+ * Part geometry on synthetic sub-file trees, without LDraw library.
+ *
+ * Leaf sub-file is a cube with a substituted and a generated primitive.
+ * Every level of tree places "breadth" copies of level below, so parts
+ * have breadth^depth leaves.
+ *
+ * Flatten builds tree geometry, as sub-files are merged when a part is
+ * read. Render writes flattened geometry as triangle and primitive
+ * objects, or as mesh. Optimize welds vertices of flattened geometry and
+ * merges coplanar triangles.
+ *
+ * @author Mario Pascucci
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LDPovGeometryBenchmark {
+
+	private static final String SUBST = "stud.dat";
+	private static final String GENERATED = "4-4cyli.dat";
+	private static final float[] UNITBOX = new float[] { -1, -1, -1, 1, 1, 1 };
+
+	@Param({"1", "3", "5"})
+	public int depth;
+
+	@Param({"2", "4", "8"})
+	public int breadth;
+
+	private LDPovGeometry leaf;
+	private LDPovGeometry part;
+	private LDPovExportContext ctx;
+	private float[] placement;
+
+
+
+	/**
+	 * Output mode, for render only
+	 */
+	@State(Scope.Thread)
+	public static class Output {
+
+		@Param({"false", "true"})
+		public boolean mesh;
+	}
+
+
+
+	@Setup
+	public void setup() throws IOException {
+
+		leaf = getLeaf();
+		part = getTree(leaf, depth, breadth);
+		ctx = new LDPovExportContext(Collections.singleton(SUBST));
+		ctx.genPrimitives.add(GENERATED);
+		ctx.povFile = new LDPovWriter(LDPovBenchmarks.nullWriter());
+		placement = getTranslation(10, -24, 30);
+		// generated primitive is declared once for every export
+		LDPOVRenderedPart.renderPart(ctx, part, LDrawColor.CURRENT, placement);
+	}
+
+
+
+	private static float[] getTranslation(float x, float y, float z) {
+
+		return new float[] { 1, 0, 0, 0, 1, 0, 0, 0, 1, x, y, z };
+	}
+
+
+
+	/**
+	 * Cube of side 20 with two primitives on top
+	 */
+	static LDPovGeometry getLeaf() {
+
+		LDPovGeometry.Builder b = new LDPovGeometry.Builder();
+		float[][] faces = new float[][] {
+			{ -10,-10,-10,  10,-10,-10,  10,-10, 10, -10,-10, 10 },
+			{ -10, 10,-10, -10, 10, 10,  10, 10, 10,  10, 10,-10 },
+			{ -10,-10,-10, -10, 10,-10,  10, 10,-10,  10,-10,-10 },
+			{ -10,-10, 10,  10,-10, 10,  10, 10, 10, -10, 10, 10 },
+			{ -10,-10,-10, -10,-10, 10, -10, 10, 10, -10, 10,-10 },
+			{  10,-10,-10,  10, 10,-10,  10, 10, 10,  10,-10, 10 }
+		};
+		for (float[] f : faces) {
+			b.addQuad(f, LDrawColor.CURRENT);
+		}
+		b.addPrimitive(SUBST, false, getTranslation(0, -10, 0), LDrawColor.CURRENT, UNITBOX);
+		float[] m = new float[] { 6, 0, 0, 0, 4, 0, 0, 0, 6, 0, -14, 0 };
+		b.addPrimitive(GENERATED, true, m, LDrawColor.CURRENT, UNITBOX);
+		return b.build();
+	}
+
+
+
+	/**
+	 * Places copies of geometry in a row, for every level
+	 */
+	static LDPovGeometry getTree(LDPovGeometry leaf, int depth, int breadth) {
+
+		LDPovGeometry g = leaf;
+		float step = 20;
+		for (int d=0;d<depth;d++) {
+			LDPovGeometry.Builder b = new LDPovGeometry.Builder();
+			for (int i=0;i<breadth;i++) {
+				// every level on a different axis, to keep geometry compact
+				float[] m = getTranslation(d % 3 == 0 ? i*step : 0, d % 3 == 1 ? i*step : 0, d % 3 == 2 ? i*step : 0);
+				b.addGeometry(g, m, LDrawColor.CURRENT);
+			}
+			g = b.build();
+			if (d % 3 == 2) {
+				step *= breadth;
+			}
+		}
+		return g;
+	}
+
+
+
+	@Benchmark
+	public LDPovGeometry flatten() {
+
+		return getTree(leaf, depth, breadth);
+	}
+
+
+
+	@Benchmark
+	public LDPovGeometry optimize() {
+
+		return LDPovGeometryOptimizer.optimize(part, 0.001f, ctx.stats);
+	}
+
+
+
+	@Benchmark
+	public void render(Output out) throws IOException {
+
+		ctx.mesh = out.mesh ? new LDPovMesh() : null;
+		ctx.resetBounds();
+		LDPOVRenderedPart.renderPart(ctx, part, LDrawColor.CURRENT, placement);
+		if (ctx.mesh != null) {
+			LDPOVRenderedPart.addMesh(ctx);
+			ctx.mesh = null;
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Primitive name classification, parsed, from descriptor table and
+ * from primitive generators, as done for every sub-file reference.
+ *
+ * @author Mario Pascucci
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LDPovPrimitiveBenchmark {
+
+	// primitives, tori and plain sub-files, as found in parts
+	private static final String[] NAMES = new String[] {
+		"4-4cyli.dat", "1-4edge.dat", "2-4disc.dat", "1-8ndis.dat", "4-4ring3.dat",
+		"2-4ring10.dat", "4-4con5.dat", "1-4cylc.dat", "t04i3333.dat", "t01o1429.dat",
+		"t02q4375.dat", "stud.dat", "stud4.dat", "box5.dat", "3001s01.dat", "rect.dat"
+	};
+
+	private LDPovPrimitiveTable primitives = new LDPovPrimitiveTable();
+	private int next = 0;
+
+
+
+	private String nextName() {
+
+		next = (next + 1) % NAMES.length;
+		return NAMES[next];
+	}
+
+
+
+	@Benchmark
+	public LDPovPrimitiveDescriptor parse() {
+
+		return LDPovPrimitiveDescriptor.parse(nextName());
+	}
+
+
+
+	@Benchmark
+	public LDPovPrimitiveDescriptor lookup() {
+
+		return LDPovPrimitiveDescriptor.get(nextName());
+	}
+
+
+
+	@Benchmark
+	public LDPovPrimitiveGenerator generator() {
+
+		return primitives.get(nextName());
+	}
+
+}
@@ -0,0 +1,129 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.ldrawlib.LDPrimitive;
+
+
+/**
+ * Whole scene export, with generated models.
+ *
+ * Models are a grid of copies of a library part, see
+ * {@link LDPovBenchmarks#getGridModel(int)}.
+ *
+ * Geometry cache is kept between runs, as in an application exporting
+ * many times.
+ *
+ * Memory used by export must not grow with model: allocated bytes of
+ * addModel divided by parts, and allocated bytes of renderPart, that
+ * renders a single placed part with a context already used, are about
+ * the same for every model size.
+ *
+ * @author Mario Pascucci
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LDPovRendererBenchmark {
+
+	@Param({"100", "10000", "100000"})
+	public int parts;
+
+	@Param({"false", "true"})
+	public boolean mesh;
+
+	@Param({"false", "true"})
+	public boolean instancing;
+
+	private List<LDPrimitive> model;
+	private File includeDir;
+	private LDPovExportContext context;
+	private Matrix3D view = new Matrix3D();
+	private int next = 0;
+
+
+
+	@Setup
+	public void setup() throws IOException {
+
+		model = LDPovBenchmarks.getGridModel(parts);
+		includeDir = File.createTempFile("ldpovbench", "");
+		includeDir.delete();
+		includeDir.mkdir();
+		LDPovAssets.generate(includeDir);
+		context = new LDPovExportContext();
+	}
+
+
+
+	@TearDown
+	public void tearDown() {
+
+		for (File f : includeDir.listFiles()) {
+			f.delete();
+		}
+		includeDir.delete();
+	}
+
+
+
+	@Benchmark
+	public void addModel() throws IOException {
+
+		LDPovRenderer r = LDPovRenderer.getRenderer(LDPovBenchmarks.nullStream(), includeDir);
+		r.setMeshOutput(mesh);
+		r.setInstancing(instancing);
+		r.startRender();
+		r.addModel(model);
+	}
+
+
+
+	@Benchmark
+	public LDPovPartTask renderPart() throws IOException {
+
+		LDPrimitive p = model.get(next++ % model.size());
+		return new LDPovPartTask(context, p, view, mesh, instancing ? "LDPART_BENCH" : null, false).call();
+	}
+
+}
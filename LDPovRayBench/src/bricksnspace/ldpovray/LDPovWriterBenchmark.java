@@ -0,0 +1,123 @@
+/**
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDPovRay
+
+	LDPovRay is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDPovRay is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDPovRay.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package bricksnspace.ldpovray;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Float formatting, as used for every coordinate written.
+ *
+ * Values are typical LDraw coordinates: integers, halves and
+ * matrix terms with long fractions.
+ *
+ * @author Mario Pascucci
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LDPovWriterBenchmark {
+
+	private static final int COUNT = 1024;
+
+	private float[] values = new float[COUNT];
+	private int next = 0;
+	private LDPovWriter out;
+
+
+
+	@Setup
+	public void setup() {
+
+		Random r = new Random(1);
+		for (int i=0;i<COUNT;i++) {
+			switch (i % 3) {
+			case 0:
+				values[i] = r.nextInt(400) - 200;
+				break;
+			case 1:
+				values[i] = (r.nextInt(800) - 400) / 2f;
+				break;
+			default:
+				values[i] = r.nextFloat() * 2 - 1;
+			}
+		}
+		out = new LDPovWriter(LDPovBenchmarks.nullWriter());
+	}
+
+
+
+	@TearDown
+	public void tearDown() throws IOException {
+
+		out.close();
+	}
+
+
+
+	private float nextValue() {
+
+		next = (next + 1) & (COUNT - 1);
+		return values[next];
+	}
+
+
+
+	@Benchmark
+	public String formatString() {
+
+		return LDPovWriter.fF(nextValue());
+	}
+
+
+
+	@Benchmark
+	public void writeFloat() throws IOException {
+
+		out.writeFloat(nextValue());
+	}
+
+
+
+	@Benchmark
+	public void writeVector() throws IOException {
+
+		out.writeVector(nextValue(), nextValue(), nextValue());
+	}
+
+}